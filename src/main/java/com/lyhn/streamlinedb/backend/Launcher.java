@@ -3,6 +3,7 @@ package com.lyhn.streamlinedb.backend;
 import com.lyhn.streamlinedb.backend.dm.DataManager;
 import com.lyhn.streamlinedb.backend.server.Server;
 import com.lyhn.streamlinedb.backend.tbm.TableManager;
+import com.lyhn.streamlinedb.backend.tbm.TableManagerImpl;
 import com.lyhn.streamlinedb.backend.tm.TransactionManager;
 import com.lyhn.streamlinedb.backend.utils.Panic;
 import com.lyhn.streamlinedb.backend.vm.VersionManager;
@@ -34,6 +35,7 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("sortmem", true, "-sortmem 4MB Memory for each sort or hash join");
         options.addOption("optimized", false, "-optimized Enable Clock-Sweep buffer pool");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
@@ -41,7 +43,8 @@ public class Launcher {
         boolean optimized = cmd.hasOption("optimized");
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), optimized);
+            long sortMem = cmd.hasOption("sortmem") ? parseMem(cmd.getOptionValue("sortmem")) : TableManagerImpl.DEFAULT_SORT_MEMORY;
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), sortMem, optimized);
             return;
         }
         if(cmd.hasOption("create")) {
@@ -65,7 +68,7 @@ public class Launcher {
         dm.close();
     }
 
-    private static void openDB(String path, long mem, boolean optimized) {
+    private static void openDB(String path, long mem, long sortMem, boolean optimized) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm;
 //        if (optimized) {
@@ -74,7 +77,7 @@ public class Launcher {
             dm = DataManager.open(path, mem, tm);
 //        }
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        TableManager tbm = TableManager.open(path, vm, dm, sortMem);
         new Server(port, tbm).start();
     }
 
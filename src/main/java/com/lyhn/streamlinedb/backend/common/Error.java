@@ -25,6 +25,15 @@ public class Error {
     public static final InvalidMemException invalidMemException = new InvalidMemException();
     public static final NestedTransactionException nestedTransactionException = new NestedTransactionException();
     public static final NoTransactionException noTransactionException = new NoTransactionException();
+    public static final InvalidFanoutException invalidFanoutException = new InvalidFanoutException();
+    public static final DuplicatedKeyException duplicatedKeyException = new DuplicatedKeyException();
+    public static final InvalidAggregateException invalidAggregateException = new InvalidAggregateException();
+    public static final AmbiguousFieldException ambiguousFieldException = new AmbiguousFieldException();
+    public static final InvalidJoinException invalidJoinException = new InvalidJoinException();
+    public static final TransactionAbortedException transactionAbortedException = new TransactionAbortedException();
+    public static final InvalidParamsException invalidParamsException = new InvalidParamsException();
+    public static final StatementNotFoundException statementNotFoundException = new StatementNotFoundException();
+    public static final TooManyPreparedException tooManyPreparedException = new TooManyPreparedException();
 
     public static class CacheFullException extends RuntimeException {
         public CacheFullException() {
@@ -164,4 +173,58 @@ public class Error {
         }
     }
 
+    public static class InvalidFanoutException extends RuntimeException {
+        public InvalidFanoutException() {
+            super("Invalid index fanout");
+        }
+    }
+
+    public static class DuplicatedKeyException extends RuntimeException {
+        public DuplicatedKeyException() {
+            super("Duplicated key");
+        }
+    }
+
+    public static class InvalidAggregateException extends RuntimeException {
+        public InvalidAggregateException() {
+            super("Invalid aggregate query");
+        }
+    }
+
+    public static class AmbiguousFieldException extends RuntimeException {
+        public AmbiguousFieldException() {
+            super("Ambiguous field");
+        }
+    }
+
+    public static class InvalidJoinException extends RuntimeException {
+        public InvalidJoinException() {
+            super("Invalid join");
+        }
+    }
+
+    public static class TransactionAbortedException extends RuntimeException {
+        public TransactionAbortedException() {
+            super("Transaction aborted while waiting for a lock");
+        }
+    }
+
+    public static class InvalidParamsException extends RuntimeException {
+        public InvalidParamsException() {
+            super("Wrong number of parameters");
+        }
+    }
+
+    public static class StatementNotFoundException extends RuntimeException {
+        public StatementNotFoundException() {
+            super("Prepared statement not found");
+        }
+    }
+
+    public static class TooManyPreparedException extends RuntimeException {
+        public TooManyPreparedException() {
+            super("Too many prepared statements");
+        }
+    }
+
 }
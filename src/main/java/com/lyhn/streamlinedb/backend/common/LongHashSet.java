@@ -0,0 +1,137 @@
+package com.lyhn.streamlinedb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * long 的开放寻址哈希集合，线性探测，删除时回移后继元素
+ * 非线程安全，遍历方式与LongLongMap相同
+ */
+public class LongHashSet {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    public LongHashSet() {
+        this(4);
+    }
+
+    public LongHashSet(int expected) {
+        allocate(LongHashing.tableSize(expected, LOAD_FACTOR));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(long key) {
+        return find(key) >= 0;
+    }
+
+    // 加入集合，原本不存在时返回true
+    public boolean add(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) return false;
+            pos = (pos + 1) & mask;
+        }
+        used[pos] = true;
+        keys[pos] = key;
+        if(++size >= threshold) {
+            rehash(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean remove(long key) {
+        int pos = find(key);
+        if(pos < 0) return false;
+        size --;
+        shiftKeys(pos);
+        return true;
+    }
+
+    public void clear() {
+        if(size == 0) return;
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public long[] toArray() {
+        long[] res = new long[size];
+        int n = 0;
+        for(int i = 0; i < used.length; i ++) {
+            if(used[i]) res[n ++] = keys[i];
+        }
+        return res;
+    }
+
+    // 返回from及之后第一个被占用的槽位，没有则返回-1
+    public int nextSlot(int from) {
+        for(int i = from; i < used.length; i ++) {
+            if(used[i]) return i;
+        }
+        return -1;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    private int find(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) return pos;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void shiftKeys(int pos) {
+        while(true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            while(true) {
+                if(!used[pos]) {
+                    used[last] = false;
+                    return;
+                }
+                int slot = LongHashing.mix(keys[pos]) & mask;
+                if(last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for(int i = 0; i < oldUsed.length; i ++) {
+            if(!oldUsed[i]) continue;
+            int pos = LongHashing.mix(oldKeys[i]) & mask;
+            while(used[pos]) {
+                pos = (pos + 1) & mask;
+            }
+            used[pos] = true;
+            keys[pos] = oldKeys[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+}
@@ -0,0 +1,20 @@
+package com.lyhn.streamlinedb.backend.common;
+
+// 基本类型哈希表共用的散列与容量计算
+class LongHashing {
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    // uid的低位是页内偏移、高位是页号，先乘法散列再折叠，使低位也均匀
+    static int mix(long key) {
+        long h = key * GOLDEN;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    // 能容纳expected个元素的2的幂容量
+    static int tableSize(int expected, float loadFactor) {
+        long need = (long)Math.ceil(Math.max(expected, 2) / loadFactor);
+        int capacity = Integer.highestOneBit((int)Math.min(need, 1 << 30));
+        if(capacity < need) capacity <<= 1;
+        return Math.max(capacity, 4);
+    }
+}
@@ -0,0 +1,153 @@
+package com.lyhn.streamlinedb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * long -> long 的开放寻址哈希表，线性探测，删除时回移后继元素，不产生墓碑
+ * 键和值都以基本类型存放，避免Long装箱
+ * 非线程安全，由调用者加锁
+ *
+ * 遍历方式：
+ * for(int i = map.nextSlot(0); i >= 0; i = map.nextSlot(i+1)) { map.keyAt(i); map.valueAt(i); }
+ * 遍历期间不能修改
+ */
+public class LongLongMap {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    public LongLongMap() {
+        this(8);
+    }
+
+    public LongLongMap(int expected) {
+        allocate(LongHashing.tableSize(expected, LOAD_FACTOR));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    // 键不存在时返回defaultValue
+    public long get(long key, long defaultValue) {
+        int pos = find(key);
+        return pos < 0 ? defaultValue : values[pos];
+    }
+
+    public void put(long key, long value) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) {
+                values[pos] = value;
+                return;
+            }
+            pos = (pos + 1) & mask;
+        }
+        used[pos] = true;
+        keys[pos] = key;
+        values[pos] = value;
+        if(++size >= threshold) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    // 删除键，返回被删除的值，键不存在时返回defaultValue
+    public long remove(long key, long defaultValue) {
+        int pos = find(key);
+        if(pos < 0) return defaultValue;
+        long old = values[pos];
+        size --;
+        shiftKeys(pos);
+        return old;
+    }
+
+    public void clear() {
+        if(size == 0) return;
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    // 返回from及之后第一个被占用的槽位，没有则返回-1
+    public int nextSlot(int from) {
+        for(int i = from; i < used.length; i ++) {
+            if(used[i]) return i;
+        }
+        return -1;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    private int find(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(used[pos]) {
+            if(keys[pos] == key) return pos;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 删除pos处的元素后，把探测链上后面的元素回移，保持查找的正确性
+    private void shiftKeys(int pos) {
+        while(true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            while(true) {
+                if(!used[pos]) {
+                    used[last] = false;
+                    return;
+                }
+                int slot = LongHashing.mix(keys[pos]) & mask;
+                if(last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for(int i = 0; i < oldUsed.length; i ++) {
+            if(!oldUsed[i]) continue;
+            int pos = LongHashing.mix(oldKeys[i]) & mask;
+            while(used[pos]) {
+                pos = (pos + 1) & mask;
+            }
+            used[pos] = true;
+            keys[pos] = oldKeys[i];
+            values[pos] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+}
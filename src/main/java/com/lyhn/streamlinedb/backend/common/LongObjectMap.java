@@ -0,0 +1,155 @@
+package com.lyhn.streamlinedb.backend.common;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * long -> 对象 的开放寻址哈希表，线性探测，删除时回移后继元素
+ * 值不允许为null，get返回null即表示键不存在
+ * 非线程安全，遍历方式与LongLongMap相同
+ */
+public class LongObjectMap<V> {
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+    private int threshold;
+
+    public LongObjectMap() {
+        this(8);
+    }
+
+    public LongObjectMap(int expected) {
+        allocate(LongHashing.tableSize(expected, LOAD_FACTOR));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int pos = find(key);
+        return pos < 0 ? null : (V)values[pos];
+    }
+
+    // 返回旧值，原本不存在时返回null
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if(value == null) throw new NullPointerException();
+        int pos = LongHashing.mix(key) & mask;
+        while(values[pos] != null) {
+            if(keys[pos] == key) {
+                V old = (V)values[pos];
+                values[pos] = value;
+                return old;
+            }
+            pos = (pos + 1) & mask;
+        }
+        keys[pos] = key;
+        values[pos] = value;
+        if(++size >= threshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<V> creator) {
+        V v = get(key);
+        if(v == null) {
+            v = creator.apply(key);
+            put(key, v);
+        }
+        return v;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int pos = find(key);
+        if(pos < 0) return null;
+        V old = (V)values[pos];
+        size --;
+        shiftKeys(pos);
+        return old;
+    }
+
+    public void clear() {
+        if(size == 0) return;
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    // 返回from及之后第一个被占用的槽位，没有则返回-1
+    public int nextSlot(int from) {
+        for(int i = from; i < values.length; i ++) {
+            if(values[i] != null) return i;
+        }
+        return -1;
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V)values[slot];
+    }
+
+    private int find(long key) {
+        int pos = LongHashing.mix(key) & mask;
+        while(values[pos] != null) {
+            if(keys[pos] == key) return pos;
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void shiftKeys(int pos) {
+        while(true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            while(true) {
+                if(values[pos] == null) {
+                    values[last] = null;
+                    return;
+                }
+                int slot = LongHashing.mix(keys[pos]) & mask;
+                if(last <= pos ? (last >= slot || slot > pos) : (last >= slot && slot > pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = keys[pos];
+            values[last] = values[pos];
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for(int i = 0; i < oldValues.length; i ++) {
+            if(oldValues[i] == null) continue;
+            int pos = LongHashing.mix(oldKeys[i]) & mask;
+            while(values[pos] != null) {
+                pos = (pos + 1) & mask;
+            }
+            keys[pos] = oldKeys[i];
+            values[pos] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+}
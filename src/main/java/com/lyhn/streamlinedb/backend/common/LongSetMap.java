@@ -0,0 +1,49 @@
+package com.lyhn.streamlinedb.backend.common;
+
+/**
+ * long -> long集合 的多值映射，集合为空时自动删除该键
+ * 非线程安全
+ */
+public class LongSetMap {
+    private LongObjectMap<LongHashSet> map;
+
+    public LongSetMap() {
+        map = new LongObjectMap<>();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public boolean contains(long key, long value) {
+        LongHashSet set = map.get(key);
+        return set != null && set.contains(value);
+    }
+
+    // 返回key对应的集合，不存在时返回null，调用者不应保留或修改它
+    public LongHashSet get(long key) {
+        return map.get(key);
+    }
+
+    public boolean add(long key, long value) {
+        return map.computeIfAbsent(key, k -> new LongHashSet()).add(value);
+    }
+
+    public boolean remove(long key, long value) {
+        LongHashSet set = map.get(key);
+        if(set == null || !set.remove(value)) return false;
+        if(set.isEmpty()) {
+            map.remove(key);
+        }
+        return true;
+    }
+
+    // 删除整个键，返回其集合，不存在时返回null
+    public LongHashSet removeAll(long key) {
+        return map.remove(key);
+    }
+}
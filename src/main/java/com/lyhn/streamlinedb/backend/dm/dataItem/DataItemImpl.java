@@ -14,7 +14,7 @@ public class DataItemImpl implements DataItem {
     // DataSize偏移量
     static final int OF_SIZE = 1;
     // Data偏移量
-    static final int OF_DATA = 3;
+    public static final int OF_DATA = 3;
 
     // 数据
     private SubArray raw;
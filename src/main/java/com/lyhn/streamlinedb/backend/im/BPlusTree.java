@@ -1,6 +1,7 @@
 package com.lyhn.streamlinedb.backend.im;
 
 
+import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.common.SubArray;
 import com.lyhn.streamlinedb.backend.dm.DataManager;
 import com.lyhn.streamlinedb.backend.dm.dataItem.DataItem;
@@ -13,24 +14,87 @@ import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-// 负责管理整个B+树的创建、加载、查找和插入操作
+/**
+ * 负责管理整个B+树的创建、加载、查找和插入操作
+ * 引导节点结构如下：
+ * [RootUid(8)][Balance(2)][KeyType(1)][Payload(1)]
+ * 早期版本的引导节点只有RootUid，平衡因子视为默认值，键类型视为KEY_LONG；没有Payload时视为0
+ *
+ * KEY_LONG的树使用定长8字节键（Node），KEY_BYTES的树使用按无符号字节序比较的变长键（VarNode）。
+ * 两种树的下降、插入、删除算法相同，通过KeyOps区分键的比较和节点格式。
+ * Payload为1的KEY_BYTES树在每个叶子条目中还保存一段附加数据，供覆盖索引不读取记录直接返回字段值。
+ */
 public class BPlusTree {
+    static final int BOOT_ROOT_OFFSET = 0;
+    static final int BOOT_BALANCE_OFFSET = BOOT_ROOT_OFFSET+8;
+    static final int BOOT_KEY_TYPE_OFFSET = BOOT_BALANCE_OFFSET+2;
+    static final int BOOT_PAYLOAD_OFFSET = BOOT_KEY_TYPE_OFFSET+1;
+    static final int BOOT_SIZE = BOOT_PAYLOAD_OFFSET+1;
+
+    // 键类型
+    public static final int KEY_LONG = 0;
+    public static final int KEY_BYTES = 1;
+
     DataManager dm;
-    // 引导节点的uid，存储根节点的uid
+    // 引导节点的uid，存储根节点的uid和平衡因子
     long bootUid;
     // 引导节点的数据项
     DataItem bootDataItem;
-    // 引导节点的锁，用于并发控制
+    // 引导节点的锁，用于串行化根节点的更新
     Lock bootLock;
+    // 根节点uid的缓存，只在持有bootLock时更新
+    volatile long root;
+    // 平衡因子，节点的键数量达到balance*2时分裂；变长键的树由它决定节点的字节大小
+    int balance;
+    // 键类型
+    int keyType;
+    // 叶子条目是否带附加数据
+    boolean payload;
 
     // 创建和加载B+树
     public static long create(DataManager dm) throws Exception {
+        return create(dm, Node.BALANCE_NUMBER);
+    }
+
+    // 以指定的平衡因子创建B+树，平衡因子在创建后不能修改
+    public static long create(DataManager dm, int balance) throws Exception {
+        return create(dm, balance, KEY_LONG);
+    }
+
+    // 以指定的平衡因子和键类型创建B+树
+    public static long create(DataManager dm, int balance, int keyType) throws Exception {
+        return create(dm, balance, keyType, false);
+    }
+
+    // payload为true时叶子条目带附加数据，只支持KEY_BYTES
+    public static long create(DataManager dm, int balance, int keyType, boolean payload) throws Exception {
+        if(balance < Node.MIN_BALANCE || balance > Node.MAX_BALANCE) {
+            throw Error.invalidFanoutException;
+        }
         // 创建空的根节点
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = keyType == KEY_BYTES ? VarNode.newNilRootRaw(balance) : Node.newNilRootRaw(balance);
         // 将根节点的uid存储到引导节点中
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
+        byte[] boot = new byte[BOOT_SIZE];
+        Parser.writeLong(boot, BOOT_ROOT_OFFSET, rootUid);
+        Parser.writeShort(boot, BOOT_BALANCE_OFFSET, (short)balance);
+        boot[BOOT_KEY_TYPE_OFFSET] = (byte)keyType;
+        boot[BOOT_PAYLOAD_OFFSET] = (byte)(payload && keyType == KEY_BYTES ? 1 : 0);
         // 返回引导节点的uid
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
+    }
+
+    // 默认扇出
+    public static final int DEFAULT_FANOUT = Node.BALANCE_NUMBER * 2;
+
+    // 由扇出（节点最多容纳的键数量）换算平衡因子
+    public static int fanoutToBalance(int fanout) {
+        return fanout / 2;
+    }
+
+    // 节点占满一页时的最大扇出
+    public static int maxFanout() {
+        return Node.MAX_BALANCE * 2;
     }
 
     // 加载B+树，根据引导节点uid加载已存在的B+树
@@ -44,64 +108,84 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        // 从引导节点数据中解析出根节点uid和平衡因子
+        t.root = Parser.readLong(sa.raw, sa.start+BOOT_ROOT_OFFSET);
+        int size = sa.end - sa.start;
+        if(size >= BOOT_KEY_TYPE_OFFSET) {
+            t.balance = Parser.readShort(sa.raw, sa.start+BOOT_BALANCE_OFFSET);
+        } else {
+            t.balance = Node.BALANCE_NUMBER;
+        }
+        t.keyType = size > BOOT_KEY_TYPE_OFFSET ? sa.raw[sa.start+BOOT_KEY_TYPE_OFFSET] : KEY_LONG;
+        t.payload = size >= BOOT_SIZE && sa.raw[sa.start+BOOT_PAYLOAD_OFFSET] != 0;
         return t;
     }
 
     // 获取根节点uid
     private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            // 从引导节点数据中解析出根节点uid
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
-        } finally {
-            bootLock.unlock();
-        }
+        return root;
     }
 
     // 更新根节点（当根节点分裂时使用）
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    // 只有分裂的节点仍然是根节点时才会更新，否则返回false，由调用者重新寻找父节点
+    private <K> boolean updateRootUid(KeyOps<K> ops, long left, long right, K rightKey) throws Exception {
         bootLock.lock();
         try {
+            if(root != left) {
+                return false;
+            }
             // 创建新的根节点
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = ops.newRootRaw(left, right, rightKey, balance);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
             // 更新引导节点数据中的根节点uid
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            Parser.writeLong(diRaw.raw, diRaw.start+BOOT_ROOT_OFFSET, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            root = newRootUid;
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
-    // 递归查找包含指定键的叶子节点
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if(isLeaf) {
-            return nodeUid;
-        } else {
-            // 是内部节点则递归继续查找
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
-        }
-    }
-    // 找到下一个要访问的子节点
-    private long searchNext(long nodeUid, long key) throws Exception {
+    // 从根节点下降到包含指定键的叶子节点，返回经过的每一层节点，最后一个是叶子
+    // 每层只加载一次节点，遇到并发分裂时沿兄弟节点右移
+    private <K> long[] searchPath(KeyOps<K> ops, K key) throws Exception {
+        long[] path = new long[8];
+        int depth = 0;
+        long nodeUid = rootUid();
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.SearchNextRes res = node.searchNext(key);
-            node.release();
-            if(res.uid != 0) return res.uid;
-            // 继续处理兄弟节点
-            nodeUid = res.siblingUid;
+            Node.SearchNextRes res;
+            try {
+                res = ops.searchNext(node, key);
+            } finally {
+                node.release();
+            }
+            if(res.uid == 0 && !res.isLeaf) {
+                // 继续处理兄弟节点
+                nodeUid = res.siblingUid;
+                continue;
+            }
+            if(depth == path.length) {
+                path = Arrays.copyOf(path, depth << 1);
+            }
+            path[depth ++] = nodeUid;
+            if(res.isLeaf) {
+                return Arrays.copyOf(path, depth);
+            }
+            nodeUid = res.uid;
         }
     }
 
+    // 查找包含指定键的叶子节点
+    private <K> long searchLeaf(KeyOps<K> ops, K key) throws Exception {
+        long[] path = searchPath(ops, key);
+        return path[path.length-1];
+    }
+
     // 实际上是调用范围查询，左右边界相同
     public List<Long> search(long key) throws Exception {
         return searchRange(key, key);
@@ -109,100 +193,359 @@ public class BPlusTree {
 
     // 调用范围查询
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
-        List<Long> uids = new ArrayList<>();
-        while(true) {
+        return drain(cursor(leftKey, rightKey));
+    }
+
+    public List<Long> search(byte[] key) throws Exception {
+        return searchRange(key, key, true);
+    }
+
+    // 变长键的范围查询，leftKey为null表示无下界，rightKey为null表示无上界
+    // 超过最大长度的键在树中被截断存储，此时返回的是结果的超集，需要调用者复核
+    public List<Long> searchRange(byte[] leftKey, byte[] rightKey, boolean rightInclusive) throws Exception {
+        return drain(cursor(leftKey, rightKey, rightInclusive));
+    }
+
+    // 范围查询的游标，按键序逐个返回uid
+    public IndexCursor cursor(long leftKey, long rightKey) throws Exception {
+        long leafUid = searchLeaf(LONG_OPS, leftKey);
+        return new RangeCursor(leafUid, leaf -> leaf.leafSearchRange(leftKey, rightKey));
+    }
+
+    // 变长键的范围查询游标，参数含义同searchRange
+    public IndexCursor cursor(byte[] leftKey, byte[] rightKey, boolean rightInclusive) throws Exception {
+        byte[] left = leftKey == null ? EMPTY_KEY : truncate(leftKey);
+        byte[] right = rightKey == null ? null : truncate(rightKey);
+        boolean inclusive = rightInclusive || right != rightKey;
+        long leafUid = searchLeaf(BYTES_OPS, left);
+        return new RangeCursor(leafUid, leaf -> ((VarNode)leaf).leafSearchRange(left, right, inclusive));
+    }
+
+    // 最右边的非空叶子节点中的uid，按键序排列，用于从大到小查找
+    // 删除不合并节点，最右边的叶子可能为空，此时返回空数组
+    public long[] lastLeaf() throws Exception {
+        long leafUid;
+        LeafScan scan;
+        if(isBytesKey()) {
+            byte[] max = new byte[maxKeyLength()];
+            Arrays.fill(max, (byte)0xff);
+            leafUid = searchLeaf(BYTES_OPS, max);
+            scan = leaf -> ((VarNode)leaf).leafSearchRange(EMPTY_KEY, null, true);
+        } else {
+            leafUid = searchLeaf(LONG_OPS, Long.MAX_VALUE);
+            scan = leaf -> leaf.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        long[] uids = new long[0];
+        // 查找期间可能有并发的分裂，沿兄弟指针走到最后
+        while(leafUid != 0) {
             Node leaf = Node.loadNode(this, leafUid);
-            Node.LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
+            Node.LeafSearchRangeRes res;
+            try {
+                res = scan.scan(leaf);
+            } finally {
+                leaf.release();
+            }
+            if(res.count > 0) {
+                uids = Arrays.copyOf(res.uids, res.count);
             }
+            leafUid = res.siblingUid;
         }
         return uids;
     }
 
-    public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+    private static List<Long> drain(UidCursor cursor) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        while(cursor.hasNext()) {
+            uids.add(cursor.next());
         }
+        return uids;
     }
 
-    public void delete(long key) throws Exception {
-        long rootUid = rootUid();
-        deleteLeaf(rootUid, key);
+    private interface LeafScan {
+        Node.LeafSearchRangeRes scan(Node leaf);
     }
 
-    private void deleteLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-        if(isLeaf) {
-            node = Node.loadNode(this, nodeUid);
-            node.dataItem.before();
-            try {
-                node.delete(key);
-            } finally {
-                node.dataItem.after(TransactionManagerImpl.SUPER_XID);
+    /**
+     * 沿叶子链表遍历的游标
+     * 每次读入一个叶子中命中的uid后立即释放该叶子，只记住兄弟节点的uid
+     * 兄弟节点不会被回收，之后并发的分裂只会把键移到更右边的节点，沿兄弟指针仍然能遍历到
+     */
+    private class RangeCursor implements IndexCursor {
+        private final LeafScan scan;
+        private long leafUid;
+        private long[] uids;
+        private long[] keys;
+        private byte[][] payloads;
+        private int count;
+        private int pos;
+
+        RangeCursor(long leafUid, LeafScan scan) {
+            this.leafUid = leafUid;
+            this.scan = scan;
+        }
+
+        @Override
+        public boolean hasNext() throws Exception {
+            // 叶子中可能没有命中的键，需要继续读兄弟节点
+            while(pos == count) {
+                if(leafUid == 0) return false;
+                Node leaf = Node.loadNode(BPlusTree.this, leafUid);
+                Node.LeafSearchRangeRes res;
+                try {
+                    res = scan.scan(leaf);
+                } finally {
+                    leaf.release();
+                }
+                uids = res.uids;
+                keys = res.keys;
+                payloads = res.payloads;
+                count = res.count;
+                pos = 0;
+                leafUid = res.siblingUid;
             }
-            node.release();
-        } else {
-            long next = searchNext(nodeUid, key);
-            deleteLeaf(next, key);
+            return true;
+        }
+
+        @Override
+        public long next() {
+            return uids[pos ++];
+        }
+
+        @Override
+        public long key() {
+            return keys[pos-1];
+        }
+
+        @Override
+        public byte[] payload() {
+            return payloads == null ? null : payloads[pos-1];
         }
     }
 
-    class InsertRes {
-        long newNode, newKey;
+    public void insert(long key, long uid) throws Exception {
+        insert(LONG_OPS, key, uid);
     }
 
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
+    public void insert(byte[] key, long uid) throws Exception {
+        insert(key, uid, null);
+    }
 
-        InsertRes res = null;
-        if(isLeaf) {
-            // 是叶节点就直接插入
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            // 是内部节点，递归插入到子节点
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if(ir.newNode != 0) {
-                // 处理子节点分裂的情况
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
+    // 在带附加数据的树中插入，附加数据与键一起超过最大键长度时不保存附加数据
+    public void insert(byte[] key, long uid, byte[] payload) throws Exception {
+        byte[] k = truncate(key);
+        if(payload != null && k.length + VarNode.PAYLOAD_HEADER_SIZE + payload.length > maxKeyLength()) {
+            payload = null;
+        }
+        insert(payload == null ? BYTES_OPS : payloadOps(payload), k, uid);
+    }
+
+    // 先下降到叶子插入，节点分裂时把新节点逐层插入到下降路径上的父节点
+    // 任意时刻只持有一个节点的写锁，父节点在此期间分裂则沿兄弟节点右移
+    private <K> void insert(KeyOps<K> ops, K key, long uid) throws Exception {
+        long[] path = searchPath(ops, key);
+        // 待插入的层，从叶子层往上计数
+        int level = 0;
+        long son = uid;
+        K sonKey = key;
+        while(true) {
+            while(level >= path.length) {
+                // 路径上最高的节点已经不是根，重新下降找到这一层的节点
+                path = searchPath(ops, sonKey);
+                if(level >= path.length) {
+                    // 分裂了根节点的事务还没有更新根
+                    Thread.yield();
+                }
+            }
+            InsertRes<K> res = insertAndSplit(ops, path[path.length-1-level], son, sonKey);
+            if(res.newNode == 0) {
+                return;
+            }
+            level ++;
+            son = res.newNode;
+            sonKey = res.newKey;
+            if(level == path.length && updateRootUid(ops, res.nodeUid, son, sonKey)) {
+                return;
             }
         }
-        return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    // 删除键和uid都匹配的索引项，重复的键可能跨越多个叶子，需要沿兄弟节点向右查找
+    public void delete(long key, long uid) throws Exception {
+        delete(LONG_OPS, key, uid);
+    }
+
+    public void delete(byte[] key, long uid) throws Exception {
+        delete(BYTES_OPS, truncate(key), uid);
+    }
+
+    private <K> void delete(KeyOps<K> ops, K key, long uid) throws Exception {
+        long leafUid = searchLeaf(ops, key);
+        while(leafUid != 0) {
+            Node node = Node.loadNode(this, leafUid);
+            Node.DeleteRes res = null;
+            node.beginWrite();
+            try {
+                res = ops.delete(node, key, uid);
+                // 删除成功才继续沿兄弟链查找，失败时异常原样抛出
+                leafUid = res.siblingUid;
+            } finally {
+                node.endWrite(res != null && res.deleted);
+                node.release();
+            }
+        }
+    }
+
+    static class InsertRes<K> {
+        // 实际插入的节点（可能是起始节点右侧的兄弟）
+        long nodeUid;
+        long newNode;
+        K newKey;
+    }
+
+    private <K> InsertRes<K> insertAndSplit(KeyOps<K> ops, long nodeUid, long uid, K key) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            Node.InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
-            node.release();
-            if(iasr.siblingUid != 0) {
-                nodeUid = iasr.siblingUid;
+            SplitRes<K> sr;
+            try {
+                sr = ops.insertAndSplit(node, uid, key);
+            } finally {
+                node.release();
+            }
+            if(sr.siblingUid != 0) {
+                nodeUid = sr.siblingUid;
             } else {
-                InsertRes res = new InsertRes();
-                res.newNode = iasr.newSon;
-                res.newKey = iasr.newKey;
+                InsertRes<K> res = new InsertRes<>();
+                res.nodeUid = nodeUid;
+                res.newNode = sr.newSon;
+                res.newKey = sr.newKey;
                 return res;
             }
         }
     }
 
+    // 超过节点允许长度的键截断存储
+    private byte[] truncate(byte[] key) {
+        int max = maxKeyLength();
+        return key.length > max ? Arrays.copyOf(key, max) : key;
+    }
+
+    // 变长键在树中保存的最大长度，带附加数据的树留出附加数据长度的空间
+    public int maxKeyLength() {
+        int max = VarNode.maxKeyLength(Node.nodeSize(balance));
+        return payload ? max - VarNode.PAYLOAD_HEADER_SIZE : max;
+    }
+
+    public int getBalance() {
+        return balance;
+    }
+
+    public boolean isBytesKey() {
+        return keyType == KEY_BYTES;
+    }
+
+    public boolean hasPayload() {
+        return payload;
+    }
+
     public void close() {
         bootDataItem.release();
     }
+
+    private static final byte[] EMPTY_KEY = new byte[0];
+
+    static class SplitRes<K> {
+        long siblingUid, newSon;
+        K newKey;
+    }
+
+    // 不同键类型的节点操作
+    private interface KeyOps<K> {
+        Node.SearchNextRes searchNext(Node node, K key);
+        SplitRes<K> insertAndSplit(Node node, long uid, K key) throws Exception;
+        Node.DeleteRes delete(Node node, K key, long uid);
+        byte[] newRootRaw(long left, long right, K key, int balance);
+    }
+
+    private static final KeyOps<Long> LONG_OPS = new KeyOps<Long>() {
+        @Override
+        public Node.SearchNextRes searchNext(Node node, Long key) {
+            return node.searchNext(key);
+        }
+
+        @Override
+        public SplitRes<Long> insertAndSplit(Node node, long uid, Long key) throws Exception {
+            Node.InsertAndSplitRes r = node.insertAndSplit(uid, key);
+            SplitRes<Long> res = new SplitRes<>();
+            res.siblingUid = r.siblingUid;
+            res.newSon = r.newSon;
+            res.newKey = r.newKey;
+            return res;
+        }
+
+        @Override
+        public Node.DeleteRes delete(Node node, Long key, long uid) {
+            return node.delete(key, uid);
+        }
+
+        @Override
+        public byte[] newRootRaw(long left, long right, Long key, int balance) {
+            return Node.newRootRaw(left, right, key, balance);
+        }
+    };
+
+    private static final KeyOps<byte[]> BYTES_OPS = new KeyOps<byte[]>() {
+        @Override
+        public Node.SearchNextRes searchNext(Node node, byte[] key) {
+            return ((VarNode)node).searchNext(key);
+        }
+
+        @Override
+        public SplitRes<byte[]> insertAndSplit(Node node, long uid, byte[] key) throws Exception {
+            return varInsertAndSplit((VarNode)node, uid, key, null);
+        }
+
+        @Override
+        public Node.DeleteRes delete(Node node, byte[] key, long uid) {
+            return ((VarNode)node).delete(key, uid);
+        }
+
+        @Override
+        public byte[] newRootRaw(long left, long right, byte[] key, int balance) {
+            return VarNode.newRootRaw(left, right, key, balance);
+        }
+    };
+
+    // 附加数据只写入叶子，分裂后向父节点插入新节点时VarNode忽略附加数据
+    private static KeyOps<byte[]> payloadOps(byte[] payload) {
+        return new KeyOps<byte[]>() {
+            @Override
+            public Node.SearchNextRes searchNext(Node node, byte[] key) {
+                return BYTES_OPS.searchNext(node, key);
+            }
+
+            @Override
+            public SplitRes<byte[]> insertAndSplit(Node node, long uid, byte[] key) throws Exception {
+                return varInsertAndSplit((VarNode)node, uid, key, payload);
+            }
+
+            @Override
+            public Node.DeleteRes delete(Node node, byte[] key, long uid) {
+                return BYTES_OPS.delete(node, key, uid);
+            }
+
+            @Override
+            public byte[] newRootRaw(long left, long right, byte[] key, int balance) {
+                return BYTES_OPS.newRootRaw(left, right, key, balance);
+            }
+        };
+    }
+
+    private static SplitRes<byte[]> varInsertAndSplit(VarNode node, long uid, byte[] key, byte[] payload) throws Exception {
+        VarNode.VarInsertAndSplitRes r = node.insertAndSplit(uid, key, payload);
+        SplitRes<byte[]> res = new SplitRes<>();
+        res.siblingUid = r.siblingUid;
+        res.newSon = r.newSon;
+        res.newKey = r.newKey;
+        return res;
+    }
 }
@@ -0,0 +1,416 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import com.lyhn.streamlinedb.backend.common.LongHashSet;
+import com.lyhn.streamlinedb.backend.common.SubArray;
+import com.lyhn.streamlinedb.backend.dm.DataManager;
+import com.lyhn.streamlinedb.backend.dm.dataItem.DataItem;
+import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 可扩展哈希索引，只支持等值查询
+ * 目录按哈希值的低GlobalDepth位定位桶，桶满时分裂，桶的局部深度等于全局深度时目录加倍。
+ * 哈希值完全相同的键无法通过分裂分开，此时为桶追加溢出桶。
+ *
+ * 引导节点：[GlobalDepth(1)][SegmentCount(2)][SegmentUid0]...[SegmentUid(MAX_SEGMENTS-1)]
+ * 目录段：[BucketUid0]...[BucketUid(SEGMENT_SLOTS-1)]
+ * 桶：[LocalDepth(1)][Count(2)][OverflowUid(8)][Hash0][Uid0]...[HashN][UidN]
+ *
+ * 目录在加载时读入内存，修改时同步写回目录段。
+ * 读操作持有读锁，写操作持有写锁，节点的修改仍通过DataItem记录日志。
+ */
+public class HashIndex {
+    static final int SEGMENT_SLOTS = 512;
+    static final int MAX_SEGMENTS = 128;
+    // 目录最多SEGMENT_SLOTS*MAX_SEGMENTS项
+    static final int MAX_DEPTH = 16;
+
+    static final int BOOT_DEPTH_OFFSET = 0;
+    static final int BOOT_SEG_COUNT_OFFSET = BOOT_DEPTH_OFFSET+1;
+    static final int BOOT_SEGMENTS_OFFSET = BOOT_SEG_COUNT_OFFSET+2;
+    static final int BOOT_SIZE = BOOT_SEGMENTS_OFFSET+8*MAX_SEGMENTS;
+
+    static final int BUCKET_DEPTH_OFFSET = 0;
+    static final int BUCKET_COUNT_OFFSET = BUCKET_DEPTH_OFFSET+1;
+    static final int BUCKET_OVERFLOW_OFFSET = BUCKET_COUNT_OFFSET+2;
+    static final int BUCKET_HEADER_SIZE = BUCKET_OVERFLOW_OFFSET+8;
+    static final int BUCKET_CAPACITY = 64;
+    static final int ENTRY_SIZE = 8*2;
+    static final int BUCKET_SIZE = BUCKET_HEADER_SIZE+ENTRY_SIZE*BUCKET_CAPACITY;
+
+    DataManager dm;
+    DataItem bootDataItem;
+    int globalDepth;
+    // 目录段的uid
+    long[] segments;
+    // 目录：第i项为低globalDepth位等于i的哈希值所在的桶
+    long[] directory;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public static long create(DataManager dm) throws Exception {
+        long bucketUid = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(0, 0, new long[0], 0, 0));
+        byte[] segment = new byte[SEGMENT_SLOTS*8];
+        Parser.writeLong(segment, 0, bucketUid);
+        long segmentUid = dm.insert(TransactionManagerImpl.SUPER_XID, segment);
+        byte[] boot = new byte[BOOT_SIZE];
+        boot[BOOT_DEPTH_OFFSET] = 0;
+        Parser.writeShort(boot, BOOT_SEG_COUNT_OFFSET, (short)1);
+        Parser.writeLong(boot, BOOT_SEGMENTS_OFFSET, segmentUid);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
+    }
+
+    public static HashIndex load(long bootUid, DataManager dm) throws Exception {
+        HashIndex h = new HashIndex();
+        h.dm = dm;
+        h.bootDataItem = dm.read(bootUid);
+        assert h.bootDataItem != null;
+        SubArray boot = h.bootDataItem.data();
+        h.globalDepth = boot.raw[boot.start+BOOT_DEPTH_OFFSET];
+        int segCount = Parser.readShort(boot.raw, boot.start+BOOT_SEG_COUNT_OFFSET);
+        h.segments = new long[MAX_SEGMENTS];
+        for(int i = 0; i < segCount; i ++) {
+            h.segments[i] = Parser.readLong(boot.raw, boot.start+BOOT_SEGMENTS_OFFSET+i*8);
+        }
+        h.directory = new long[1 << h.globalDepth];
+        for(int i = 0; i < h.directory.length; i ++) {
+            DataItem seg = dm.read(h.segments[i / SEGMENT_SLOTS]);
+            try {
+                SubArray sa = seg.data();
+                h.directory[i] = Parser.readLong(sa.raw, sa.start+(i % SEGMENT_SLOTS)*8);
+            } finally {
+                seg.release();
+            }
+        }
+        return h;
+    }
+
+    // 桶的原始数据，entries中依次为[hash, uid]
+    private static byte[] newBucketRaw(int depth, long overflow, long[] entries, int from, int count) {
+        byte[] raw = new byte[BUCKET_SIZE];
+        raw[BUCKET_DEPTH_OFFSET] = (byte)depth;
+        Parser.writeShort(raw, BUCKET_COUNT_OFFSET, (short)count);
+        Parser.writeLong(raw, BUCKET_OVERFLOW_OFFSET, overflow);
+        System.arraycopy(longsToBytes(entries, from*2, count*2), 0, raw, BUCKET_HEADER_SIZE, count*ENTRY_SIZE);
+        return raw;
+    }
+
+    private static byte[] longsToBytes(long[] longs, int from, int count) {
+        byte[] raw = new byte[count*8];
+        for(int i = 0; i < count; i ++) {
+            Parser.writeLong(raw, i*8, longs[from+i]);
+        }
+        return raw;
+    }
+
+    private int slotOf(long hash) {
+        return (int)(hash & ((1L << globalDepth) - 1));
+    }
+
+    public List<Long> search(long hash) throws Exception {
+        lock.readLock().lock();
+        try {
+            List<Long> uids = new ArrayList<>();
+            long bucketUid = directory[slotOf(hash)];
+            while(bucketUid != 0) {
+                DataItem di = dm.read(bucketUid);
+                try {
+                    SubArray sa = di.data();
+                    int count = Parser.readShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET);
+                    for(int i = 0; i < count; i ++) {
+                        int pos = sa.start+BUCKET_HEADER_SIZE+i*ENTRY_SIZE;
+                        if(Parser.readLong(sa.raw, pos) == hash) {
+                            uids.add(Parser.readLong(sa.raw, pos+8));
+                        }
+                    }
+                    bucketUid = Parser.readLong(sa.raw, sa.start+BUCKET_OVERFLOW_OFFSET);
+                } finally {
+                    di.release();
+                }
+            }
+            return uids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 返回索引中的所有uid（全表扫描）
+    public List<Long> searchAll() throws Exception {
+        lock.readLock().lock();
+        try {
+            List<Long> uids = new ArrayList<>();
+            LongHashSet visited = new LongHashSet();
+            for(long head : directory) {
+                // 多个目录项可能指向同一个桶
+                if(!visited.add(head)) continue;
+                long[] entries = readChain(head);
+                for(int i = 1; i < entries.length; i += 2) {
+                    uids.add(entries[i]);
+                }
+            }
+            return uids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void insert(long hash, long uid) throws Exception {
+        lock.writeLock().lock();
+        try {
+            while(true) {
+                int slot = slotOf(hash);
+                long head = directory[slot];
+                List<Long> chain = new ArrayList<>();
+                if(tryInsert(head, hash, uid, chain)) {
+                    return;
+                }
+                int localDepth = bucketDepth(head);
+                if(localDepth < MAX_DEPTH && canSplit(head)) {
+                    if(localDepth == globalDepth) {
+                        doubleDirectory();
+                    }
+                    split(slot, chain, localDepth);
+                    continue;
+                }
+                // 哈希值完全相同或目录已达上限，追加溢出桶
+                long[] entry = {hash, uid};
+                long overflow = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(localDepth, 0, entry, 0, 1));
+                DataItem last = dm.read(chain.get(chain.size()-1));
+                try {
+                    last.before();
+                    SubArray sa = last.data();
+                    Parser.writeLong(sa.raw, sa.start+BUCKET_OVERFLOW_OFFSET, overflow);
+                    last.after(TransactionManagerImpl.SUPER_XID);
+                } finally {
+                    last.release();
+                }
+                return;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // 在桶链中找到空位插入，链上的桶都满时返回false，并在chain中返回链上的桶
+    private boolean tryInsert(long head, long hash, long uid, List<Long> chain) throws Exception {
+        long bucketUid = head;
+        while(bucketUid != 0) {
+            chain.add(bucketUid);
+            DataItem di = dm.read(bucketUid);
+            try {
+                SubArray sa = di.data();
+                int count = Parser.readShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET);
+                if(count < BUCKET_CAPACITY) {
+                    di.before();
+                    int pos = sa.start+BUCKET_HEADER_SIZE+count*ENTRY_SIZE;
+                    Parser.writeLong(sa.raw, pos, hash);
+                    Parser.writeLong(sa.raw, pos+8, uid);
+                    Parser.writeShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET, (short)(count+1));
+                    di.after(TransactionManagerImpl.SUPER_XID);
+                    return true;
+                }
+                bucketUid = Parser.readLong(sa.raw, sa.start+BUCKET_OVERFLOW_OFFSET);
+            } finally {
+                di.release();
+            }
+        }
+        return false;
+    }
+
+    private int bucketDepth(long bucketUid) throws Exception {
+        DataItem di = dm.read(bucketUid);
+        try {
+            SubArray sa = di.data();
+            return sa.raw[sa.start+BUCKET_DEPTH_OFFSET];
+        } finally {
+            di.release();
+        }
+    }
+
+    // 读出桶链上的所有条目，依次为[hash, uid]
+    private long[] readChain(long head) throws Exception {
+        long[] entries = new long[16];
+        int n = 0;
+        long bucketUid = head;
+        while(bucketUid != 0) {
+            DataItem di = dm.read(bucketUid);
+            try {
+                SubArray sa = di.data();
+                int count = Parser.readShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET);
+                if(n + count*2 > entries.length) {
+                    entries = Arrays.copyOf(entries, Math.max(entries.length*2, n + count*2));
+                }
+                for(int i = 0; i < count*2; i ++) {
+                    entries[n ++] = Parser.readLong(sa.raw, sa.start+BUCKET_HEADER_SIZE+i*8);
+                }
+                bucketUid = Parser.readLong(sa.raw, sa.start+BUCKET_OVERFLOW_OFFSET);
+            } finally {
+                di.release();
+            }
+        }
+        return Arrays.copyOf(entries, n);
+    }
+
+    // 桶链中存在不同的哈希值时分裂才有意义
+    private boolean canSplit(long head) throws Exception {
+        long[] entries = readChain(head);
+        for(int i = 2; i < entries.length; i += 2) {
+            if(entries[i] != entries[0]) return true;
+        }
+        return false;
+    }
+
+    // 按第localDepth位把桶链分成两条，原来的链保留该位为0的条目
+    private void split(int slot, List<Long> chain, int localDepth) throws Exception {
+        long[] entries = readChain(chain.get(0));
+        long bit = 1L << localDepth;
+        long[] zeros = new long[entries.length], ones = new long[entries.length];
+        int nz = 0, no = 0;
+        for(int i = 0; i < entries.length; i += 2) {
+            if((entries[i] & bit) == 0) {
+                zeros[nz ++] = entries[i];
+                zeros[nz ++] = entries[i+1];
+            } else {
+                ones[no ++] = entries[i];
+                ones[no ++] = entries[i+1];
+            }
+        }
+        int newDepth = localDepth+1;
+        rewriteChain(chain, newDepth, zeros, nz/2);
+        long newHead = newChain(newDepth, ones, no/2);
+
+        // 低localDepth位与slot相同且第localDepth位为1的目录项指向新桶
+        int low = (int)(slot & (bit - 1));
+        for(int i = low; i < directory.length; i += (int)bit) {
+            if((i & bit) != 0) {
+                setDirectory(i, newHead);
+            }
+        }
+    }
+
+    // 把条目依次写回原有的桶链，多余的桶保留为空桶
+    private void rewriteChain(List<Long> chain, int depth, long[] entries, int count) throws Exception {
+        int written = 0;
+        for(int c = 0; c < chain.size(); c ++) {
+            int n = Math.min(BUCKET_CAPACITY, count - written);
+            DataItem di = dm.read(chain.get(c));
+            try {
+                di.before();
+                SubArray sa = di.data();
+                sa.raw[sa.start+BUCKET_DEPTH_OFFSET] = (byte)depth;
+                Parser.writeShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET, (short)n);
+                for(int i = 0; i < n*2; i ++) {
+                    Parser.writeLong(sa.raw, sa.start+BUCKET_HEADER_SIZE+i*8, entries[written*2+i]);
+                }
+                di.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                di.release();
+            }
+            written += n;
+        }
+    }
+
+    // 创建新的桶链，从尾部开始插入以便写入溢出指针
+    private long newChain(int depth, long[] entries, int count) throws Exception {
+        int buckets = Math.max(1, (count + BUCKET_CAPACITY - 1) / BUCKET_CAPACITY);
+        long next = 0;
+        for(int b = buckets-1; b >= 0; b --) {
+            int from = b*BUCKET_CAPACITY;
+            int n = Math.min(BUCKET_CAPACITY, count - from);
+            next = dm.insert(TransactionManagerImpl.SUPER_XID, newBucketRaw(depth, next, entries, from, n));
+        }
+        return next;
+    }
+
+    // 目录加倍：新的一半复制旧的一半，先写目录段，最后更新引导节点
+    private void doubleDirectory() throws Exception {
+        int oldSize = directory.length;
+        directory = Arrays.copyOf(directory, oldSize*2);
+        System.arraycopy(directory, 0, directory, oldSize, oldSize);
+        int oldSegs = (oldSize + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS;
+        int newSegs = (oldSize*2 + SEGMENT_SLOTS - 1) / SEGMENT_SLOTS;
+        if(newSegs == oldSegs) {
+            // 仍在第一个目录段内
+            DataItem seg = dm.read(segments[0]);
+            try {
+                seg.before();
+                SubArray sa = seg.data();
+                for(int i = oldSize; i < oldSize*2; i ++) {
+                    Parser.writeLong(sa.raw, sa.start+i*8, directory[i]);
+                }
+                seg.after(TransactionManagerImpl.SUPER_XID);
+            } finally {
+                seg.release();
+            }
+        } else {
+            for(int s = oldSegs; s < newSegs; s ++) {
+                segments[s] = dm.insert(TransactionManagerImpl.SUPER_XID, longsToBytes(directory, s*SEGMENT_SLOTS, SEGMENT_SLOTS));
+            }
+        }
+        globalDepth ++;
+        bootDataItem.before();
+        SubArray boot = bootDataItem.data();
+        boot.raw[boot.start+BOOT_DEPTH_OFFSET] = (byte)globalDepth;
+        Parser.writeShort(boot.raw, boot.start+BOOT_SEG_COUNT_OFFSET, (short)newSegs);
+        for(int s = oldSegs; s < newSegs; s ++) {
+            Parser.writeLong(boot.raw, boot.start+BOOT_SEGMENTS_OFFSET+s*8, segments[s]);
+        }
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
+    private void setDirectory(int i, long bucketUid) throws Exception {
+        directory[i] = bucketUid;
+        DataItem seg = dm.read(segments[i / SEGMENT_SLOTS]);
+        try {
+            seg.before();
+            SubArray sa = seg.data();
+            Parser.writeLong(sa.raw, sa.start+(i % SEGMENT_SLOTS)*8, bucketUid);
+            seg.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            seg.release();
+        }
+    }
+
+    // 删除哈希值和uid都匹配的条目，用桶中最后一个条目填补空位
+    public void delete(long hash, long uid) throws Exception {
+        lock.writeLock().lock();
+        try {
+            long bucketUid = directory[slotOf(hash)];
+            while(bucketUid != 0) {
+                DataItem di = dm.read(bucketUid);
+                try {
+                    SubArray sa = di.data();
+                    int count = Parser.readShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET);
+                    for(int i = 0; i < count; i ++) {
+                        int pos = sa.start+BUCKET_HEADER_SIZE+i*ENTRY_SIZE;
+                        if(Parser.readLong(sa.raw, pos) == hash && Parser.readLong(sa.raw, pos+8) == uid) {
+                            di.before();
+                            int last = sa.start+BUCKET_HEADER_SIZE+(count-1)*ENTRY_SIZE;
+                            System.arraycopy(sa.raw, last, sa.raw, pos, ENTRY_SIZE);
+                            Parser.writeShort(sa.raw, sa.start+BUCKET_COUNT_OFFSET, (short)(count-1));
+                            di.after(TransactionManagerImpl.SUPER_XID);
+                            return;
+                        }
+                    }
+                    bucketUid = Parser.readLong(sa.raw, sa.start+BUCKET_OVERFLOW_OFFSET);
+                } finally {
+                    di.release();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int getGlobalDepth() {
+        return globalDepth;
+    }
+
+    public void close() {
+        bootDataItem.release();
+    }
+}
@@ -0,0 +1,13 @@
+package com.lyhn.streamlinedb.backend.im;
+
+/**
+ * B+树上的范围游标，除uid外还能取得最近一次next返回的条目在叶子中保存的内容，
+ * 用于不读取记录的索引扫描
+ */
+public interface IndexCursor extends UidCursor {
+    // 定长键的树中条目的键
+    long key();
+
+    // 带附加数据的树中条目的附加数据，没有保存时返回null
+    byte[] payload();
+}
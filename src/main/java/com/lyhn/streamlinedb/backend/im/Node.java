@@ -2,18 +2,21 @@ package com.lyhn.streamlinedb.backend.im;
 
 import com.lyhn.streamlinedb.backend.common.SubArray;
 import com.lyhn.streamlinedb.backend.dm.dataItem.DataItem;
+import com.lyhn.streamlinedb.backend.dm.dataItem.DataItemImpl;
+import com.lyhn.streamlinedb.backend.dm.page.PageX;
 import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
 import com.lyhn.streamlinedb.backend.utils.Parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Node负责处理节点的插入、分裂和查找等操作
  * Node结构如下：
  * [LeafFlag（标识节点是否为叶子节点）][KeyNumber（节点中键的数量）][SiblingUid（兄弟节点的UID）]
  * [Son0][Key0]（子节点引用和键值的交替排列）[Son1][Key1]...[SonN][KeyN]
+ *
+ * 读操作先不加读锁乐观地读取，再用版本表校验期间没有写者修改过节点，
+ * 连续校验失败才退化为加读锁；写操作持有写锁的同时维护版本。
  */
 
 
@@ -24,10 +27,16 @@ public class Node {
     // 节点头大小
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
-    // 平衡因子
+    // 默认平衡因子，节点最多容纳BALANCE_NUMBER*2个键，超过即分裂
     static final int BALANCE_NUMBER = 32;
-    // 节点总大小
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    static final int MIN_BALANCE = 2;
+    // 最大平衡因子，此时一个节点恰好占满一页
+    static final int MAX_BALANCE = ((PageX.MAX_FREE_SPACE - DataItemImpl.OF_DATA - NODE_HEADER_SIZE) / (2*8) - 2) / 2;
+    // 乐观读的最大尝试次数
+    static final int OPTIMISTIC_RETRY = 4;
+
+    // 所有B+树共享的节点版本表，节点uid在同一个DataManager内唯一
+    static final NodeVersions VERSIONS = new NodeVersions();
 
     BPlusTree tree;
     DataItem dataItem;
@@ -50,41 +59,51 @@ public class Node {
 
     // 设置和获取键数量
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.writeShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return Parser.readShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     // 设置和获取兄弟节点UID
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.writeLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.readLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     // 设置和获取第k个子节点
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.writeLong(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2), uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.readLong(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2));
     }
     // 设置和获取第k个键
     static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        Parser.writeLong(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2)+8, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.readLong(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2)+8);
+    }
+
+    // 二分查找第一个大于等于key的键的位置，不存在则返回noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     // 从指定位置复制数据
@@ -96,24 +115,21 @@ public class Node {
     // 从指定位置开始移动数据（为插入腾出空间）
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
-        }
+        int end = raw.end;
+        System.arraycopy(raw.raw, begin-(8*2), raw.raw, begin, end-begin);
     }
 
     static void shiftRawForDelete(SubArray raw, int kth) {
         int noKeys = getRawNoKeys(raw);
         int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
         int end = raw.start+NODE_HEADER_SIZE+(noKeys-1)*(8*2)+(8*2)-1;
-        for(int i = begin; i < end; i ++) {
-            raw.raw[i] = raw.raw[i+(8*2)];
-        }
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, end-begin);
     }
 
     // 创建新的根节点（分裂时使用）
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(long left, long right, long key, int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -129,8 +145,9 @@ public class Node {
         return raw.raw;
     }
 
-    public static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    public static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -139,11 +156,21 @@ public class Node {
         return raw.raw;
     }
 
+    // 平衡因子为balance时的节点大小
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*(balance*2+2);
+    }
+
+    // 节点最多能容纳的键数量，乐观读时用来约束可能读到的半写数据
+    static int maxKeys(SubArray raw) {
+        return (raw.end - raw.start - NODE_HEADER_SIZE) / (2*8);
+    }
+
     // 从存储加载节点
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
         DataItem di = bTree.dm.read(uid);
         assert di != null;
-        Node n = new Node();
+        Node n = bTree.keyType == BPlusTree.KEY_BYTES ? new VarNode() : new Node();
         n.tree = bTree;
         n.dataItem = di;
         n.raw = di.data();
@@ -155,89 +182,131 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    // 乐观读：读取过程中抛出异常或返回null都视为读到了修改一半的数据
+    <T> T optimisticRead(Supplier<T> reader) {
+        for(int i = 0; i < OPTIMISTIC_RETRY; i ++) {
+            long stamp = VERSIONS.readBegin(uid);
+            if(stamp < 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            T res;
+            try {
+                res = reader.get();
+            } catch(RuntimeException e) {
+                res = null;
+            }
+            if(res != null && VERSIONS.validate(uid, stamp)) {
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // 修改节点前调用，获取写锁并使正在进行的乐观读失效
+    void beginWrite() {
+        dataItem.before();
+        VERSIONS.writeBegin(uid);
+    }
+
+    // 修改节点后调用，commit为false时撤销修改
+    void endWrite(boolean commit) {
+        try {
+            if(commit) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        } finally {
+            VERSIONS.writeEnd(uid);
+        }
+    }
+
+    public boolean isLeaf() {
+        return optimisticRead(() -> getRawIfLeaf(raw));
+    }
+
     class SearchNextRes {
+        boolean isLeaf;
         long uid;
         long siblingUid;
     }
 
-    // 查询给定键的下一个节点
+    // 查询给定键的下一个节点，同时返回节点是否为叶子，下降时每层只需加载一次节点
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            // 遍历节点中的所有键
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                if(key < ik) {
-                    // 找到第一个大于给定键的位置
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    // 返回对应的子节点引用
-                    return res;
-                }
-            }
-            res.uid = 0;
-            // 未找到则返回兄弟节点引用
-            res.siblingUid = getRawSibling(raw);
-            return res;
+        return optimisticRead(() -> doSearchNext(key));
+    }
 
-        } finally {
-            dataItem.rUnLock();
+    private SearchNextRes doSearchNext(long key) {
+        SearchNextRes res = new SearchNextRes();
+        if(getRawIfLeaf(raw)) {
+            res.isLeaf = true;
+            return res;
+        }
+        int noKeys = Math.min(getRawNoKeys(raw), maxKeys(raw));
+        // 找到第一个大于等于给定键的位置，重复的键可能跨越多个叶子，从最左边的叶子开始
+        int kth = lowerBound(raw, noKeys, key);
+        if(kth < noKeys) {
+            // 返回对应的子节点引用
+            res.uid = getRawKthSon(raw, kth);
+            res.siblingUid = 0;
+            return res;
         }
+        res.uid = 0;
+        // 未找到则返回兄弟节点引用
+        res.siblingUid = getRawSibling(raw);
+        return res;
     }
 
     class LeafSearchRangeRes {
-        List<Long> uids;
+        // 前count个元素有效
+        long[] uids;
+        // 定长键的树中每个uid对应的键，带附加数据的树中每个uid对应的附加数据
+        long[] keys;
+        byte[][] payloads;
+        int count;
         long siblingUid;
     }
 
     // 范围查询（叶子节点专用）
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                // 找到第一个大于等于左边界的位置
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
+        return optimisticRead(() -> doLeafSearchRange(leftKey, rightKey));
+    }
+
+    private LeafSearchRangeRes doLeafSearchRange(long leftKey, long rightKey) {
+        int noKeys = Math.min(getRawNoKeys(raw), maxKeys(raw));
+        // 找到第一个大于等于左边界的位置
+        int kth = lowerBound(raw, noKeys, leftKey);
+        // 收集所有符合条件的子节点引用
+        long[] uids = new long[noKeys - kth];
+        long[] keys = new long[noKeys - kth];
+        int count = 0;
+        while(kth < noKeys) {
+            long ik = getRawKthKey(raw, kth);
+            if(ik <= rightKey) {
+                keys[count] = ik;
+                uids[count ++] = getRawKthSon(raw, kth);
                 kth ++;
+            } else {
+                break;
             }
-            // 收集所有符合条件的子节点引用
-            List<Long> uids = new ArrayList<>();
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
-                }
-            }
-            long siblingUid = 0;
-            if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            // 如果遍历到末尾，返回兄弟节点引用
-            res.siblingUid = siblingUid;
-            return res;
-        } finally {
-            dataItem.rUnLock();
         }
+        long siblingUid = 0;
+        if(kth == noKeys) {
+            siblingUid = getRawSibling(raw);
+        }
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.uids = uids;
+        res.keys = keys;
+        res.count = count;
+        // 如果遍历到末尾，返回兄弟节点引用
+        res.siblingUid = siblingUid;
+        return res;
     }
 
     class InsertAndSplitRes {
@@ -250,7 +319,7 @@ public class Node {
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
-        dataItem.before();
+        beginWrite();
         try {
             // 尝试插入新的键值对
             success = insert(uid, key);
@@ -275,25 +344,13 @@ public class Node {
                 return res;
             }
         } finally {
-            if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
-            } else {
-                dataItem.unBefore();
-            }
+            endWrite(err == null && success);
         }
     }
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
-        }
+        int kth = lowerBound(raw, noKeys, key);
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if(getRawIfLeaf(raw)) {
@@ -313,7 +370,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balance*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -322,13 +379,15 @@ public class Node {
 
     // 分裂操作
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = tree.balance;
+        int size = nodeSize(balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
@@ -337,19 +396,29 @@ public class Node {
         return res;
     }
 
-    public boolean delete(long key) {
+    class DeleteRes {
+        boolean deleted;
+        long siblingUid;
+    }
+
+    // 删除键和uid都匹配的条目，查找到节点末尾仍未找到时返回兄弟节点引用，由调用者继续向右查找
+    public DeleteRes delete(long key, long uid) {
+        DeleteRes res = new DeleteRes();
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik == key) break;
-            if(ik > key) return false;
+        int kth = lowerBound(raw, noKeys, key);
+        while(kth < noKeys && getRawKthKey(raw, kth) == key) {
+            if(getRawKthSon(raw, kth) == uid) {
+                shiftRawForDelete(raw, kth);
+                setRawNoKeys(raw, noKeys-1);
+                res.deleted = true;
+                return res;
+            }
             kth ++;
         }
-        if(kth == noKeys) return false;
-        shiftRawForDelete(raw, kth);
-        setRawNoKeys(raw, noKeys-1);
-        return true;
+        if(kth == noKeys) {
+            res.siblingUid = getRawSibling(raw);
+        }
+        return res;
     }
 
     @Override
@@ -0,0 +1,50 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 节点版本表，用于不加读锁的乐观读
+ *
+ * 节点uid散列到固定数量的槽，每个槽有两个计数器：开始写次数和结束写次数。
+ * 写者在持有节点写锁后先增加开始计数，修改完成后增加结束计数；
+ * 读者读取前两者相等说明没有进行中的写，读完后开始计数不变说明读到的是一致的快照。
+ * 不同节点可能落在同一个槽上，只会造成多余的重试，不影响正确性。
+ */
+class NodeVersions {
+    // 槽数量，必须是2的幂
+    private static final int SLOT_NUMBER = 4096;
+
+    // 第i个槽：[2i]开始写次数，[2i+1]结束写次数
+    private final AtomicLongArray counters = new AtomicLongArray(SLOT_NUMBER * 2);
+
+    // 开始乐观读，返回版本戳；有写者正在修改时返回-1
+    long readBegin(long uid) {
+        int i = slotOf(uid);
+        // 先读结束计数再读开始计数，两者相等时此前开始的写都已结束
+        long end = counters.get(i + 1);
+        long begin = counters.get(i);
+        return begin == end ? begin : -1;
+    }
+
+    // 校验读取期间没有写者开始修改
+    boolean validate(long uid, long stamp) {
+        VarHandle.acquireFence();
+        return counters.get(slotOf(uid)) == stamp;
+    }
+
+    void writeBegin(long uid) {
+        counters.incrementAndGet(slotOf(uid));
+        // 保证之后对节点的修改不会重排到计数之前
+        VarHandle.storeStoreFence();
+    }
+
+    void writeEnd(long uid) {
+        counters.incrementAndGet(slotOf(uid) + 1);
+    }
+
+    private static int slotOf(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L;
+        return ((int)(h >>> 32) & (SLOT_NUMBER - 1)) << 1;
+    }
+}
@@ -0,0 +1,51 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import java.util.List;
+
+/**
+ * 按顺序逐个返回索引查到的uid
+ * 调用之间不持有任何节点，可以随时停止遍历
+ */
+public interface UidCursor {
+    boolean hasNext() throws Exception;
+
+    long next();
+
+    // 依次遍历若干游标
+    static UidCursor concat(UidCursor... cursors) {
+        return new UidCursor() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() throws Exception {
+                while(i < cursors.length) {
+                    if(cursors[i].hasNext()) return true;
+                    i ++;
+                }
+                return false;
+            }
+
+            @Override
+            public long next() {
+                return cursors[i].next();
+            }
+        };
+    }
+
+    // 遍历已经查出的uid
+    static UidCursor of(List<Long> uids) {
+        return new UidCursor() {
+            int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < uids.size();
+            }
+
+            @Override
+            public long next() {
+                return uids.get(pos ++);
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import java.util.Arrays;
+
+/**
+ * 按uid升序排列、没有重复的uid集合，用于多个索引查询结果的交集和并集
+ */
+public class UidSet {
+    private final long[] uids;
+    private final int size;
+
+    private UidSet(long[] uids, int size) {
+        this.uids = uids;
+        this.size = size;
+    }
+
+    // 读出游标中的全部uid，排序并去重
+    public static UidSet of(UidCursor cursor) throws Exception {
+        long[] buf = new long[16];
+        int n = 0;
+        while(cursor.hasNext()) {
+            if(n == buf.length) {
+                buf = Arrays.copyOf(buf, n*2);
+            }
+            buf[n ++] = cursor.next();
+        }
+        Arrays.sort(buf, 0, n);
+        int m = 0;
+        for(int i = 0; i < n; i ++) {
+            if(m == 0 || buf[i] != buf[m-1]) {
+                buf[m ++] = buf[i];
+            }
+        }
+        return new UidSet(buf, m);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public UidSet intersect(UidSet other) {
+        long[] res = new long[Math.min(size, other.size)];
+        int i = 0, j = 0, n = 0;
+        while(i < size && j < other.size) {
+            if(uids[i] < other.uids[j]) {
+                i ++;
+            } else if(uids[i] > other.uids[j]) {
+                j ++;
+            } else {
+                res[n ++] = uids[i];
+                i ++;
+                j ++;
+            }
+        }
+        return new UidSet(res, n);
+    }
+
+    public UidSet union(UidSet other) {
+        long[] res = new long[size + other.size];
+        int i = 0, j = 0, n = 0;
+        while(i < size || j < other.size) {
+            if(j == other.size || (i < size && uids[i] < other.uids[j])) {
+                res[n ++] = uids[i ++];
+            } else if(i == size || other.uids[j] < uids[i]) {
+                res[n ++] = other.uids[j ++];
+            } else {
+                res[n ++] = uids[i ++];
+                j ++;
+            }
+        }
+        return new UidSet(res, n);
+    }
+
+    public UidCursor cursor() {
+        return new UidCursor() {
+            int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < size;
+            }
+
+            @Override
+            public long next() {
+                return uids[pos ++];
+            }
+        };
+    }
+}
@@ -0,0 +1,448 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import com.lyhn.streamlinedb.backend.common.SubArray;
+import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * 变长键节点，键是按无符号字节序比较的字节串
+ * VarNode结构如下：
+ * [LeafFlag][KeyNumber][SiblingUid][PrefixLen(2)][Prefix]
+ * [Slot0][Slot1]...[SlotN]（每个槽2字节，记录条目相对节点起点的偏移）
+ * [Son0][SuffixLen0][Suffix0]...[SonN][SuffixLenN][SuffixN]
+ * 带附加数据的树（覆盖索引）的叶子条目在后缀之后还有[PayloadLen(2)][Payload]，PayloadLen为-1表示没有保存附加数据
+ *
+ * 节点内所有键的公共前缀只存储一次（前缀压缩），条目只存储去掉前缀后的后缀。
+ * 内部节点最后一个键为无穷大，SuffixLen记为-1。
+ * 叶子分裂时上推的分隔键截断为能区分左右两侧的最短前缀（后缀截断）。
+ * 节点按字节数而不是键数量分裂，每次修改都整体重新编码。
+ */
+public class VarNode extends Node {
+    static final int PREFIX_LEN_OFFSET = NODE_HEADER_SIZE;
+    static final int PREFIX_OFFSET = PREFIX_LEN_OFFSET+2;
+    static final int SLOT_SIZE = 2;
+    // 条目头：[Son(8)][SuffixLen(2)]
+    static final int ENTRY_HEADER_SIZE = 8+2;
+    static final short INF_LEN = -1;
+    static final int PAYLOAD_HEADER_SIZE = 2;
+    static final short NO_PAYLOAD = -1;
+
+    // 节点大小为nodeSize时允许的最大键长度，保证分裂后的两个节点都能放下
+    static int maxKeyLength(int nodeSize) {
+        return (nodeSize - PREFIX_OFFSET) / 6 - SLOT_SIZE - ENTRY_HEADER_SIZE;
+    }
+
+    static int getRawPrefixLen(SubArray raw) {
+        return Parser.readShort(raw.raw, raw.start+PREFIX_LEN_OFFSET);
+    }
+
+    // 第k个条目在字节数组中的绝对位置
+    static int entryPos(SubArray raw, int prefixLen, int kth) {
+        return raw.start + Parser.readShort(raw.raw, raw.start+PREFIX_OFFSET+prefixLen+kth*SLOT_SIZE);
+    }
+
+    static long getRawKthSon(SubArray raw, int prefixLen, int kth) {
+        return Parser.readLong(raw.raw, entryPos(raw, prefixLen, kth));
+    }
+
+    // 键与节点公共前缀比较：小于0表示键小于节点中所有有限键，大于0表示大于所有有限键，0表示键以该前缀开头
+    static int comparePrefix(byte[] key, SubArray raw, int prefixLen) {
+        int m = Math.min(key.length, prefixLen);
+        int ps = raw.start+PREFIX_OFFSET;
+        int c = Arrays.compareUnsigned(key, 0, m, raw.raw, ps, ps+m);
+        if(c != 0) return c;
+        return key.length < prefixLen ? -1 : 0;
+    }
+
+    // 键与第k个键比较，prefixCmp为comparePrefix的结果
+    static int compareKth(byte[] key, SubArray raw, int prefixLen, int prefixCmp, int kth) {
+        int pos = entryPos(raw, prefixLen, kth);
+        short suffixLen = Parser.readShort(raw.raw, pos+8);
+        if(suffixLen == INF_LEN) return -1;
+        if(prefixCmp != 0) return prefixCmp;
+        int ss = pos+ENTRY_HEADER_SIZE;
+        return Arrays.compareUnsigned(key, prefixLen, key.length, raw.raw, ss, ss+suffixLen);
+    }
+
+    // 第一个大于等于key的键的位置，不存在则返回noKeys
+    static int lowerBound(SubArray raw, int noKeys, byte[] key) {
+        int prefixLen = getRawPrefixLen(raw);
+        int prefixCmp = comparePrefix(key, raw, prefixLen);
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(compareKth(key, raw, prefixLen, prefixCmp, mid) > 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // 节点中最多可能的键数量，乐观读时用来约束可能读到的半写数据
+    static int maxVarKeys(SubArray raw) {
+        return (raw.end - raw.start - PREFIX_OFFSET) / (SLOT_SIZE + ENTRY_HEADER_SIZE);
+    }
+
+    // 第k个条目的附加数据，没有保存时返回null
+    static byte[] getRawKthPayload(SubArray raw, int prefixLen, int kth) {
+        int pos = entryPos(raw, prefixLen, kth);
+        int p = pos + ENTRY_HEADER_SIZE + Parser.readShort(raw.raw, pos+8);
+        short len = Parser.readShort(raw.raw, p);
+        return len == NO_PAYLOAD ? null : Arrays.copyOfRange(raw.raw, p+PAYLOAD_HEADER_SIZE, p+PAYLOAD_HEADER_SIZE+len);
+    }
+
+    // 解码后的条目，无穷大键为null；带附加数据的叶子payloads不为null
+    static class Entries {
+        int n;
+        long[] sons;
+        byte[][] keys;
+        byte[][] payloads;
+
+        Entries(int capacity) {
+            this(capacity, false);
+        }
+
+        Entries(int capacity, boolean withPayload) {
+            sons = new long[capacity];
+            keys = new byte[capacity][];
+            payloads = withPayload ? new byte[capacity][] : null;
+        }
+
+        void insert(int kth, long son, byte[] key) {
+            insert(kth, son, key, null);
+        }
+
+        void insert(int kth, long son, byte[] key, byte[] payload) {
+            System.arraycopy(sons, kth, sons, kth+1, n-kth);
+            System.arraycopy(keys, kth, keys, kth+1, n-kth);
+            sons[kth] = son;
+            keys[kth] = key;
+            if(payloads != null) {
+                System.arraycopy(payloads, kth, payloads, kth+1, n-kth);
+                payloads[kth] = payload;
+            }
+            n ++;
+        }
+
+        void remove(int kth) {
+            System.arraycopy(sons, kth+1, sons, kth, n-kth-1);
+            System.arraycopy(keys, kth+1, keys, kth, n-kth-1);
+            if(payloads != null) {
+                System.arraycopy(payloads, kth+1, payloads, kth, n-kth-1);
+            }
+            n --;
+        }
+    }
+
+    static Entries decode(SubArray raw) {
+        return decode(raw, false);
+    }
+
+    static Entries decode(SubArray raw, boolean withPayload) {
+        int noKeys = getRawNoKeys(raw);
+        int prefixLen = getRawPrefixLen(raw);
+        Entries e = new Entries(noKeys+2, withPayload);
+        int ps = raw.start+PREFIX_OFFSET;
+        for(int i = 0; i < noKeys; i ++) {
+            int pos = entryPos(raw, prefixLen, i);
+            e.sons[i] = Parser.readLong(raw.raw, pos);
+            short suffixLen = Parser.readShort(raw.raw, pos+8);
+            if(suffixLen != INF_LEN) {
+                byte[] key = new byte[prefixLen+suffixLen];
+                System.arraycopy(raw.raw, ps, key, 0, prefixLen);
+                System.arraycopy(raw.raw, pos+ENTRY_HEADER_SIZE, key, prefixLen, suffixLen);
+                e.keys[i] = key;
+            }
+            if(withPayload) {
+                e.payloads[i] = getRawKthPayload(raw, prefixLen, i);
+            }
+        }
+        e.n = noKeys;
+        return e;
+    }
+
+    // [from, to)内所有有限键的公共前缀长度
+    static int commonPrefix(Entries e, int from, int to) {
+        byte[] first = null;
+        int len = 0;
+        for(int i = from; i < to; i ++) {
+            byte[] k = e.keys[i];
+            if(k == null) continue;
+            if(first == null) {
+                first = k;
+                len = k.length;
+            } else {
+                int m = Arrays.mismatch(first, 0, len, k, 0, Math.min(len, k.length));
+                if(m >= 0) len = m;
+                else len = Math.min(len, k.length);
+            }
+        }
+        return len;
+    }
+
+    static int encodedSize(Entries e, int from, int to) {
+        int prefixLen = commonPrefix(e, from, to);
+        int size = PREFIX_OFFSET + prefixLen + (to-from)*SLOT_SIZE;
+        for(int i = from; i < to; i ++) {
+            size += ENTRY_HEADER_SIZE + payloadSize(e, i);
+            if(e.keys[i] != null) size += e.keys[i].length - prefixLen;
+        }
+        return size;
+    }
+
+    private static int payloadSize(Entries e, int kth) {
+        if(e.payloads == null) return 0;
+        return PAYLOAD_HEADER_SIZE + (e.payloads[kth] == null ? 0 : e.payloads[kth].length);
+    }
+
+    // 将[from, to)内的条目编码到raw中，调用者需保证空间足够
+    static void encode(SubArray raw, boolean isLeaf, long sibling, Entries e, int from, int to) {
+        int prefixLen = commonPrefix(e, from, to);
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, to-from);
+        setRawSibling(raw, sibling);
+        Parser.writeShort(raw.raw, raw.start+PREFIX_LEN_OFFSET, (short)prefixLen);
+        if(prefixLen > 0) {
+            byte[] first = null;
+            for(int i = from; first == null; i ++) first = e.keys[i];
+            System.arraycopy(first, 0, raw.raw, raw.start+PREFIX_OFFSET, prefixLen);
+        }
+        int slot = raw.start+PREFIX_OFFSET+prefixLen;
+        int pos = slot + (to-from)*SLOT_SIZE;
+        for(int i = from; i < to; i ++) {
+            Parser.writeShort(raw.raw, slot, (short)(pos-raw.start));
+            slot += SLOT_SIZE;
+            Parser.writeLong(raw.raw, pos, e.sons[i]);
+            byte[] k = e.keys[i];
+            if(k == null) {
+                Parser.writeShort(raw.raw, pos+8, INF_LEN);
+                pos += ENTRY_HEADER_SIZE;
+            } else {
+                int suffixLen = k.length - prefixLen;
+                Parser.writeShort(raw.raw, pos+8, (short)suffixLen);
+                System.arraycopy(k, prefixLen, raw.raw, pos+ENTRY_HEADER_SIZE, suffixLen);
+                pos += ENTRY_HEADER_SIZE + suffixLen;
+            }
+            if(e.payloads != null) {
+                byte[] p = e.payloads[i];
+                Parser.writeShort(raw.raw, pos, p == null ? NO_PAYLOAD : (short)p.length);
+                if(p != null) {
+                    System.arraycopy(p, 0, raw.raw, pos+PAYLOAD_HEADER_SIZE, p.length);
+                }
+                pos += payloadSize(e, i);
+            }
+        }
+    }
+
+    // 创建新的根节点（分裂时使用）
+    static byte[] newRootRaw(long left, long right, byte[] key, int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        Entries e = new Entries(2);
+        e.insert(0, left, key);
+        // 第二个子节点的键为无穷大
+        e.insert(1, right, null);
+        encode(raw, false, 0, e, 0, 2);
+        return raw.raw;
+    }
+
+    public static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        encode(raw, true, 0, new Entries(0), 0, 0);
+        return raw.raw;
+    }
+
+    // 严格大于left且不大于right的最短键，作为叶子分裂时的分隔键
+    static byte[] shortestSeparator(byte[] left, byte[] right) {
+        int m = Arrays.mismatch(left, right);
+        if(m < 0 || m >= right.length) return right;
+        return Arrays.copyOf(right, m+1);
+    }
+
+    // 查询给定键的下一个节点
+    public SearchNextRes searchNext(byte[] key) {
+        return optimisticRead(() -> doSearchNext(key));
+    }
+
+    private SearchNextRes doSearchNext(byte[] key) {
+        SearchNextRes res = new SearchNextRes();
+        if(getRawIfLeaf(raw)) {
+            res.isLeaf = true;
+            return res;
+        }
+        int noKeys = Math.min(getRawNoKeys(raw), maxVarKeys(raw));
+        // 找到第一个大于等于给定键的位置
+        int kth = lowerBound(raw, noKeys, key);
+        if(kth < noKeys) {
+            res.uid = getRawKthSon(raw, getRawPrefixLen(raw), kth);
+            return res;
+        }
+        res.siblingUid = getRawSibling(raw);
+        return res;
+    }
+
+    // 范围查询（叶子节点专用），leftKey为null表示无下界，rightKey为null表示无上界
+    public LeafSearchRangeRes leafSearchRange(byte[] leftKey, byte[] rightKey, boolean rightInclusive) {
+        return optimisticRead(() -> doLeafSearchRange(leftKey, rightKey, rightInclusive));
+    }
+
+    private LeafSearchRangeRes doLeafSearchRange(byte[] leftKey, byte[] rightKey, boolean rightInclusive) {
+        int noKeys = Math.min(getRawNoKeys(raw), maxVarKeys(raw));
+        int prefixLen = getRawPrefixLen(raw);
+        int kth = leftKey == null ? 0 : lowerBound(raw, noKeys, leftKey);
+        int rightCmp = rightKey == null ? 0 : comparePrefix(rightKey, raw, prefixLen);
+        long[] uids = new long[noKeys - kth];
+        byte[][] payloads = tree.hasPayload() ? new byte[noKeys - kth][] : null;
+        int count = 0;
+        while(kth < noKeys) {
+            if(rightKey != null) {
+                int c = compareKth(rightKey, raw, prefixLen, rightCmp, kth);
+                if(c < 0 || (c == 0 && !rightInclusive)) break;
+            }
+            if(payloads != null) {
+                payloads[count] = getRawKthPayload(raw, prefixLen, kth);
+            }
+            uids[count ++] = getRawKthSon(raw, prefixLen, kth);
+            kth ++;
+        }
+        LeafSearchRangeRes res = new LeafSearchRangeRes();
+        res.uids = uids;
+        res.payloads = payloads;
+        res.count = count;
+        // 如果遍历到末尾，返回兄弟节点引用
+        if(kth == noKeys) {
+            res.siblingUid = getRawSibling(raw);
+        }
+        return res;
+    }
+
+    class VarInsertAndSplitRes {
+        long siblingUid, newSon;
+        byte[] newKey;
+    }
+
+    // 插入和分裂操作，payload只用于带附加数据的树的叶子
+    public VarInsertAndSplitRes insertAndSplit(long uid, byte[] key, byte[] payload) throws Exception {
+        boolean success = false;
+        Exception err = null;
+        VarInsertAndSplitRes res = new VarInsertAndSplitRes();
+
+        beginWrite();
+        try {
+            boolean isLeaf = getRawIfLeaf(raw);
+            Entries e = decode(raw, isLeaf && tree.hasPayload());
+            int kth = lowerBound(raw, e.n, key);
+            long sibling = getRawSibling(raw);
+            if(kth == e.n && sibling != 0) {
+                // 需要插入到兄弟节点
+                res.siblingUid = sibling;
+                return res;
+            }
+            if(isLeaf) {
+                e.insert(kth, uid, key, payload);
+            } else {
+                // 原来第kth个子节点分裂出了新节点uid，新节点接管原来的上界
+                byte[] kk = e.keys[kth];
+                e.keys[kth] = key;
+                e.insert(kth+1, uid, kk);
+            }
+            success = true;
+            if(encodedSize(e, 0, e.n) <= raw.end - raw.start) {
+                encode(raw, isLeaf, sibling, e, 0, e.n);
+                return res;
+            }
+            try {
+                split(e, isLeaf, sibling, res);
+                return res;
+            } catch(Exception ex) {
+                err = ex;
+                throw ex;
+            }
+        } finally {
+            endWrite(err == null && success);
+        }
+    }
+
+    // 按字节数从中间分裂，右半部分写入新节点
+    private void split(Entries e, boolean isLeaf, long sibling, VarInsertAndSplitRes res) throws Exception {
+        int size = raw.end - raw.start;
+        int m = splitPoint(e, size);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
+        encode(nodeRaw, isLeaf, sibling, e, m, e.n);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        encode(raw, isLeaf, son, e, 0, m);
+
+        res.newSon = son;
+        res.newKey = isLeaf ? shortestSeparator(e.keys[m-1], e.keys[m]) : e.keys[m-1];
+    }
+
+    // 选择分裂位置：从两侧后缀字节数最接近的位置开始向两边尝试，直到两半都能放进节点
+    // 新插入的键可能破坏原有的公共前缀，这时只有把它单独分出去才能放下
+    static int splitPoint(Entries e, int size) {
+        int prefixLen = commonPrefix(e, 0, e.n);
+        int total = 0;
+        for(int i = 0; i < e.n; i ++) {
+            total += entrySize(e, i, prefixLen);
+        }
+        int mid = 1, acc = entrySize(e, 0, prefixLen);
+        while(mid < e.n-1 && acc + entrySize(e, mid, prefixLen) <= total / 2) {
+            acc += entrySize(e, mid, prefixLen);
+            mid ++;
+        }
+        for(int d = 0; d < e.n; d ++) {
+            for(int m : new int[]{mid-d, mid+d}) {
+                if(m >= 1 && m <= e.n-1 && encodedSize(e, 0, m) <= size && encodedSize(e, m, e.n) <= size) {
+                    return m;
+                }
+            }
+        }
+        throw new IllegalStateException("Cannot split index node");
+    }
+
+    private static int entrySize(Entries e, int kth, int prefixLen) {
+        return SLOT_SIZE + ENTRY_HEADER_SIZE + payloadSize(e, kth) + (e.keys[kth] == null ? 0 : e.keys[kth].length - prefixLen);
+    }
+
+    // 删除键和uid都匹配的条目，查找到节点末尾仍未找到时返回兄弟节点引用
+    public DeleteRes delete(byte[] key, long uid) {
+        DeleteRes res = new DeleteRes();
+        int noKeys = getRawNoKeys(raw);
+        int prefixLen = getRawPrefixLen(raw);
+        int prefixCmp = comparePrefix(key, raw, prefixLen);
+        int kth = lowerBound(raw, noKeys, key);
+        while(kth < noKeys && compareKth(key, raw, prefixLen, prefixCmp, kth) == 0) {
+            if(getRawKthSon(raw, prefixLen, kth) == uid) {
+                Entries e = decode(raw, tree.hasPayload());
+                e.remove(kth);
+                encode(raw, getRawIfLeaf(raw), getRawSibling(raw), e, 0, e.n);
+                res.deleted = true;
+                return res;
+            }
+            kth ++;
+        }
+        if(kth == noKeys) {
+            res.siblingUid = getRawSibling(raw);
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        Entries e = decode(raw, getRawIfLeaf(raw) && tree.hasPayload());
+        sb.append("Is leaf: ").append(getRawIfLeaf(raw)).append("\n");
+        sb.append("KeyNumber: ").append(e.n).append("\n");
+        sb.append("Prefix length: ").append(getRawPrefixLen(raw)).append("\n");
+        sb.append("sibling: ").append(getRawSibling(raw)).append("\n");
+        for(int i = 0; i < e.n; i ++) {
+            sb.append("son: ").append(e.sons[i]).append(", key: ")
+                    .append(e.keys[i] == null ? "INF" : Arrays.toString(e.keys[i])).append("\n");
+        }
+        return sb.toString();
+    }
+}
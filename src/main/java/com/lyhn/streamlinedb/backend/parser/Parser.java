@@ -3,11 +3,21 @@ import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.parser.statement.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 // 语法分析器，将令牌流转换为结构化的sql语句对象
 public class Parser {
     public static Object Parse(byte[] statement) throws Exception {
+        Prepared prepared = Prepare(statement);
+        if(prepared.paramCount > 0) {
+            throw Error.invalidCommandException;
+        }
+        return prepared.stat;
+    }
+
+    // 语句中的值可以写成参数占位符?，执行时由Prepared.bind按出现的顺序填入参数
+    public static Prepared Prepare(byte[] statement) throws Exception {
         // 新建词法分析器
         Tokenizer tokenizer = new Tokenizer(statement);
         // 获取第一个token
@@ -49,6 +59,9 @@ public class Parser {
                 case "show":
                     stat = parseShow(tokenizer);
                     break;
+                case "analyze":
+                    stat = parseAnalyze(tokenizer);
+                    break;
                 default:
                     throw Error.invalidCommandException;
             }
@@ -69,7 +82,18 @@ public class Parser {
         if(statErr != null) {
             throw statErr;
         }
-        return stat;
+        return new Prepared(stat, tokenizer.params);
+    }
+
+    // 读取一个值，参数占位符读作null
+    private static String parseValue(Tokenizer tokenizer) throws Exception {
+        String value = tokenizer.peek();
+        if(tokenizer.isParam()) {
+            tokenizer.params ++;
+            value = null;
+        }
+        tokenizer.pop();
+        return value;
     }
 
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
@@ -98,8 +122,7 @@ public class Parser {
         }
         tokenizer.pop();
 
-        update.value = tokenizer.peek();
-        tokenizer.pop();
+        update.value = parseValue(tokenizer);
 
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -149,15 +172,11 @@ public class Parser {
             throw Error.invalidCommandException;
         }
 
+        tokenizer.pop();
+
         List<String> values = new ArrayList<>();
-        while(true) {
-            tokenizer.pop();
-            String value = tokenizer.peek();
-            if("".equals(value)) {
-                break;
-            } else {
-                values.add(value);
-            }
+        while(!"".equals(tokenizer.peek())) {
+            values.add(parseValue(tokenizer));
         }
         insert.values = values.toArray(new String[values.size()]);
 
@@ -168,9 +187,12 @@ public class Parser {
         Select read = new Select();
 
         List<String> fields = new ArrayList<>();
+        List<String> funcs = new ArrayList<>();
+        boolean aggregate = false;
         String asterisk = tokenizer.peek();// 预览下一个token
         if("*".equals(asterisk)) {
             fields.add(asterisk);
+            funcs.add(null);
             tokenizer.pop();
         } else {
             while(true) {
@@ -178,8 +200,28 @@ public class Parser {
                 if(!isName(field)) {
                     throw Error.invalidCommandException;
                 }
-                fields.add(field);
                 tokenizer.pop();
+                String func = null;
+                // 聚合函数 func(field)，count还可以是count(*)
+                if("(".equals(tokenizer.peek())) {
+                    if(!isAggregateFunc(field)) {
+                        throw Error.invalidCommandException;
+                    }
+                    func = field;
+                    tokenizer.pop();
+                    field = tokenizer.peek();
+                    if(!isName(field) && !("count".equals(func) && "*".equals(field))) {
+                        throw Error.invalidCommandException;
+                    }
+                    tokenizer.pop();
+                    if(!")".equals(tokenizer.peek())) {
+                        throw Error.invalidCommandException;
+                    }
+                    tokenizer.pop();
+                    aggregate = true;
+                }
+                fields.add(field);
+                funcs.add(func);
                 if(",".equals(tokenizer.peek())) {
                     tokenizer.pop();
                 } else {
@@ -188,6 +230,9 @@ public class Parser {
             }
         }
         read.fields = fields.toArray(new String[fields.size()]);
+        if(aggregate) {
+            read.funcs = funcs.toArray(new String[funcs.size()]);
+        }
 
         if(!"from".equals(tokenizer.peek())) {
             throw Error.invalidCommandException;
@@ -200,6 +245,7 @@ public class Parser {
         }
         read.tableName = tableName;
         tokenizer.pop();
+        parseJoin(tokenizer, read);
 
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
@@ -207,41 +253,255 @@ public class Parser {
             return read;
         }
 
-        read.where = parseWhere(tokenizer);
+        if("where".equals(tmp)) {
+            read.where = parseWhere(tokenizer);
+        }
+        parseGroupBy(tokenizer, read);
+        parseOrderBy(tokenizer, read);
+        parseLimit(tokenizer, read);
+        parseLockClause(tokenizer, read);
         return read;
     }
 
-    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
-        Where where = new Where();
+    // 解析可选的 [inner | left [outer]] join table on field = field
+    private static void parseJoin(Tokenizer tokenizer, Select read) throws Exception {
+        Join join = new Join();
+        String tmp = tokenizer.peek();
+        if("left".equals(tmp)) {
+            join.left = true;
+            tokenizer.pop();
+            if("outer".equals(tokenizer.peek())) {
+                tokenizer.pop();
+            }
+        } else if("inner".equals(tmp)) {
+            tokenizer.pop();
+        } else if(!"join".equals(tmp)) {
+            return;
+        }
+        if(!"join".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
 
-        if(!"where".equals(tokenizer.peek())) {
+        join.tableName = tokenizer.peek();
+        if(!isName(join.tableName)) {
             throw Error.invalidCommandException;
         }
         tokenizer.pop();
 
-        SingleExpression exp1 = parseSingleExp(tokenizer);
-        where.singleExp1 = exp1;
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        join.leftField = tokenizer.peek();
+        if(!isName(join.leftField)) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        if(!"=".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        join.rightField = tokenizer.peek();
+        if(!isName(join.rightField)) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        read.join = join;
+    }
 
-        String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
-            return where;
+    // 解析可选的 group by field
+    private static void parseGroupBy(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"group".equals(tokenizer.peek())) {
+            return;
         }
-        if(!isLogicOp(logicOp)) {
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
             throw Error.invalidCommandException;
         }
-        where.logicOp = logicOp;
         tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.invalidCommandException;
+        }
+        read.groupBy = field;
+        tokenizer.pop();
+    }
 
-        SingleExpression exp2 = parseSingleExp(tokenizer);
-        where.singleExp2 = exp2;
+    private static boolean isAggregateFunc(String func) {
+        return ("count".equals(func) || "sum".equals(func) || "min".equals(func) ||
+                "max".equals(func) || "avg".equals(func));
+    }
 
-        if(!"".equals(tokenizer.peek())) {
+    // 解析可选的 order by field [asc|desc]
+    private static void parseOrderBy(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"order".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+        if(!"by".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if(!isName(field)) {
+            throw Error.invalidCommandException;
+        }
+        read.orderBy = field;
+        tokenizer.pop();
+        String dir = tokenizer.peek();
+        if("asc".equals(dir) || "desc".equals(dir)) {
+            read.desc = "desc".equals(dir);
+            tokenizer.pop();
+        }
+    }
+
+    // 解析可选的 limit n [offset m]
+    private static void parseLimit(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"limit".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+        read.limit = parseCount(tokenizer);
+        if("offset".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            read.offset = parseCount(tokenizer);
+        }
+    }
+
+    private static int parseCount(Tokenizer tokenizer) throws Exception {
+        int n;
+        try {
+            n = Integer.parseInt(tokenizer.peek());
+        } catch(NumberFormatException e) {
+            throw Error.invalidCommandException;
+        }
+        if(n < 0) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+        return n;
+    }
+
+    // 解析可选的 for share / for update
+    private static void parseLockClause(Tokenizer tokenizer, Select read) throws Exception {
+        if(!"for".equals(tokenizer.peek())) {
+            return;
+        }
+        tokenizer.pop();
+        String mode = tokenizer.peek();
+        if("share".equals(mode)) {
+            read.forShare = true;
+        } else if("update".equals(mode)) {
+            read.forUpdate = true;
+        } else {
             throw Error.invalidCommandException;
         }
+        tokenizer.pop();
+    }
+
+    // 条件可以用and/or/not和括号组合，and的优先级高于or
+    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
+        if(!"where".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+
+        Where where = parseOr(tokenizer);
+        if(!isClauseEnd(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        return where;
+    }
+
+    private static Where parseOr(Tokenizer tokenizer) throws Exception {
+        List<Where> terms = new ArrayList<>();
+        terms.add(parseAnd(tokenizer));
+        while("or".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            terms.add(parseAnd(tokenizer));
+        }
+        return combine("or", terms);
+    }
+
+    private static Where parseAnd(Tokenizer tokenizer) throws Exception {
+        List<Where> terms = new ArrayList<>();
+        terms.add(parseUnary(tokenizer));
+        while("and".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            terms.add(parseUnary(tokenizer));
+        }
+        return combine("and", terms);
+    }
+
+    private static Where parseUnary(Tokenizer tokenizer) throws Exception {
+        String token = tokenizer.peek();
+        if("not".equals(token)) {
+            tokenizer.pop();
+            Where where = new Where();
+            where.logicOp = "not";
+            where.children = new Where[]{parseUnary(tokenizer)};
+            return where;
+        }
+        if("(".equals(token)) {
+            tokenizer.pop();
+            Where where = parseOr(tokenizer);
+            if(!")".equals(tokenizer.peek())) {
+                throw Error.invalidCommandException;
+            }
+            tokenizer.pop();
+            return where;
+        }
+        Where where = new Where();
+        where.singleExp1 = parseSingleExp(tokenizer);
+        where.logicOp = "";
         return where;
     }
 
+    // 只有一项时直接返回；两个单一条件仍用singleExp1/singleExp2表示；否则展开同一运算符的子条件
+    private static Where combine(String logicOp, List<Where> terms) {
+        if(terms.size() == 1) {
+            return terms.get(0);
+        }
+        Where where = new Where();
+        where.logicOp = logicOp;
+        if(terms.size() == 2 && isSingle(terms.get(0)) && isSingle(terms.get(1))) {
+            where.singleExp1 = terms.get(0).singleExp1;
+            where.singleExp2 = terms.get(1).singleExp1;
+            return where;
+        }
+        List<Where> children = new ArrayList<>();
+        for(Where term : terms) {
+            if(!logicOp.equals(term.logicOp)) {
+                children.add(term);
+            } else if(term.children != null) {
+                children.addAll(Arrays.asList(term.children));
+            } else {
+                children.add(single(term.singleExp1));
+                children.add(single(term.singleExp2));
+            }
+        }
+        where.children = children.toArray(new Where[0]);
+        return where;
+    }
+
+    private static boolean isSingle(Where where) {
+        return "".equals(where.logicOp);
+    }
+
+    private static Where single(SingleExpression exp) {
+        Where where = new Where();
+        where.singleExp1 = exp;
+        where.logicOp = "";
+        return where;
+    }
+
+    // where条件之后可以出现的子句
+    private static boolean isClauseEnd(String token) {
+        return "".equals(token) || "for".equals(token) || "group".equals(token) ||
+                "order".equals(token) || "limit".equals(token);
+    }
+
     private static SingleExpression parseSingleExp(Tokenizer tokenizer) throws Exception {
         SingleExpression exp = new SingleExpression();
 
@@ -256,20 +516,46 @@ public class Parser {
         if(!isCmpOp(op)) {
             throw Error.invalidCommandException;
         }
-        exp.compareOp = op;
         tokenizer.pop();
+        // <= 和 >= 由两个符号组成
+        if(("<".equals(op) || ">".equals(op)) && "=".equals(tokenizer.peek())) {
+            op = op + "=";
+            tokenizer.pop();
+        }
+        exp.compareOp = op;
 
-        exp.value = tokenizer.peek();
-        tokenizer.pop();
+        exp.value = parseValue(tokenizer);
+        // between a and b
+        if("between".equals(op)) {
+            if(!"and".equals(tokenizer.peek())) {
+                throw Error.invalidCommandException;
+            }
+            tokenizer.pop();
+            exp.value2 = parseValue(tokenizer);
+        }
         return exp;
     }
 
     private static boolean isCmpOp(String op) {
-        return ("=".equals(op) || ">".equals(op) || "<".equals(op));
+        return ("=".equals(op) || ">".equals(op) || "<".equals(op) ||
+                "like".equals(op) || "between".equals(op));
     }
 
-    private static boolean isLogicOp(String op) {
-        return ("and".equals(op) || "or".equals(op));
+    // analyze <表名>
+    private static Analyze parseAnalyze(Tokenizer tokenizer) throws Exception {
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.invalidCommandException;
+        }
+        tokenizer.pop();
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+
+        Analyze analyze = new Analyze();
+        analyze.tableName = tableName;
+        return analyze;
     }
 
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
@@ -308,6 +594,7 @@ public class Parser {
 
         List<String> fNames = new ArrayList<>();
         List<String> fTypes = new ArrayList<>();
+        List<Boolean> uniques = new ArrayList<>();
         while(true) {
             tokenizer.pop();
             String field = tokenizer.peek();
@@ -328,11 +615,31 @@ public class Parser {
             fTypes.add(fieldType);
             tokenizer.pop();
 
+            // 字段约束：unique 或 primary key，声明约束的字段自动建立索引
+            boolean u = false;
             String next = tokenizer.peek();
+            if("unique".equals(next)) {
+                u = true;
+                tokenizer.pop();
+            } else if("primary".equals(next)) {
+                tokenizer.pop();
+                if(!"key".equals(tokenizer.peek()) || create.primaryKey != null) {
+                    throw Error.invalidCommandException;
+                }
+                create.primaryKey = field;
+                u = true;
+                tokenizer.pop();
+            }
+            uniques.add(u);
+
+            next = tokenizer.peek();
             if(",".equals(next)) {
                 continue;
             } else if("".equals(next)) {
-                throw Error.tableNoIndexException;
+                if(!uniques.contains(true)) {
+                    throw Error.tableNoIndexException;
+                }
+                break;
             } else if("(".equals(next)) {
                 break;
             } else {
@@ -341,26 +648,80 @@ public class Parser {
         }
         create.fieldName = fNames.toArray(new String[fNames.size()]);
         create.fieldType = fTypes.toArray(new String[fTypes.size()]);
+        create.unique = new boolean[uniques.size()];
+        for(int i = 0; i < uniques.size(); i ++) {
+            create.unique[i] = uniques.get(i);
+        }
 
+        if("".equals(tokenizer.peek())) {
+            // 只有约束字段上的索引
+            create.index = new String[0];
+            create.indexFanout = new int[0];
+            create.hashIndex = new boolean[0];
+            create.indexInclude = new String[0][];
+            return create;
+        }
         tokenizer.pop();
-        if(!"index".equals(tokenizer.peek())) {
+        if(!isIndexKind(tokenizer.peek())) {
             throw Error.invalidCommandException;
         }
 
+        // index 之后是B+树索引字段，hashindex 之后是哈希索引字段，两者可以交替出现
+        // 每个B+树索引字段后可以跟 fanout <n> 指定该索引的扇出，
+        // 再跟 include (<字段>, ...) 把这些字段的值一起保存在索引的叶子中
         List<String> indexes = new ArrayList<>();
+        List<Integer> fanouts = new ArrayList<>();
+        List<Boolean> hashes = new ArrayList<>();
+        List<String[]> includes = new ArrayList<>();
+        boolean hash = false;
         while(true) {
-            tokenizer.pop();
             String field = tokenizer.peek();
+            if(isIndexKind(field)) {
+                hash = "hashindex".equals(field);
+                tokenizer.pop();
+                continue;
+            }
             if(")".equals(field)) {
                 break;
             }
             if(!isName(field)) {
                 throw Error.invalidCommandException;
-            } else {
-                indexes.add(field);
             }
+            indexes.add(field);
+            hashes.add(hash);
+            tokenizer.pop();
+            int fanout = 0;
+            if("fanout".equals(tokenizer.peek())) {
+                if(hash) {
+                    throw Error.invalidCommandException;
+                }
+                tokenizer.pop();
+                try {
+                    fanout = Integer.parseInt(tokenizer.peek());
+                } catch(NumberFormatException e) {
+                    throw Error.invalidCommandException;
+                }
+                tokenizer.pop();
+            }
+            fanouts.add(fanout);
+            String[] include = null;
+            if("include".equals(tokenizer.peek())) {
+                if(hash) {
+                    throw Error.invalidCommandException;
+                }
+                tokenizer.pop();
+                include = parseNameList(tokenizer);
+            }
+            includes.add(include);
         }
         create.index = indexes.toArray(new String[indexes.size()]);
+        create.indexFanout = new int[fanouts.size()];
+        create.hashIndex = new boolean[hashes.size()];
+        for(int i = 0; i < fanouts.size(); i ++) {
+            create.indexFanout[i] = fanouts.get(i);
+            create.hashIndex[i] = hashes.get(i);
+        }
+        create.indexInclude = includes.toArray(new String[includes.size()][]);
         tokenizer.pop();
 
         if(!"".equals(tokenizer.peek())) {
@@ -369,6 +730,35 @@ public class Parser {
         return create;
     }
 
+    // (name, name, ...)
+    private static String[] parseNameList(Tokenizer tokenizer) throws Exception {
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.invalidCommandException;
+        }
+        List<String> names = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String name = tokenizer.peek();
+            if(!isName(name)) {
+                throw Error.invalidCommandException;
+            }
+            names.add(name);
+            tokenizer.pop();
+            String next = tokenizer.peek();
+            if(")".equals(next)) {
+                tokenizer.pop();
+                return names.toArray(new String[names.size()]);
+            }
+            if(!",".equals(next)) {
+                throw Error.invalidCommandException;
+            }
+        }
+    }
+
+    private static boolean isIndexKind(String kind) {
+        return "index".equals(kind) || "hashindex".equals(kind);
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
                 "string".equals(tp));
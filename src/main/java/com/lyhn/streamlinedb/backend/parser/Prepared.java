@@ -0,0 +1,113 @@
+package com.lyhn.streamlinedb.backend.parser;
+
+import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.parser.statement.*;
+
+/**
+ * 解析好的语句，值的位置可以是参数占位符，在stat中为null
+ * stat在多个连接之间共享，执行时不会修改它；bind复制含有占位符的部分，按占位符在语句中出现的顺序填入参数
+ */
+public class Prepared {
+    public final Object stat;
+    public final int paramCount;
+
+    Prepared(Object stat, int paramCount) {
+        this.stat = stat;
+        this.paramCount = paramCount;
+    }
+
+    public Object bind(String[] params) throws Exception {
+        if(params.length != paramCount) {
+            throw Error.invalidParamsException;
+        }
+        if(paramCount == 0) {
+            return stat;
+        }
+        return new Binder(params).bind(stat);
+    }
+
+    private static class Binder {
+        private final String[] params;
+        private int next;
+
+        Binder(String[] params) {
+            this.params = params;
+        }
+
+        private String value(String v) {
+            return v != null ? v : params[next ++];
+        }
+
+        Object bind(Object stat) {
+            if(stat instanceof Insert) {
+                Insert src = (Insert)stat, res = new Insert();
+                res.tableName = src.tableName;
+                res.values = new String[src.values.length];
+                for(int i = 0; i < res.values.length; i ++) {
+                    res.values[i] = value(src.values[i]);
+                }
+                return res;
+            } else if(stat instanceof Update) {
+                Update src = (Update)stat, res = new Update();
+                res.tableName = src.tableName;
+                res.fieldName = src.fieldName;
+                res.value = value(src.value);
+                res.where = bind(src.where);
+                return res;
+            } else if(stat instanceof Delete) {
+                Delete src = (Delete)stat, res = new Delete();
+                res.tableName = src.tableName;
+                res.where = bind(src.where);
+                return res;
+            } else if(stat instanceof Select) {
+                Select src = (Select)stat, res = new Select();
+                res.tableName = src.tableName;
+                res.join = src.join;
+                res.fields = src.fields;
+                res.funcs = src.funcs;
+                res.groupBy = src.groupBy;
+                res.where = bind(src.where);
+                res.orderBy = src.orderBy;
+                res.desc = src.desc;
+                res.limit = src.limit;
+                res.offset = src.offset;
+                res.forShare = src.forShare;
+                res.forUpdate = src.forUpdate;
+                return res;
+            }
+            return stat;
+        }
+
+        // 子条件按在语句中出现的顺序复制
+        private Where bind(Where src) {
+            if(src == null) {
+                return null;
+            }
+            Where res = new Where();
+            res.logicOp = src.logicOp;
+            res.singleExp1 = bind(src.singleExp1);
+            res.singleExp2 = bind(src.singleExp2);
+            if(src.children != null) {
+                res.children = new Where[src.children.length];
+                for(int i = 0; i < res.children.length; i ++) {
+                    res.children[i] = bind(src.children[i]);
+                }
+            }
+            return res;
+        }
+
+        private SingleExpression bind(SingleExpression src) {
+            if(src == null) {
+                return null;
+            }
+            SingleExpression res = new SingleExpression();
+            res.field = src.field;
+            res.compareOp = src.compareOp;
+            res.value = value(src.value);
+            if("between".equals(src.compareOp)) {
+                res.value2 = value(src.value2);
+            }
+            return res;
+        }
+    }
+}
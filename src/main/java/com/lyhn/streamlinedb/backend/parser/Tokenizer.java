@@ -13,6 +13,11 @@ public class Tokenizer {
     private String currentToken;
     // 令牌刷新标志
     private boolean flushToken;
+    // 当前令牌是参数占位符?，引号中的?不算
+    private boolean param;
+    private boolean nextParam;
+    // 已经读到的参数占位符个数
+    int params;
     // 解析过程中遇到的错误
     private Exception err;
 
@@ -38,11 +43,17 @@ public class Tokenizer {
                 throw e;
             }
             currentToken = token;
+            param = nextParam;
             flushToken = false;
         }
         return currentToken;
     }
 
+    // 当前令牌是否是参数占位符，需要先调用peek
+    public boolean isParam() {
+        return param;
+    }
+
     public void pop() {
         flushToken = true;
     }
@@ -77,6 +88,7 @@ public class Tokenizer {
     }
 
     private String nextMetaState() throws Exception {
+        nextParam = false;
         while(true) {
             Byte b = peekByte();
             if(b == null) {
@@ -90,6 +102,7 @@ public class Tokenizer {
         byte b = peekByte();
         if(isSymbol(b)) {
             popByte();
+            nextParam = b == '?';
             return new String(new byte[]{b});
         } else if(b == '"' || b == '\'') {
             return nextQuoteState();
@@ -105,7 +118,8 @@ public class Tokenizer {
         StringBuilder sb = new StringBuilder();
         while(true) {
             Byte b = peekByte();
-            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_')) {
+            // 表名.字段名 作为一个token
+            if(b == null || !(isAlphaBeta(b) || isDigit(b) || b == '_' || b == '.')) {
                 if(b != null && isBlank(b)) {
                     popByte();
                 }
@@ -146,7 +160,7 @@ public class Tokenizer {
 
     static boolean isSymbol(byte b) {
         return (b == '>' || b == '<' || b == '=' || b == '*' ||
-                b == ',' || b == '(' || b == ')');
+                b == ',' || b == '(' || b == ')' || b == '?');
     }
 
     static boolean isBlank(byte b) {
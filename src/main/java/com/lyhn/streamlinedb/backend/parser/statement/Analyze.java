@@ -0,0 +1,5 @@
+package com.lyhn.streamlinedb.backend.parser.statement;
+
+public class Analyze {
+    public String tableName;
+}
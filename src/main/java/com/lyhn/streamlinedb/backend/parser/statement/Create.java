@@ -4,5 +4,15 @@ public class Create {
     public String tableName;
     public String[] fieldName;
     public String[] fieldType;
+    // 与fieldName一一对应，为true表示字段声明了unique或primary key，为null表示都没有声明
+    public boolean[] unique;
+    // 主键字段名，没有主键时为null
+    public String primaryKey;
     public String[] index;
+    // 与index一一对应的索引扇出，0或为null表示使用默认值
+    public int[] indexFanout;
+    // 与index一一对应，为true表示哈希索引，为null表示都是B+树索引
+    public boolean[] hashIndex;
+    // 与index一一对应的覆盖字段，为null表示没有
+    public String[][] indexInclude;
 }
@@ -0,0 +1,10 @@
+package com.lyhn.streamlinedb.backend.parser.statement;
+
+public class Join {
+    public String tableName;
+    // LEFT JOIN为true，INNER JOIN为false
+    public boolean left;
+    // ON leftField = rightField，字段名可以写成 表名.字段名
+    public String leftField;
+    public String rightField;
+}
@@ -2,6 +2,21 @@ package com.lyhn.streamlinedb.backend.parser.statement;
 
 public class Select {
     public String tableName;
+    // JOIN的第二个表，为null表示单表查询
+    public Join join;
     public String[] fields;
+    // 与fields一一对应的聚合函数（count/sum/min/max/avg），null表示普通字段；没有聚合函数时整个数组为null
+    public String[] funcs;
+    // GROUP BY，为null表示不分组
+    public String groupBy;
     public Where where;
+    // ORDER BY，为null表示不排序
+    public String orderBy;
+    public boolean desc;
+    // LIMIT/OFFSET，limit为-1表示不限制
+    public int limit = -1;
+    public int offset;
+    // SELECT ... FOR SHARE / FOR UPDATE
+    public boolean forShare;
+    public boolean forUpdate;
 }
@@ -4,4 +4,6 @@ public class SingleExpression {
     public String field;
     public String compareOp;
     public String value;
+    // between的上界
+    public String value2;
 }
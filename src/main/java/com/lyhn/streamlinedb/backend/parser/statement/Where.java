@@ -4,4 +4,6 @@ public class Where {
     public SingleExpression singleExp1;
     public String logicOp;
     public SingleExpression singleExp2;
+    // 复合条件的子条件，logicOp为and/or时有多个，为not时只有一个；为null时条件由singleExp1/singleExp2表示
+    public Where[] children;
 }
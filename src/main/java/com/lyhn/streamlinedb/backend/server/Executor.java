@@ -1,16 +1,37 @@
 package com.lyhn.streamlinedb.backend.server;
 
-import com.lyhn.streamlinedb.backend.parser.Parser;
+import com.lyhn.streamlinedb.backend.parser.Prepared;
 import com.lyhn.streamlinedb.backend.parser.statement.*;
 import com.lyhn.streamlinedb.backend.tbm.BeginRes;
 import com.lyhn.streamlinedb.backend.tbm.TableManager;
 import com.lyhn.streamlinedb.backend.common.Error;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
 public class Executor {
+    private static final String[] NO_PARAMS = new String[0];
+    // 每个连接最多同时保留的预处理语句数，不再使用的语句需要deallocate释放
+    public static final int MAX_PREPARED = 1024;
+
     private long xid;
     TableManager tbm;
+    private StatementCache statements;
+    // 本连接预处理的语句，键为语句编号；同一SQL文本重复预处理时返回同一个编号，释放后编号不再使用
+    private Map<Integer, Prepared> prepared = new HashMap<>();
+    private Map<String, Integer> preparedIds = new HashMap<>();
+    private int nextId;
 
     public Executor(TableManager tbm) {
+        this(tbm, new StatementCache(StatementCache.DEFAULT_CAPACITY));
+    }
+
+    public Executor(TableManager tbm, StatementCache statements) {
         this.tbm = tbm;
+        this.statements = statements;
         this.xid = 0;
     }
 
@@ -22,9 +43,53 @@ public class Executor {
     }
 
     public byte[] execute(byte[] sql) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] res = execute(sql, out);
+        return out.size() == 0 ? res : out.toByteArray();
+    }
+
+    // 查询结果逐行写入out，返回值为其余语句的执行结果
+    public byte[] execute(byte[] sql, OutputStream out) throws Exception {
         System.out.println("Execute: " + new String(sql));
-        // 解析SQL语句，得到语句对象
-        Object stat = Parser.Parse(sql);
+        // 解析SQL语句，得到语句对象；相同的SQL文本直接使用缓存中解析好的语句
+        return execute1(statements.get(sql).bind(NO_PARAMS), out);
+    }
+
+    // 预处理带参数占位符?的语句，返回语句编号
+    public int prepare(byte[] sql) throws Exception {
+        System.out.println("Prepare: " + new String(sql));
+        String key = new String(sql, StandardCharsets.UTF_8);
+        Integer id = preparedIds.get(key);
+        if(id == null) {
+            if(prepared.size() >= MAX_PREPARED) {
+                throw Error.tooManyPreparedException;
+            }
+            Prepared p = statements.get(sql);
+            id = nextId ++;
+            prepared.put(id, p);
+            preparedIds.put(key, id);
+        }
+        return id;
+    }
+
+    // 释放预处理的语句，之后不能再用这个编号执行
+    public void deallocate(int id) {
+        if(prepared.remove(id) == null) {
+            throw Error.statementNotFoundException;
+        }
+        preparedIds.values().remove(id);
+    }
+
+    // 按出现的顺序填入参数，执行预处理的语句，不再解析SQL文本
+    public byte[] execute(int id, String[] params, OutputStream out) throws Exception {
+        Prepared p = prepared.get(id);
+        if(p == null) {
+            throw Error.statementNotFoundException;
+        }
+        return execute1(p.bind(params), out);
+    }
+
+    private byte[] execute1(Object stat, OutputStream out) throws Exception {
         // 判断stat是不是Begin类或者其子类
         if(Begin.class.isInstance(stat)) {
             if(xid != 0) {
@@ -52,11 +117,11 @@ public class Executor {
             return res;
         } else {
             // 其他SQL操作
-            return execute2(stat);
+            return execute2(stat, out);
         }
     }
 
-    private byte[] execute2(Object stat) throws Exception {
+    private byte[] execute2(Object stat, OutputStream out) throws Exception {
         boolean tmpTransaction = false;
         Exception e = null;
         if(xid == 0) {
@@ -74,7 +139,8 @@ public class Executor {
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
             } else if(Select.class.isInstance(stat)) {
-                res = tbm.read(xid, (Select)stat);
+                tbm.read(xid, (Select)stat, out);
+                res = new byte[0];
             } else if(Insert.class.isInstance(stat)) {
                 res = tbm.insert(xid, (Insert)stat);
             } else if(Delete.class.isInstance(stat)) {
@@ -83,6 +149,8 @@ public class Executor {
                 res = tbm.drop(xid, (Drop)stat);
             } else if(Update.class.isInstance(stat)) {
                 res = tbm.update(xid, (Update)stat);
+            } else if(Analyze.class.isInstance(stat)) {
+                res = tbm.analyze(xid, (Analyze)stat);
             }
             return res;
         } catch(Exception e1) {
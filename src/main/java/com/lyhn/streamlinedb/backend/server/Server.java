@@ -1,9 +1,11 @@
 package com.lyhn.streamlinedb.backend.server;
 
 import com.lyhn.streamlinedb.backend.tbm.TableManager;
+import com.lyhn.streamlinedb.backend.utils.Parser;
 import com.lyhn.streamlinedb.transport.Encoder;
 import com.lyhn.streamlinedb.transport.Packager;
 import com.lyhn.streamlinedb.transport.Package;
+import com.lyhn.streamlinedb.transport.PackageOutputStream;
 import com.lyhn.streamlinedb.transport.Transporter;
 
 import java.io.IOException;
@@ -26,6 +28,8 @@ public class Server {
     private static final long IDLE_SHUTDOWN_SECONDS = 10;
     private long lastActiveTimeMillis = System.currentTimeMillis();
     private ScheduledExecutorService idleChecker;
+    // 所有连接共享的解析好的语句
+    private StatementCache statements = new StatementCache(StatementCache.DEFAULT_CAPACITY);
 
     public Server(int port, TableManager tbm) {
         this.port = port;
@@ -132,7 +136,7 @@ public class Server {
                 onDisconnect(clientInfo);
                 return;
             }
-            Executor exe = new Executor(tbm);
+            Executor exe = new Executor(tbm, statements);
             while(running) {
                 Package pkg = null;
                 try {
@@ -140,18 +144,32 @@ public class Server {
                 } catch(Exception e) {
                     break;
                 }
-                byte[] sql = pkg.getData();
+                byte[] data = pkg.getData();
                 byte[] result = null;
                 Exception err = null;
+                // 查询结果边产生边按分片发送
+                PackageOutputStream out = new PackageOutputStream(packager);
                 try {
-                    result = exe.execute(sql);
+                    if(pkg.getKind() == Package.PREPARE) {
+                        result = Parser.int2Byte(exe.prepare(data));
+                    } else if(pkg.getKind() == Package.EXECUTE) {
+                        result = exe.execute(Encoder.statementId(data), Encoder.params(data), out);
+                    } else if(pkg.getKind() == Package.DEALLOCATE) {
+                        exe.deallocate(Encoder.statementId(data));
+                        result = new byte[0];
+                    } else {
+                        result = exe.execute(data, out);
+                    }
                 } catch (Exception e1) {
                     err = e1;
                     e1.printStackTrace();
                 }
-                pkg = new Package(result, err);
                 try {
-                    packager.send(pkg);
+                    if(err != null) {
+                        out.fail(err);
+                    } else {
+                        out.finish(result);
+                    }
                 } catch (Exception e1) {
                     e1.printStackTrace();
                     break;
@@ -0,0 +1,44 @@
+package com.lyhn.streamlinedb.backend.server;
+
+import com.lyhn.streamlinedb.backend.parser.Parser;
+import com.lyhn.streamlinedb.backend.parser.Prepared;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 按SQL文本缓存解析好的语句，所有连接共享，超过capacity时淘汰最久没有使用的语句
+public class StatementCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<String, Prepared> cache;
+
+    public StatementCache(int capacity) {
+        this.cache = new LinkedHashMap<String, Prepared>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Prepared> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // 解析出错的语句不缓存
+    public Prepared get(byte[] sql) throws Exception {
+        String key = new String(sql, StandardCharsets.UTF_8);
+        Prepared prepared;
+        synchronized(this) {
+            prepared = cache.get(key);
+        }
+        if(prepared == null) {
+            prepared = Parser.Prepare(sql);
+            synchronized(this) {
+                cache.put(key, prepared);
+            }
+        }
+        return prepared;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+}
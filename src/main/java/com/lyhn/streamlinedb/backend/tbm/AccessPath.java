@@ -0,0 +1,84 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.im.UidSet;
+
+import java.util.List;
+
+/**
+ * 读取满足where条件的记录的一种方式，以及估计返回的uid数和代价
+ * 代价以随机读取一条记录为单位：每个索引项COST_INDEX，把uid放入集合排序去重COST_SET；
+ * 读取记录时，按uid顺序（即记录的存放顺序）读取相邻的记录多在同一页中，每条COST_SEQ_FETCH，
+ * 按索引顺序读取时按索引与存放顺序的相关性在COST_SEQ_FETCH和COST_RANDOM_FETCH之间取值
+ */
+class AccessPath {
+    // 一个索引字段上的一个范围，按索引顺序返回
+    static final int RANGE = 0;
+    // 子方式查出的uid的交集/并集，按uid顺序返回
+    static final int INTERSECT = 1;
+    static final int UNION = 2;
+
+    static final double COST_INDEX = 0.1;
+    static final double COST_SET = 0.05;
+    static final double COST_RANDOM_FETCH = 1.0;
+    static final double COST_SEQ_FETCH = 0.25;
+
+    int type;
+    Field fd;
+    FieldCalRes range;
+    List<AccessPath> children;
+
+    double rows;
+    // 查出uid的代价，不含读取记录
+    double uidCost;
+    // 读取每条记录的代价
+    double fetchCost;
+
+    double cost() {
+        return uidCost + rows * fetchCost;
+    }
+
+    static AccessPath range(Field fd, FieldCalRes range, double rows, double fetchCost) {
+        AccessPath p = new AccessPath();
+        p.type = RANGE;
+        p.fd = fd;
+        p.range = range;
+        p.rows = rows;
+        p.uidCost = rows * COST_INDEX;
+        p.fetchCost = fetchCost;
+        return p;
+    }
+
+    static AccessPath combine(int type, List<AccessPath> children, double rows) {
+        AccessPath p = new AccessPath();
+        p.type = type;
+        p.children = children;
+        p.rows = rows;
+        p.fetchCost = COST_SEQ_FETCH;
+        for(AccessPath child : children) {
+            p.uidCost += child.uidCost + child.rows * COST_SET;
+        }
+        return p;
+    }
+
+    // 按索引fd的顺序读取时每条记录的代价，没有统计信息时按随机读取估计
+    static double fetchCost(TableStats stats, Field fd) {
+        TableStats.ColumnStats cs = stats == null ? null : stats.column(fd);
+        if(cs == null) {
+            return COST_RANDOM_FETCH;
+        }
+        double c2 = cs.correlation * cs.correlation;
+        return COST_RANDOM_FETCH - (COST_RANDOM_FETCH - COST_SEQ_FETCH) * c2;
+    }
+
+    UidSet uids() throws Exception {
+        if(type == RANGE) {
+            return UidSet.of(fd.cursor(range));
+        }
+        UidSet set = null;
+        for(AccessPath child : children) {
+            UidSet uids = child.uids();
+            set = set == null ? uids : type == INTERSECT ? set.intersect(uids) : set.union(uids);
+        }
+        return set;
+    }
+}
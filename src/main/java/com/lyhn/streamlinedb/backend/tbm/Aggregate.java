@@ -0,0 +1,278 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.parser.statement.Select;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 哈希聚合：按GROUP BY字段的值分组，每组保存各聚合函数的中间状态，读完输入后每组输出一条记录
+ * 输入已按GROUP BY字段排好序时改为流式聚合：只保存当前一组，分组字段的值变化时输出，结果按分组字段的顺序排列
+ * SELECT列表中的普通字段只能是GROUP BY字段；没有GROUP BY时全部记录为一组，没有记录时也输出一行
+ *
+ * 输出的字段依次为SELECT列表的各项：分组字段保持原类型，count为int64，
+ * 其余聚合值可能为null，按string输出；有GROUP BY时最后附加分组字段，用于排序，输出前由Project去掉
+ */
+class Aggregate implements Operator {
+    static final int COUNT = 0;
+    static final int SUM = 1;
+    static final int MIN = 2;
+    static final int MAX = 3;
+    static final int AVG = 4;
+    // 输出GROUP BY字段的值
+    static final int GROUP = 5;
+    // 估计哈希表中每组占用的内存
+    static final int GROUP_SIZE = 128;
+
+    private final Operator child;
+    private final List<Field> fields;
+    private final int[] funcs;
+    // 每一项的参数字段下标，count(*)为-1
+    private final int[] args;
+    private final int groupIdx;
+    private final boolean inputSorted;
+    private final List<Field> schema = new ArrayList<>();
+
+    private final Map<Object, Group> groups = new HashMap<>();
+    private Iterator<Group> result;
+    private RowBatch batch;
+
+    // 流式聚合时：当前子批次及读到的位置，正在累计的一组
+    private Row row;
+    private RowBatch in;
+    private int pos;
+    private boolean childDone;
+    private Group current;
+
+    static class Group {
+        Object key;
+        long[] counts;
+        long[] sums;
+        Object[] values;
+    }
+
+    /**
+     * @param inputSorted 输入是否已按分组字段排好序，只在有GROUP BY时有效
+     */
+    Aggregate(Operator child, Select read, int groupIdx, boolean inputSorted) throws Exception {
+        this.child = child;
+        this.fields = child.schema();
+        this.groupIdx = groupIdx;
+        this.inputSorted = inputSorted && groupIdx >= 0;
+        int n = read.fields.length;
+        funcs = new int[n];
+        args = new int[n];
+        for(int i = 0; i < n; i ++) {
+            String func = read.funcs == null ? null : read.funcs[i];
+            String name = read.fields[i];
+            if(func == null) {
+                // 普通字段必须是分组字段
+                if(groupIdx < 0 || !fields.get(groupIdx).isNamed(name)) {
+                    throw Error.invalidAggregateException;
+                }
+                funcs[i] = GROUP;
+                args[i] = groupIdx;
+                schema.add(new Field(null, name, fields.get(groupIdx).fieldType, 0));
+                continue;
+            }
+            funcs[i] = funcCode(func);
+            args[i] = "*".equals(name) ? -1 : Table.indexOf(fields, name);
+            if((funcs[i] == SUM || funcs[i] == AVG) && "string".equals(fields.get(args[i]).fieldType)) {
+                throw Error.invalidAggregateException;
+            }
+            schema.add(new Field(null, func + "(" + name + ")", funcs[i] == COUNT ? "int64" : "string", 0));
+        }
+        if(groupIdx >= 0) {
+            Field group = fields.get(groupIdx);
+            schema.add(new Field(null, group.fieldName, group.fieldType, 0));
+        }
+    }
+
+    private static int funcCode(String func) {
+        switch(func) {
+            case "count":
+                return COUNT;
+            case "sum":
+                return SUM;
+            case "min":
+                return MIN;
+            case "max":
+                return MAX;
+            default:
+                return AVG;
+        }
+    }
+
+    // 若只有同一字段上的min/max，返回该字段的下标，否则返回-1
+    static int minMaxField(Select read, List<Field> fields) {
+        if(read.groupBy != null || read.funcs == null) return -1;
+        String arg = null;
+        for(int i = 0; i < read.funcs.length; i ++) {
+            if(!"min".equals(read.funcs[i]) && !"max".equals(read.funcs[i])) return -1;
+            if(arg != null && !arg.equals(read.fields[i])) return -1;
+            arg = read.fields[i];
+        }
+        for(int i = 0; i < fields.size(); i ++) {
+            if(fields.get(i).fieldName.equals(arg)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean hasFunc(Select read, String func) {
+        for(String f : read.funcs) {
+            if(func.equals(f)) return true;
+        }
+        return false;
+    }
+
+    // 输出项的个数，不含附加的分组字段
+    int width() {
+        return funcs.length;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return schema;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        row = new Row(fields);
+        batch = new RowBatch();
+        if(inputSorted) {
+            return;
+        }
+        RowBatch b;
+        while((b = child.next()) != null) {
+            for(int i = 0; i < b.size; i ++) {
+                b.load(row, i);
+                Object key = groupIdx < 0 ? "" : row.get(groupIdx);
+                Group g = groups.get(key);
+                if(g == null) {
+                    g = newGroup(key);
+                    groups.put(key, g);
+                }
+                add(g, row);
+            }
+        }
+        if(groupIdx < 0 && groups.isEmpty()) {
+            groups.put("", newGroup(""));
+        }
+        result = groups.values().iterator();
+    }
+
+    private void add(Group g, Row row) {
+        for(int i = 0; i < funcs.length; i ++) {
+            switch(funcs[i]) {
+                case COUNT:
+                    g.counts[i] ++;
+                    break;
+                case SUM:
+                case AVG:
+                    g.counts[i] ++;
+                    g.sums[i] += row.getNumber(args[i]);
+                    break;
+                case MIN:
+                case MAX: {
+                    Object v = row.get(args[i]);
+                    Object cur = g.values[i];
+                    int c = cur == null ? 0 : fields.get(args[i]).compare(v, cur);
+                    if(cur == null || (funcs[i] == MIN ? c < 0 : c > 0)) {
+                        g.values[i] = v;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private Group newGroup(Object key) {
+        Group g = new Group();
+        g.key = key;
+        g.counts = new long[funcs.length];
+        g.sums = new long[funcs.length];
+        g.values = new Object[funcs.length];
+        return g;
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        if(inputSorted) {
+            return nextSorted();
+        }
+        while(!batch.isFull() && result.hasNext()) {
+            emit(result.next());
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    // 读入下一组的第一条记录或输入结束时，当前一组完成
+    private RowBatch nextSorted() throws Exception {
+        while(!batch.isFull()) {
+            if(in == null || pos == in.size) {
+                in = childDone ? null : child.next();
+                pos = 0;
+                if(in == null) {
+                    childDone = true;
+                    if(current != null) {
+                        emit(current);
+                        current = null;
+                    }
+                    break;
+                }
+            }
+            in.load(row, pos ++);
+            Object key = row.get(groupIdx);
+            if(current != null && !current.key.equals(key)) {
+                emit(current);
+                current = null;
+            }
+            if(current == null) {
+                current = newGroup(key);
+            }
+            add(current, row);
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    private void emit(Group g) {
+        batch.begin(0);
+        for(int i = 0; i < funcs.length; i ++) {
+            byte[] raw = schema.get(i).value2Raw(value(g, i));
+            batch.append(raw, 0, raw.length);
+        }
+        if(groupIdx >= 0) {
+            byte[] raw = schema.get(funcs.length).value2Raw(g.key);
+            batch.append(raw, 0, raw.length);
+        }
+        batch.end();
+    }
+
+    private Object value(Group g, int i) {
+        switch(funcs[i]) {
+            case GROUP:
+                return g.key;
+            case COUNT:
+                return g.counts[i];
+            case SUM:
+                return g.counts[i] == 0 ? "null" : String.valueOf(g.sums[i]);
+            case AVG:
+                return g.counts[i] == 0 ? "null" : String.valueOf((double)g.sums[i] / g.counts[i]);
+            default:
+                return g.values[i] == null ? "null" : fields.get(args[i]).printValue(g.values[i]);
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        child.close();
+    }
+}
@@ -0,0 +1,93 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.util.List;
+
+/**
+ * 把一批记录按列解码成数组，供Predicate按列批量比较
+ * 整数列解码为long[]，字符串列解码为字符串字节在batch.data中的起始位置和长度，不创建String对象
+ * 每列在本批次第一次用到时才解码
+ */
+class ColumnBatch {
+    private final List<Field> fields;
+    private final Row row;
+
+    private RowBatch batch;
+    private final long[][] longs;
+    // 字符串列：UTF-8字节在batch.data中的起始位置和长度
+    private final int[][] starts;
+    private final int[][] lengths;
+    private final boolean[] decoded;
+
+    ColumnBatch(List<Field> fields) {
+        this.fields = fields;
+        this.row = new Row(fields);
+        int n = fields.size();
+        longs = new long[n][];
+        starts = new int[n][];
+        lengths = new int[n][];
+        decoded = new boolean[n];
+    }
+
+    void reset(RowBatch batch) {
+        this.batch = batch;
+        for(int i = 0; i < decoded.length; i ++) {
+            decoded[i] = false;
+        }
+    }
+
+    byte[] data() {
+        return batch.data;
+    }
+
+    long[] longs(int col) {
+        decode(col);
+        return longs[col];
+    }
+
+    int[] starts(int col) {
+        decode(col);
+        return starts[col];
+    }
+
+    int[] lengths(int col) {
+        decode(col);
+        return lengths[col];
+    }
+
+    private void decode(int col) {
+        if(decoded[col]) return;
+        decoded[col] = true;
+        String type = fields.get(col).fieldType;
+        if("string".equals(type)) {
+            if(starts[col] == null) {
+                starts[col] = new int[RowBatch.CAPACITY];
+                lengths[col] = new int[RowBatch.CAPACITY];
+            }
+            for(int i = 0; i < batch.size; i ++) {
+                batch.load(row, i);
+                int pos = row.start(col);
+                lengths[col][i] = Parser.readInt(batch.data, pos);
+                starts[col][i] = pos+4;
+            }
+            return;
+        }
+        if(longs[col] == null) {
+            longs[col] = new long[RowBatch.CAPACITY];
+        }
+        long[] v = longs[col];
+        byte[] data = batch.data;
+        if("int32".equals(type)) {
+            for(int i = 0; i < batch.size; i ++) {
+                batch.load(row, i);
+                v[i] = Parser.readInt(data, row.start(col));
+            }
+        } else {
+            for(int i = 0; i < batch.size; i ++) {
+                batch.load(row, i);
+                v[i] = Parser.readLong(data, row.start(col));
+            }
+        }
+    }
+}
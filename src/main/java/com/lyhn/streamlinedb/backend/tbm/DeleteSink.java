@@ -0,0 +1,48 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+/**
+ * 删除子算子输出的每条记录，索引项在事务提交后再删除
+ */
+class DeleteSink {
+    private final Operator child;
+    private final Table table;
+    private final long xid;
+
+    DeleteSink(Operator child, Table table, long xid) {
+        this.child = child;
+        this.table = table;
+        this.xid = xid;
+    }
+
+    // 返回删除的记录数
+    int execute() throws Exception {
+        TableManagerImpl tbm = (TableManagerImpl)table.tbm;
+        VersionManager vm = tbm.vm;
+        Row row = new Row(table.fields);
+        int count = 0;
+        try {
+            child.open();
+            RowBatch batch;
+            while((batch = child.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    long uid = batch.uids[i];
+                    table.visibility.clear(uid);
+                    if(!vm.delete(xid, uid)) continue;
+                    count ++;
+                    batch.load(row, i);
+                    for(int j = 0; j < table.fields.size(); j ++) {
+                        Field field = table.fields.get(j);
+                        if(field.isIndexed()) {
+                            tbm.addPendingIndexDelete(xid, table.name, field.fieldName, row.get(j), uid);
+                        }
+                    }
+                }
+            }
+        } finally {
+            child.close();
+        }
+        return count;
+    }
+}
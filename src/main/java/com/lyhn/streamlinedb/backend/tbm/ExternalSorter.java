@@ -0,0 +1,243 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 外部排序，按排序键的无符号字节序排列记录，键相同的记录保持输入的顺序
+ *
+ * 记录依次编码到一块字节数组中：[Uid(8)][Length(4)][KeyLength(4)][Key][Row]，Length为之后三部分的长度；
+ * 排序时只移动记录偏移量组成的int数组，比较时直接比较字节数组中的键，不为每条记录创建对象。
+ * 内存中的记录超过memoryBudget时，排好序的[KeyLength][Key][Row]写入一个临时文件作为有序段，
+ * 最后对各段和内存中剩下的记录做k路归并；段数超过MERGE_FANIN时先把最早的MERGE_FANIN段归并为一段
+ */
+class ExternalSorter implements AutoCloseable {
+    static final int MERGE_FANIN = 64;
+    private static final int HEADER = 12;
+
+    private final long memoryBudget;
+    private final File spillBase;
+    private final boolean desc;
+
+    private byte[] arena = new byte[8192];
+    private int used;
+    private int[] offsets = new int[256];
+    private int count;
+    private final List<SpillFile> runs = new ArrayList<>();
+
+    private PriorityQueue<Source> heap;
+    private Source current;
+
+    /**
+     * @param spillBase 临时文件放在它所在的目录，以它的文件名为前缀；为null时使用系统的临时目录
+     */
+    ExternalSorter(long memoryBudget, File spillBase, boolean desc) {
+        this.memoryBudget = memoryBudget;
+        this.spillBase = spillBase;
+        this.desc = desc;
+    }
+
+    void add(byte[] key, long uid, byte[] raw, int start, int end) throws Exception {
+        int need = HEADER + 4 + key.length + (end-start);
+        if(count > 0 && used + need + 4L*(count+1) > memoryBudget) {
+            spillRun();
+        }
+        if(used + need > arena.length) {
+            long cap = Math.max(used + need, Math.min(arena.length * 2L, memoryBudget));
+            arena = Arrays.copyOf(arena, (int)Math.min(cap, Integer.MAX_VALUE - 8));
+        }
+        if(count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        offsets[count ++] = used;
+        Parser.writeLong(arena, used, uid);
+        Parser.writeInt(arena, used+8, need - HEADER);
+        Parser.writeInt(arena, used+HEADER, key.length);
+        System.arraycopy(key, 0, arena, used+HEADER+4, key.length);
+        System.arraycopy(raw, start, arena, used+HEADER+4+key.length, end-start);
+        used += need;
+    }
+
+    // 已经写入临时文件的有序段数
+    int runs() {
+        return runs.size();
+    }
+
+    // 内存中的记录排好序写成一个有序段
+    private void spillRun() throws Exception {
+        sortOffsets();
+        SpillFile f = new SpillFile(spillBase);
+        for(int i = 0; i < count; i ++) {
+            int o = offsets[i];
+            f.write(Parser.readLong(arena, o), arena, o+HEADER, o+HEADER+Parser.readInt(arena, o+8));
+        }
+        runs.add(f);
+        used = 0;
+        count = 0;
+    }
+
+    // 输入结束，准备按顺序读出
+    void finish() throws Exception {
+        sortOffsets();
+        while(runs.size() + 1 > MERGE_FANIN) {
+            List<Source> first = new ArrayList<>();
+            for(int i = 0; i < MERGE_FANIN; i ++) {
+                first.add(new FileRun(runs.get(i), i));
+            }
+            SpillFile merged = new SpillFile(spillBase);
+            startMerge(first);
+            while(next()) {
+                merged.write(current.uid, current.buf, current.pos, current.pos+current.length);
+            }
+            for(int i = 0; i < MERGE_FANIN; i ++) {
+                runs.get(i).close();
+            }
+            runs.subList(0, MERGE_FANIN).clear();
+            runs.add(0, merged);
+        }
+        List<Source> sources = new ArrayList<>();
+        for(int i = 0; i < runs.size(); i ++) {
+            sources.add(new FileRun(runs.get(i), i));
+        }
+        sources.add(new MemoryRun(runs.size()));
+        startMerge(sources);
+    }
+
+    private void startMerge(List<Source> sources) throws Exception {
+        heap = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+            int c = compare(a.buf, a.pos, b.buf, b.pos);
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+        });
+        current = null;
+        for(Source s : sources) {
+            if(s.advance()) {
+                heap.add(s);
+            }
+        }
+    }
+
+    // 读出下一条记录，之前返回的记录失效
+    boolean next() throws Exception {
+        if(current != null && current.advance()) {
+            heap.add(current);
+        }
+        current = heap.poll();
+        return current != null;
+    }
+
+    long uid() {
+        return current.uid;
+    }
+
+    byte[] buf() {
+        return current.buf;
+    }
+
+    int rowStart() {
+        return current.pos + 4 + Parser.readInt(current.buf, current.pos);
+    }
+
+    int rowEnd() {
+        return current.pos + current.length;
+    }
+
+    // 比较a中从pa开始和b中从pb开始的两个[KeyLength][Key]
+    private int compare(byte[] a, int pa, byte[] b, int pb) {
+        int la = Parser.readInt(a, pa), lb = Parser.readInt(b, pb);
+        int c = Arrays.compareUnsigned(a, pa+4, pa+4+la, b, pb+4, pb+4+lb);
+        return desc ? -c : c;
+    }
+
+    // 对offsets[0..count)做自底向上的归并排序，键相同时保持原来的顺序
+    private void sortOffsets() {
+        int[] src = offsets, dst = new int[count];
+        for(int width = 1; width < count; width *= 2) {
+            for(int lo = 0; lo < count; lo += 2*width) {
+                int mid = Math.min(lo+width, count), hi = Math.min(lo+2*width, count);
+                int i = lo, j = mid, k = lo;
+                while(i < mid && j < hi) {
+                    dst[k ++] = compare(arena, src[j]+HEADER, arena, src[i]+HEADER) < 0 ? src[j ++] : src[i ++];
+                }
+                while(i < mid) dst[k ++] = src[i ++];
+                while(j < hi) dst[k ++] = src[j ++];
+            }
+            int[] t = src;
+            src = dst;
+            dst = t;
+        }
+        if(src != offsets) {
+            System.arraycopy(src, 0, offsets, 0, count);
+        }
+    }
+
+    // 一个有序段，当前记录为buf中从pos开始长为length的[KeyLength][Key][Row]；order越小的段中的记录越早输入
+    private abstract static class Source {
+        final int order;
+        long uid;
+        byte[] buf;
+        int pos;
+        int length;
+
+        Source(int order) {
+            this.order = order;
+        }
+
+        abstract boolean advance() throws Exception;
+    }
+
+    private static class FileRun extends Source {
+        private final SpillFile file;
+
+        FileRun(SpillFile file, int order) throws Exception {
+            super(order);
+            this.file = file;
+            file.rewind();
+        }
+
+        @Override
+        boolean advance() throws Exception {
+            if(!file.next()) {
+                return false;
+            }
+            uid = file.uid;
+            buf = file.data;
+            pos = 0;
+            length = file.length;
+            return true;
+        }
+    }
+
+    private class MemoryRun extends Source {
+        private int i = -1;
+
+        MemoryRun(int order) {
+            super(order);
+        }
+
+        @Override
+        boolean advance() {
+            if(++ i >= count) {
+                return false;
+            }
+            int o = offsets[i];
+            uid = Parser.readLong(arena, o);
+            buf = arena;
+            pos = o + HEADER;
+            length = Parser.readInt(arena, o+8);
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        for(SpillFile f : runs) {
+            f.close();
+        }
+        runs.clear();
+    }
+}
@@ -3,22 +3,38 @@ package com.lyhn.streamlinedb.backend.tbm;
 import com.google.common.primitives.Bytes;
 import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.im.BPlusTree;
+import com.lyhn.streamlinedb.backend.im.HashIndex;
+import com.lyhn.streamlinedb.backend.im.UidCursor;
 import com.lyhn.streamlinedb.backend.parser.statement.SingleExpression;
 import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
 import com.lyhn.streamlinedb.backend.utils.Panic;
 import com.lyhn.streamlinedb.backend.utils.ParseStringRes;
 import com.lyhn.streamlinedb.backend.utils.Parser;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * field 表示数据表中的字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
- * 如果field无索引，IndexUid为0
+ * [FieldName][TypeName][IndexUid][IndexType][Flags][IncludeCount][Include0]...[IncludeN]
+ * 如果field无索引，IndexUid为0；早期版本没有IndexType，视为B+树索引
+ * Flags的最低位表示唯一约束，早期版本没有Flags
+ * Include为覆盖索引在叶子中一起保存的字段名，早期版本没有，视为0个
+ *
+ * 覆盖索引使用带附加数据的变长键B+树，附加数据为[键字段的值][Include0的值]...，格式同记录；
+ * 整数字段的键编码为翻转符号位的8字节大端整数，按无符号字节序比较与整数的顺序一致
  */
 public class Field {
+    // 索引类型
+    static final byte INDEX_BTREE = 0;
+    static final byte INDEX_HASH = 1;
+    // 标志位
+    static final byte FLAG_UNIQUE = 1;
+
     long uid;
     private Table tb;
     // 字段名
@@ -27,8 +43,16 @@ public class Field {
     String fieldType;
     // 索引信息
     private long index;
+    // 索引类型
+    private byte indexType;
+    // 是否有唯一约束
+    private boolean unique;
     // 索引树
     private BPlusTree bt;
+    // 哈希索引
+    private HashIndex hi;
+    // 覆盖索引一起保存的字段名
+    private String[] include = new String[0];
 
     // 加载字段
     public static Field loadField(Table tb, long uid) {
@@ -67,10 +91,28 @@ public class Field {
         position += res.next;
         // 解析索引uid
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        position += 8;
+        indexType = position < raw.length ? raw[position] : INDEX_BTREE;
+        position ++;
+        unique = position < raw.length && (raw[position] & FLAG_UNIQUE) != 0;
+        position ++;
+        if(position < raw.length) {
+            include = new String[Parser.readInt(raw, position)];
+            position += 4;
+            for(int i = 0; i < include.length; i ++) {
+                res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+                include[i] = res.str;
+                position += res.next;
+            }
+        }
         if(index != 0) {
             try {
-                // 如果有索引，加载B+树索引
-                bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                // 如果有索引，按类型加载B+树索引或哈希索引
+                if(indexType == INDEX_HASH) {
+                    hi = HashIndex.load(index, ((TableManagerImpl)tb.tbm).dm);
+                } else {
+                    bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
+                }
             } catch(Exception e) {
                 Panic.panic(e);
             }
@@ -80,12 +122,39 @@ public class Field {
 
     // 创建字段
     public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+        return createField(tb, xid, fieldName, fieldType, indexed, 0);
+    }
+
+    // fanout为索引节点最多容纳的键数量，0表示使用默认值
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, int fanout) throws Exception {
+        return createField(tb, xid, fieldName, fieldType, indexed, fanout, false, false);
+    }
+
+    // hash为true时创建哈希索引，只支持等值查询；unique为true时字段值不能重复
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, int fanout, boolean hash, boolean unique) throws Exception {
+        return createField(tb, xid, fieldName, fieldType, indexed, fanout, hash, unique, null);
+    }
+
+    // include不为空时创建覆盖索引，把这些字段的值一起保存在B+树的叶子中
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, int fanout, boolean hash, boolean unique, String[] include) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
-        // 需要索引
-        if(indexed) {
-            // 创建B+树索引，并返回uid
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
+        f.unique = unique;
+        boolean covering = indexed && !hash && include != null && include.length > 0;
+        if(covering) {
+            f.include = include;
+        }
+        if(indexed && hash) {
+            long index = HashIndex.create(((TableManagerImpl)tb.tbm).dm);
+            f.index = index;
+            f.indexType = INDEX_HASH;
+            f.hi = HashIndex.load(index, ((TableManagerImpl)tb.tbm).dm);
+        } else if(indexed) {
+            // 需要索引
+            // 创建B+树索引，并返回uid；字符串字段使用变长键，保持字典序
+            int balance = fanout == 0 ? BPlusTree.fanoutToBalance(BPlusTree.DEFAULT_FANOUT) : BPlusTree.fanoutToBalance(fanout);
+            int keyType = "string".equals(fieldType) || covering ? BPlusTree.KEY_BYTES : BPlusTree.KEY_LONG;
+            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm, balance, keyType, covering);
             // 加载B+树到内存
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm);
             // 设置索引uid
@@ -106,8 +175,12 @@ public class Field {
         byte[] typeRaw = Parser.string2Byte(fieldType);
         // 将索引uid转为字节数组
         byte[] indexRaw = Parser.long2Byte(index);
+        byte[] includeRaw = Parser.int2Byte(include.length);
+        for(String name : include) {
+            includeRaw = Bytes.concat(includeRaw, Parser.string2Byte(name));
+        }
         // 通过VersionManager插入字段信息，并返回uid
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, new byte[]{indexType, unique ? FLAG_UNIQUE : 0}, includeRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -116,28 +189,214 @@ public class Field {
         }
     }
 
+    // name为字段名，或 表名.字段名
+    boolean isNamed(String name) {
+        if(fieldName.equals(name)) {
+            return true;
+        }
+        // 不拼接字符串，直接比较两部分
+        int n = tb == null ? -1 : tb.name.length();
+        return n >= 0 && name.length() == n + 1 + fieldName.length() && name.startsWith(tb.name)
+                && name.charAt(n) == '.' && name.endsWith(fieldName);
+    }
+
     public boolean isIndexed() {
         return index != 0;
     }
 
+    public boolean isUnique() {
+        return unique;
+    }
+
+    // 索引的遍历顺序是否与值的顺序一致：哈希索引和旧版按哈希存储字符串的B+树索引无序
+    public boolean isOrdered() {
+        return bt != null && (bt.isBytesKey() || !"string".equals(fieldType));
+    }
+
+    // 是否是覆盖索引
+    boolean isCovering() {
+        return bt != null && bt.hasPayload();
+    }
+
+    /**
+     * 不读取记录、只读索引就能得到的字段：覆盖索引为键字段和Include字段，
+     * 整数字段的定长键B+树为键字段本身，其余索引只能得到uid，返回空列表
+     */
+    List<Field> indexColumns() {
+        List<Field> res = new ArrayList<>();
+        if(isCovering()) {
+            res.add(this);
+            for(String name : include) {
+                for(Field f : tb.fields) {
+                    if(f.fieldName.equals(name)) {
+                        res.add(f);
+                    }
+                }
+            }
+        } else if(bt != null && !bt.isBytesKey() && !"string".equals(fieldType)) {
+            res.add(this);
+        }
+        return res;
+    }
+
+    // 字符串值在B+树中是否被截断，截断后前缀相同的值在索引中的相对顺序是任意的
+    boolean isKeyTruncated(Object v) {
+        return bt != null && bt.isBytesKey() && indexKey(v).length > bt.maxKeyLength();
+    }
+
+    // 两个值在索引中的键是否相同（考虑截断）
+    boolean sameIndexKey(Object a, Object b) {
+        if(bt == null || !bt.isBytesKey()) {
+            return a.equals(b);
+        }
+        byte[] ka = indexKey(a), kb = indexKey(b);
+        int max = bt.maxKeyLength();
+        return Arrays.equals(ka, 0, Math.min(ka.length, max), kb, 0, Math.min(kb.length, max));
+    }
+
+    // 唯一键锁的资源id：同一个字段上相同的值映射到同一把锁，取负数以免与数据项的uid冲突
+    long uniqueLockUid(Object key) {
+        long h = Parser.hash64(index ^ hashKey(key));
+        return h | Long.MIN_VALUE;
+    }
+
+    // 等值查询的范围
+    public FieldCalRes pointRange(Object key) throws Exception {
+        SingleExpression exp = new SingleExpression();
+        exp.field = fieldName;
+        exp.compareOp = "=";
+        exp.value = printValue(key);
+        return calExp(exp);
+    }
+
+    // 插入记录entry的索引项，覆盖索引同时保存Include字段的值
+    public void insert(Map<String, Object> entry, long uid) throws Exception {
+        Object key = entry.get(fieldName);
+        if(!isCovering()) {
+            insert(key, uid);
+            return;
+        }
+        byte[] payload = value2Raw(key);
+        for(Field f : indexColumns().subList(1, include.length+1)) {
+            payload = Bytes.concat(payload, f.value2Raw(entry.get(f.fieldName)));
+        }
+        bt.insert(indexKey(key), uid, payload);
+    }
+
     public void insert(Object key, long uid) throws Exception {
-        long uKey = value2Uid(key);
-        bt.insert(uKey, uid);
+        if(hi != null) {
+            hi.insert(hashKey(key), uid);
+        } else if(bt.isBytesKey()) {
+            bt.insert(indexKey(key), uid);
+        } else {
+            bt.insert(value2Uid(key), uid);
+        }
+    }
+
+    // 删除指向uid这条记录的索引项
+    public void delete(Object key, long uid) throws Exception {
+        if(hi != null) {
+            hi.delete(hashKey(key), uid);
+        } else if(bt.isBytesKey()) {
+            bt.delete(indexKey(key), uid);
+        } else {
+            bt.delete(value2Uid(key), uid);
+        }
+    }
+
+    // 哈希索引上左右边界相同时是等值查询，否则只能扫描整个索引
+    public List<Long> search(FieldCalRes range) throws Exception {
+        if(hi != null) {
+            return range.left == range.right ? hi.search(range.left) : hi.searchAll();
+        }
+        if(bt.isBytesKey()) {
+            return bt.searchRange(range.leftKey, range.rightKey, range.rightInclusive);
+        }
+        return bt.searchRange(range.left, range.right);
+    }
+
+    // 按索引顺序逐个返回范围内的uid，B+树索引边读边返回，返回的是IndexCursor；哈希索引一次查出
+    public UidCursor cursor(FieldCalRes range) throws Exception {
+        if(hi != null) {
+            return UidCursor.of(search(range));
+        }
+        if(bt.isBytesKey()) {
+            return bt.cursor(range.leftKey, range.rightKey, range.rightInclusive);
+        }
+        return bt.cursor(range.left, range.right);
     }
 
-    public void delete(Object key) throws Exception {
-        long uKey = value2Uid(key);
-        bt.delete(uKey);
+    // 索引中最大的一批记录，只用于有序的B+树索引
+    long[] lastLeaf() throws Exception {
+        return bt.lastLeaf();
     }
 
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    // 全表范围
+    public FieldCalRes fullRange() {
+        FieldCalRes res = new FieldCalRes();
+        res.left = Long.MIN_VALUE;
+        res.right = Long.MAX_VALUE;
+        return res;
+    }
+
+    // 两个范围的交集（and条件）
+    public FieldCalRes intersect(FieldCalRes r0, FieldCalRes r1) {
+        FieldCalRes res = new FieldCalRes();
+        res.left = Math.max(r0.left, r1.left);
+        res.right = Math.min(r0.right, r1.right);
+        res.leftKey = r0.leftKey;
+        if(r1.leftKey != null && (res.leftKey == null || Arrays.compareUnsigned(r1.leftKey, res.leftKey) > 0)) {
+            res.leftKey = r1.leftKey;
+        }
+        res.rightKey = r0.rightKey;
+        res.rightInclusive = r0.rightInclusive;
+        if(r1.rightKey != null) {
+            int c = res.rightKey == null ? -1 : Arrays.compareUnsigned(r1.rightKey, res.rightKey);
+            if(c < 0) {
+                res.rightKey = r1.rightKey;
+                res.rightInclusive = r1.rightInclusive;
+            } else if(c == 0) {
+                res.rightInclusive &= r1.rightInclusive;
+            }
+        }
+        return res;
+    }
+
+    // 哈希索引使用的键
+    public long hashKey(Object key) {
+        if("string".equals(fieldType)) {
+            return Parser.hash64((String)key);
+        }
+        return Parser.hash64(((Number)key).longValue());
+    }
+
+    // 变长键索引使用的键：字符串的UTF-8编码，按无符号字节序比较与字符串的码点顺序一致
+    public byte[] value2Key(Object key) {
+        return ((String)key).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 按无符号字节序比较与值的顺序一致的字节串，用于排序
+    byte[] sortKey(Object v) {
+        return indexKey(v);
+    }
+
+    // 值在变长键B+树中的键，整数字段只出现在覆盖索引中
+    private byte[] indexKey(Object v) {
+        if("string".equals(fieldType)) {
+            return value2Key(v);
+        }
+        return long2Key(((Number)v).longValue());
+    }
+
+    private static byte[] long2Key(long v) {
+        return Parser.long2Byte(v ^ Long.MIN_VALUE);
     }
 
     /**
      *   - value2Uid(1) → 1 (int32)
      *   - value2Uid(100L) → 100 (int64)
      *   - value2Uid("abc") → 97 * 13331² + 98 * 13331 + 99 (哈希值)
+     * 字符串的哈希只用于旧版本创建的字符串索引，哈希相同的记录由match复核过滤
      */
     public long value2Uid(Object key) {
         long uid = 0;
@@ -188,27 +447,39 @@ public class Field {
         int shift;
     }
 
-    // 解析字节数组为值
-    public ParseValueRes parserValue(byte[] raw) {
+    // 解析raw中从pos开始的值，直接在原数组上读取
+    public ParseValueRes parserValue(byte[] raw, int pos) {
         ParseValueRes res = new ParseValueRes();
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
+                res.v = Parser.readInt(raw, pos);
                 res.shift = 4;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Parser.readLong(raw, pos);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
+                int length = Parser.readInt(raw, pos);
+                res.v = new String(raw, pos+4, length);
+                res.shift = length+4;
                 break;
         }
         return res;
     }
 
+    // 值在raw中占用的字节数，用于跳过不需要解析的字段
+    public int valueSize(byte[] raw, int pos) {
+        switch(fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return Parser.readInt(raw, pos)+4;
+        }
+    }
+
     public String printValue(Object v) {
         String str = null;
         switch(fieldType) {
@@ -231,39 +502,214 @@ public class Field {
                 .append(fieldName)
                 .append(", ")
                 .append(fieldType)
-                .append(index!=0?", Index":", NoIndex")
+                .append(index==0?", NoIndex":indexType==INDEX_HASH?", HashIndex":", Index")
+                .append(unique?", Unique":"")
+                .append(include.length>0?", Include"+Arrays.toString(include):"")
                 .append(")")
                 .toString();
     }
 
-    // 计算表达式
+    // 计算表达式对应的索引查询范围
+    // 范围可能比表达式宽（哈希索引上的范围查询、被截断的长键），查出的记录还需要用match复核
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
-        Object v = null;
+        if(bt != null && bt.isBytesKey()) {
+            if("string".equals(fieldType)) {
+                return calKeyExp(exp);
+            }
+            // 整数字段的覆盖索引：按整数计算范围，再换成闭区间的键
+            FieldCalRes res = calLongExp(exp);
+            res.leftKey = long2Key(res.left);
+            res.rightKey = long2Key(res.right);
+            res.rightInclusive = true;
+            return res;
+        }
+        return calLongExp(exp);
+    }
+
+    private FieldCalRes calLongExp(SingleExpression exp) throws Exception {
+        FieldCalRes res = fullRange();
+        if(hi != null) {
+            // 哈希索引只能用于等值查询
+            if("=".equals(exp.compareOp)) {
+                res.left = res.right = hashKey(string2Value(exp.value));
+            }
+            return res;
+        }
+        if("string".equals(fieldType) && !"=".equals(exp.compareOp)) {
+            // 旧的字符串索引按哈希排序，只能用于等值查询，其余条件全表扫描后复核
+            return res;
+        }
+        if("like".equals(exp.compareOp)) {
+            throw Error.invalidValuesException;
+        }
+        long v = value2Uid(string2Value(exp.value));
+        switch(exp.compareOp) {
+            case "<":
+                // where id < 5 -> [MIN,4]
+                if(v == Long.MIN_VALUE) return emptyRange();
+                res.right = v - 1;
+                break;
+            case "<=":
+                res.right = v;
+                break;
+            case "=":
+                res.left = v;
+                res.right = v;
+                break;
+            case ">":
+                // where id > 5 -> [6,MAX]
+                if(v == Long.MAX_VALUE) return emptyRange();
+                res.left = v + 1;
+                break;
+            case ">=":
+                res.left = v;
+                break;
+            case "between":
+                res.left = v;
+                res.right = value2Uid(string2Value(exp.value2));
+                break;
+        }
+        return res;
+    }
+
+    private static FieldCalRes emptyRange() {
         FieldCalRes res = new FieldCalRes();
+        res.left = 1;
+        res.right = 0;
+        return res;
+    }
+
+    // 变长键索引的查询范围，leftKey/rightKey为null表示无边界
+    private FieldCalRes calKeyExp(SingleExpression exp) {
+        FieldCalRes res = new FieldCalRes();
+        byte[] key = value2Key(string2Value(exp.value));
         switch(exp.compareOp) {
             case "<":
-                res.left = 0;
-                v = string2Value(exp.value);
-                res.right = value2Uid(v);
-                if(res.right > 0) {
-                    // where id < 5 -> [0,4]所以要-1
-                    res.right --;
-                }
+                res.rightKey = key;
+                res.rightInclusive = false;
+                break;
+            case "<=":
+                res.rightKey = key;
                 break;
             case "=":
-                // 将sql中的字符串转换为对应类型的java对象
-                v = string2Value(exp.value);
-                // 将java对象转换为B+树索引的uid
-                res.left = value2Uid(v);
-                res.right = res.left;
+                res.leftKey = key;
+                res.rightKey = key;
                 break;
             case ">":
-                res.right = Long.MAX_VALUE;
-                v = string2Value(exp.value);
-                // where id > 5 -> [6,MAX]所以要+1
-                res.left = value2Uid(v) + 1;
+                // 在key后追加0x00得到严格大于key的最小键
+                res.leftKey = Arrays.copyOf(key, key.length+1);
+                break;
+            case ">=":
+                res.leftKey = key;
+                break;
+            case "between":
+                res.leftKey = key;
+                res.rightKey = value2Key(string2Value(exp.value2));
+                break;
+            case "like":
+                // 取通配符之前的前缀，查询[prefix, prefix的后继)
+                byte[] prefix = value2Key(likePrefix(exp.value));
+                if(prefix.length > 0) {
+                    res.leftKey = prefix;
+                    res.rightKey = prefixSuccessor(prefix);
+                    res.rightInclusive = false;
+                }
                 break;
         }
         return res;
     }
+
+    // 大于所有以prefix开头的键的最小键，不存在时返回null
+    static byte[] prefixSuccessor(byte[] prefix) {
+        for(int i = prefix.length-1; i >= 0; i --) {
+            if(prefix[i] != (byte)0xFF) {
+                byte[] res = Arrays.copyOf(prefix, i+1);
+                res[i] ++;
+                return res;
+            }
+        }
+        return null;
+    }
+
+    private static String likePrefix(String pattern) {
+        int i = 0;
+        while(i < pattern.length() && pattern.charAt(i) != '%' && pattern.charAt(i) != '_') {
+            i ++;
+        }
+        return pattern.substring(0, i);
+    }
+
+    // 判断字段值v是否满足表达式
+    public boolean match(Object v, SingleExpression exp) {
+        if("like".equals(exp.compareOp)) {
+            if(!"string".equals(fieldType)) {
+                throw Error.invalidValuesException;
+            }
+            return likeMatch((String)v, exp.value);
+        }
+        int c = compare(v, string2Value(exp.value));
+        if("between".equals(exp.compareOp)) {
+            return c >= 0 && compare(v, string2Value(exp.value2)) <= 0;
+        }
+        return matchCompare(c, exp.compareOp);
+    }
+
+    // 整数字段直接比较，不装箱
+    public boolean match(long v, SingleExpression exp) {
+        if("like".equals(exp.compareOp)) {
+            throw Error.invalidValuesException;
+        }
+        int c = Long.compare(v, ((Number)string2Value(exp.value)).longValue());
+        if("between".equals(exp.compareOp)) {
+            return c >= 0 && v <= ((Number)string2Value(exp.value2)).longValue();
+        }
+        return matchCompare(c, exp.compareOp);
+    }
+
+    private static boolean matchCompare(int c, String compareOp) {
+        switch(compareOp) {
+            case "<":
+                return c < 0;
+            case "<=":
+                return c <= 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+            case ">=":
+                return c >= 0;
+        }
+        return false;
+    }
+
+    // 按索引的顺序比较两个值：整数按有符号数，字符串按UTF-8编码的无符号字节序
+    int compare(Object a, Object b) {
+        if("string".equals(fieldType)) {
+            return Arrays.compareUnsigned(value2Key(a), value2Key(b));
+        }
+        return Long.compare(((Number)a).longValue(), ((Number)b).longValue());
+    }
+
+    // %匹配任意字符串，_匹配单个字符
+    static boolean likeMatch(String str, String pattern) {
+        int s = 0, p = 0, star = -1, mark = 0;
+        while(s < str.length()) {
+            if(p < pattern.length() && (pattern.charAt(p) == '_' || pattern.charAt(p) == str.charAt(s))) {
+                s ++;
+                p ++;
+            } else if(p < pattern.length() && pattern.charAt(p) == '%') {
+                star = p ++;
+                mark = s;
+            } else if(star >= 0) {
+                p = star + 1;
+                s = ++ mark;
+            } else {
+                return false;
+            }
+        }
+        while(p < pattern.length() && pattern.charAt(p) == '%') {
+            p ++;
+        }
+        return p == pattern.length();
+    }
 }
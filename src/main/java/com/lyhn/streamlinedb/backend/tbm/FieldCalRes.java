@@ -3,4 +3,8 @@ package com.lyhn.streamlinedb.backend.tbm;
 public class FieldCalRes {
     public long left;
     public long right;
+    // 变长键索引的范围，null表示无边界
+    public byte[] leftKey;
+    public byte[] rightKey;
+    public boolean rightInclusive = true;
 }
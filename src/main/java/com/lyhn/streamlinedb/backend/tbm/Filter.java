@@ -0,0 +1,56 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+
+import java.util.List;
+
+/**
+ * 按where条件过滤记录
+ * 条件编译为Predicate，在按列解码的批次上计算出选择向量，再原地去掉不满足条件的记录；
+ * 整批都不满足时继续读取下一批
+ */
+class Filter implements Operator {
+    private final Operator child;
+    private final Predicate predicate;
+
+    private ColumnBatch cols;
+    private int[] sel;
+
+    Filter(Operator child, Where where) throws Exception {
+        this.child = child;
+        this.predicate = Predicate.compile(where, child.schema());
+    }
+
+    @Override
+    public List<Field> schema() {
+        return child.schema();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        cols = new ColumnBatch(child.schema());
+        sel = new int[RowBatch.CAPACITY];
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        RowBatch batch;
+        while((batch = child.next()) != null) {
+            cols.reset(batch);
+            for(int i = 0; i < batch.size; i ++) {
+                sel[i] = i;
+            }
+            batch.select(sel, predicate.filter(cols, sel, batch.size));
+            if(!batch.isEmpty()) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        child.close();
+    }
+}
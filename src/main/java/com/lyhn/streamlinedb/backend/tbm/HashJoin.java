@@ -0,0 +1,269 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 哈希连接：读出build一侧的全部记录按连接字段建哈希表，再逐条用probe一侧的记录查找
+ * 输出的记录为两侧记录的字节依次拼接，probeFirst决定哪一侧在前；leftOuter时probe一侧没有匹配的记录也输出一次
+ *
+ * 哈希表超过memoryBudget时改为分区连接：两侧记录都按连接字段的哈希值写入PARTITIONS个临时文件，
+ * 再逐个分区连接；一个分区的build记录仍然放不下时分块读入，每块都要重新读一遍该分区的probe记录，
+ * 用位图记录probe记录是否在之前的块中匹配过，最后一块时输出始终没有匹配的记录
+ */
+class HashJoin implements Operator {
+    static final int PARTITIONS = 16;
+    // 哈希表中每条记录除数据外的开销估计
+    static final int ROW_OVERHEAD = 48;
+
+    private final Operator probe;
+    private final Operator build;
+    private final int probeKey;
+    private final int buildKey;
+    private final boolean leftOuter;
+    private final boolean probeFirst;
+    private final long memoryBudget;
+    private final File spillBase;
+    private final List<Field> schema = new ArrayList<>();
+
+    private final Map<Object, List<byte[]>> table = new HashMap<>();
+    private long used;
+    private Row probeRow;
+    private byte[] empty;
+    private RowBatch batch;
+
+    // 当前probe记录
+    private byte[] probeRaw;
+    private int probeStart, probeEnd;
+    private long probeUid;
+    // 内存中连接时当前的probe批次
+    private RowBatch in;
+    private int pos;
+    private boolean probeDone;
+    // 当前probe记录还没有输出的匹配
+    private List<byte[]> matches;
+    private int matchPos;
+
+    // 分区连接时的状态：当前分区，当前probe记录在分区中的序号，当前块是否是该分区的最后一块
+    private SpillFile[] buildParts;
+    private SpillFile[] probeParts;
+    private int part;
+    private long ordinal;
+    private boolean lastChunk;
+    private final BitSet matched = new BitSet();
+
+    HashJoin(Operator probe, int probeKey, Operator build, int buildKey, boolean leftOuter, boolean probeFirst,
+             long memoryBudget, File spillBase) {
+        this.probe = probe;
+        this.build = build;
+        this.probeKey = probeKey;
+        this.buildKey = buildKey;
+        this.leftOuter = leftOuter;
+        this.probeFirst = probeFirst;
+        this.memoryBudget = memoryBudget;
+        this.spillBase = spillBase;
+        schema.addAll(probeFirst ? probe.schema() : build.schema());
+        schema.addAll(probeFirst ? build.schema() : probe.schema());
+    }
+
+    // 连接字段的值，整数统一为Long
+    static Object key(Row row, int i) {
+        Object v = row.get(i);
+        return v instanceof Integer ? Long.valueOf((Integer)v) : v;
+    }
+
+    private static int partition(Object key) {
+        return (int)((Parser.hash64(key.hashCode()) >>> 1) % PARTITIONS);
+    }
+
+    boolean isSpilled() {
+        return buildParts != null;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return schema;
+    }
+
+    @Override
+    public void open() throws Exception {
+        Row row = new Row(build.schema());
+        try {
+            build.open();
+            RowBatch b;
+            while((b = build.next()) != null) {
+                for(int i = 0; i < b.size; i ++) {
+                    b.load(row, i);
+                    Object key = key(row, buildKey);
+                    if(isSpilled()) {
+                        buildParts[partition(key)].write(b.uids[i], b.data, b.starts[i], b.ends[i]);
+                    } else {
+                        add(key, b.copy(i));
+                        if(used > memoryBudget) {
+                            spill();
+                        }
+                    }
+                }
+            }
+        } finally {
+            build.close();
+        }
+        probe.open();
+        probeRow = new Row(probe.schema());
+        empty = Row.empty(build.schema());
+        batch = new RowBatch();
+        lastChunk = true;
+        if(isSpilled()) {
+            partitionProbe();
+            part = -1;
+        }
+    }
+
+    private void add(Object key, byte[] data) {
+        table.computeIfAbsent(key, k -> new ArrayList<>()).add(data);
+        used += data.length + ROW_OVERHEAD;
+    }
+
+    // 把已经在哈希表中的记录写入各分区，之后的build记录直接写入分区
+    private void spill() throws Exception {
+        buildParts = new SpillFile[PARTITIONS];
+        probeParts = new SpillFile[PARTITIONS];
+        for(int p = 0; p < PARTITIONS; p ++) {
+            buildParts[p] = new SpillFile(spillBase);
+            probeParts[p] = new SpillFile(spillBase);
+        }
+        for(Map.Entry<Object, List<byte[]>> e : table.entrySet()) {
+            SpillFile f = buildParts[partition(e.getKey())];
+            for(byte[] data : e.getValue()) {
+                f.write(0, data, 0, data.length);
+            }
+        }
+        table.clear();
+        used = 0;
+    }
+
+    private void partitionProbe() throws Exception {
+        RowBatch b;
+        while((b = probe.next()) != null) {
+            for(int i = 0; i < b.size; i ++) {
+                b.load(probeRow, i);
+                probeParts[partition(key(probeRow, probeKey))].write(b.uids[i], b.data, b.starts[i], b.ends[i]);
+            }
+        }
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        while(!batch.isFull()) {
+            if(matches != null && matchPos < matches.size()) {
+                emit(matches.get(matchPos ++));
+                continue;
+            }
+            if(!nextProbe()) {
+                break;
+            }
+            probeRow.reset(probeRaw, probeStart);
+            matches = table.get(key(probeRow, probeKey));
+            matchPos = 0;
+            if(matches != null) {
+                if(isSpilled()) matched.set((int)ordinal);
+            } else if(leftOuter && lastChunk && !(isSpilled() && matched.get((int)ordinal))) {
+                emit(empty);
+            }
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    private void emit(byte[] other) {
+        batch.begin(probeUid);
+        if(probeFirst) {
+            batch.append(probeRaw, probeStart, probeEnd-probeStart);
+            batch.append(other, 0, other.length);
+        } else {
+            batch.append(other, 0, other.length);
+            batch.append(probeRaw, probeStart, probeEnd-probeStart);
+        }
+        batch.end();
+    }
+
+    // 读取下一条probe记录
+    private boolean nextProbe() throws Exception {
+        if(!isSpilled()) {
+            while(in == null || pos == in.size) {
+                in = probeDone ? null : probe.next();
+                pos = 0;
+                if(in == null) {
+                    probeDone = true;
+                    return false;
+                }
+            }
+            probeRaw = in.data;
+            probeStart = in.starts[pos];
+            probeEnd = in.ends[pos];
+            probeUid = in.uids[pos];
+            pos ++;
+            return true;
+        }
+        while(part < PARTITIONS) {
+            SpillFile f = part < 0 ? null : probeParts[part];
+            if(f != null && f.next()) {
+                ordinal ++;
+                probeRaw = f.data;
+                probeStart = 0;
+                probeEnd = f.length;
+                probeUid = f.uid;
+                return true;
+            }
+            if(f != null && buildParts[part].hasNext()) {
+                // 读入同一分区的下一块，重新读一遍probe记录
+                loadChunk();
+                continue;
+            }
+            // 下一个分区；内连接时build一侧为空的分区不需要读取
+            do {
+                part ++;
+            } while(part < PARTITIONS && !leftOuter && buildParts[part].count() == 0);
+            if(part == PARTITIONS) {
+                break;
+            }
+            matched.clear();
+            buildParts[part].rewind();
+            loadChunk();
+        }
+        return false;
+    }
+
+    private void loadChunk() throws Exception {
+        table.clear();
+        used = 0;
+        Row row = new Row(build.schema());
+        SpillFile f = buildParts[part];
+        while(used <= memoryBudget && f.next()) {
+            row.reset(f.data, 0);
+            add(key(row, buildKey), Arrays.copyOf(f.data, f.length));
+        }
+        lastChunk = !f.hasNext();
+        probeParts[part].rewind();
+        ordinal = -1;
+    }
+
+    @Override
+    public void close() throws Exception {
+        probe.close();
+        table.clear();
+        if(isSpilled()) {
+            for(int p = 0; p < PARTITIONS; p ++) {
+                buildParts[p].close();
+                probeParts[p].close();
+            }
+        }
+    }
+}
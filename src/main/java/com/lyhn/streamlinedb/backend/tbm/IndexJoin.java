@@ -0,0 +1,146 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+import com.lyhn.streamlinedb.backend.vm.EntryReader;
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 索引嵌套循环连接：对outer的每条记录，用连接字段的值在内层表innerKey的索引上等值查找，读出内层表的记录
+ * 索引中的键可能被截断，哈希索引也可能冲突，读出的记录要复核连接字段的值，再用innerWhere过滤
+ * 输出的记录为两侧记录的字节依次拼接，outerFirst决定哪一侧在前；leftOuter时没有匹配的outer记录也输出一次
+ */
+class IndexJoin implements Operator {
+    private final Operator outer;
+    private final int outerKey;
+    private final Table inner;
+    private final Field innerKey;
+    private final int innerKeyIdx;
+    private final Where innerWhere;
+    private final long xid;
+    private final boolean leftOuter;
+    private final boolean outerFirst;
+    private final List<Field> schema = new ArrayList<>();
+
+    private VersionManager vm;
+    private Row outerRow;
+    private byte[] empty;
+    private RowBatch batch;
+    private EntryReader reader;
+
+    private RowBatch in;
+    private int pos;
+    private boolean outerDone;
+    // 当前outer记录查找的值，以及还没有输出的匹配
+    private Object key;
+    private final List<byte[]> matches = new ArrayList<>();
+    private int matchPos;
+
+    IndexJoin(Operator outer, int outerKey, Table inner, Field innerKey, Where innerWhere, long xid, boolean leftOuter, boolean outerFirst) {
+        this.outer = outer;
+        this.outerKey = outerKey;
+        this.inner = inner;
+        this.innerKey = innerKey;
+        this.innerKeyIdx = inner.fields.indexOf(innerKey);
+        this.innerWhere = innerWhere;
+        this.xid = xid;
+        this.leftOuter = leftOuter;
+        this.outerFirst = outerFirst;
+        schema.addAll(outerFirst ? outer.schema() : inner.fields);
+        schema.addAll(outerFirst ? inner.fields : outer.schema());
+    }
+
+    @Override
+    public List<Field> schema() {
+        return schema;
+    }
+
+    @Override
+    public void open() throws Exception {
+        outer.open();
+        vm = ((TableManagerImpl)inner.tbm).vm;
+        outerRow = new Row(outer.schema());
+        empty = Row.empty(inner.fields);
+        batch = new RowBatch();
+        Row row = new Row(inner.fields);
+        reader = data -> {
+            row.reset(data);
+            if(key.equals(HashJoin.key(row, innerKeyIdx)) && inner.matchWhere(row, innerWhere)) {
+                matches.add(Arrays.copyOfRange(data.raw, data.start, data.end));
+            }
+        };
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        while(!batch.isFull()) {
+            if(matchPos < matches.size()) {
+                emit(matches.get(matchPos ++));
+                continue;
+            }
+            if(!nextOuter()) {
+                break;
+            }
+            outerRow.reset(in.data, in.starts[pos]);
+            key = HashJoin.key(outerRow, outerKey);
+            matches.clear();
+            matchPos = 0;
+            Object value = innerValue(key);
+            if(value != null) {
+                for(long uid : innerKey.search(innerKey.pointRange(value))) {
+                    vm.read(xid, uid, reader);
+                }
+            }
+            if(matches.isEmpty() && leftOuter) {
+                emit(empty);
+            }
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    // 移到下一条outer记录，pos指向它
+    private boolean nextOuter() throws Exception {
+        if(in != null) {
+            pos ++;
+        }
+        while(in == null || pos == in.size) {
+            in = outerDone ? null : outer.next();
+            pos = 0;
+            if(in == null) {
+                outerDone = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 连接字段的值换算成内层字段的类型，超出int32范围时不可能匹配，返回null
+    private Object innerValue(Object key) {
+        if(!"int32".equals(innerKey.fieldType)) {
+            return key;
+        }
+        long v = (Long)key;
+        return v < Integer.MIN_VALUE || v > Integer.MAX_VALUE ? null : (Object)(int)v;
+    }
+
+    private void emit(byte[] other) {
+        batch.begin(in.uids[pos]);
+        if(outerFirst) {
+            batch.append(in.data, in.starts[pos], in.ends[pos]-in.starts[pos]);
+            batch.append(other, 0, other.length);
+        } else {
+            batch.append(other, 0, other.length);
+            batch.append(in.data, in.starts[pos], in.ends[pos]-in.starts[pos]);
+        }
+        batch.end();
+    }
+
+    @Override
+    public void close() throws Exception {
+        outer.close();
+    }
+}
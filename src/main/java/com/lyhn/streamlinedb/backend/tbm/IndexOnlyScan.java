@@ -0,0 +1,101 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.im.IndexCursor;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+import com.lyhn.streamlinedb.backend.vm.EntryReader;
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+import java.util.List;
+
+/**
+ * 只读索引的扫描，输出索引字段的indexColumns，不读取记录
+ * 记录所在页在可见性映射中标记为全部可见时直接用叶子中的键或附加数据拼出记录；
+ * 否则仍要读出记录检查MVCC可见性，此时从记录中取出字段值。附加数据没有保存时也从记录中读取
+ */
+class IndexOnlyScan implements Operator {
+    private final Table table;
+    private final long xid;
+    private final Table.ScanRes scan;
+    private final IndexCursor cursor;
+    private final List<Field> schema;
+    // 输出的各字段在表中的下标
+    private final int[] columns;
+
+    private VersionManager vm;
+    private RowBatch batch;
+    private EntryReader reader;
+    private long current;
+    // 读取了记录的次数
+    long heapFetches;
+
+    IndexOnlyScan(Table table, long xid, Table.ScanRes scan) {
+        this.table = table;
+        this.xid = xid;
+        this.scan = scan;
+        this.cursor = (IndexCursor)scan.uids;
+        this.schema = scan.fd.indexColumns();
+        this.columns = new int[schema.size()];
+        for(int i = 0; i < columns.length; i ++) {
+            columns[i] = table.fields.indexOf(schema.get(i));
+        }
+    }
+
+    @Override
+    public List<Field> schema() {
+        return schema;
+    }
+
+    @Override
+    public void open() {
+        vm = ((TableManagerImpl)table.tbm).vm;
+        batch = new RowBatch();
+        Row row = new Row(table.fields);
+        reader = data -> {
+            row.reset(data);
+            batch.begin(current);
+            for(int c : columns) {
+                batch.append(row.raw(), row.start(c), row.size(c));
+            }
+            batch.end();
+        };
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        while(!batch.isFull() && cursor.hasNext()) {
+            current = cursor.next();
+            if(table.visibility.isAllVisible(current) && fromIndex()) {
+                continue;
+            }
+            heapFetches ++;
+            vm.read(xid, current, reader);
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    // 用叶子中保存的内容拼出记录，附加数据没有保存时返回false
+    private boolean fromIndex() {
+        if(scan.fd.isCovering()) {
+            byte[] payload = cursor.payload();
+            if(payload == null) {
+                return false;
+            }
+            batch.add(current, payload);
+            return true;
+        }
+        batch.begin(current);
+        if(!schema.isEmpty()) {
+            long key = cursor.key();
+            byte[] raw = "int32".equals(scan.fd.fieldType) ? Parser.int2Byte((int)key) : Parser.long2Byte(key);
+            batch.append(raw, 0, raw.length);
+        }
+        batch.end();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        batch = null;
+    }
+}
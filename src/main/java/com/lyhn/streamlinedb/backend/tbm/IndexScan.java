@@ -0,0 +1,98 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.im.UidCursor;
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+import com.lyhn.streamlinedb.backend.vm.EntryReader;
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+import java.util.List;
+
+/**
+ * 按where条件在索引上扫描，输出对事务可见的记录
+ * 索引查出的范围可能比条件宽，需要在上层用Filter复核
+ *
+ * 记录在数据项的读锁内直接拷贝到批次中，不为每条记录分配数组；
+ * lockMode不为-1时按FOR SHARE/FOR UPDATE对记录加锁后读取：先在快照上用where复核，只锁满足条件的记录，
+ * 且每批只输出一条，上层LIMIT够数后不再读取，也就不会锁住更多的记录
+ */
+class IndexScan implements Operator {
+    private final Table table;
+    private final long xid;
+    private final int lockMode;
+    private final Where where;
+    // 构造时确定扫描的索引和范围
+    private final Table.ScanRes scan;
+
+    private VersionManager vm;
+    private RowBatch batch;
+    private EntryReader reader;
+    private long current;
+    private Row row;
+
+    IndexScan(Table table, long xid, Where where, int lockMode) throws Exception {
+        this(table, xid, table.scan(where), where, lockMode);
+    }
+
+    IndexScan(Table table, long xid, Table.ScanRes scan, Where where, int lockMode) {
+        this.table = table;
+        this.xid = xid;
+        this.lockMode = lockMode;
+        this.where = where;
+        this.scan = scan;
+    }
+
+    // 输出是否按字段fd升序
+    boolean isOrderedBy(Field fd) {
+        return scan.isOrderedBy(fd);
+    }
+
+    UidCursor uids() {
+        return scan.uids;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return table.fields;
+    }
+
+    @Override
+    public void open() {
+        vm = ((TableManagerImpl)table.tbm).vm;
+        batch = new RowBatch();
+        reader = data -> batch.add(current, data.raw, data.start, data.end);
+        row = new Row(table.fields);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        while(!batch.isFull() && scan.uids.hasNext()) {
+            current = scan.uids.next();
+            if(lockMode < 0) {
+                vm.read(xid, current, reader);
+                continue;
+            }
+            if(where != null) {
+                byte[] snapshot = vm.read(xid, current);
+                if(snapshot == null) {
+                    continue;
+                }
+                row.reset(snapshot);
+                if(!table.matchWhere(row, where)) {
+                    continue;
+                }
+            }
+            byte[] raw = vm.readForLock(xid, current, lockMode);
+            if(raw != null) {
+                batch.add(current, raw);
+                break;
+            }
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    @Override
+    public void close() {
+        batch = null;
+    }
+}
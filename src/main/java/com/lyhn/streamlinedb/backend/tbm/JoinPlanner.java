@@ -0,0 +1,161 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.parser.statement.Join;
+import com.lyhn.streamlinedb.backend.parser.statement.Select;
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 两个表的JOIN，ON条件是两个表各一个字段的等值比较，连接后的记录为左表记录接右表记录
+ *
+ * WHERE按AND拆开，只涉及一个表的条件下推到该表的扫描；LEFT JOIN时右表的条件要在连接之后过滤，不能下推。
+ * 内层表的连接字段有索引、且按外层估计的记录数逐条查找比两边各扫描一次代价低时用索引嵌套循环连接，
+ * 否则用哈希连接，内连接以估计记录数少的一侧建哈希表。连接之后按单表查询的方式过滤、聚合、排序和投影
+ *
+ * 没有NULL值，LEFT JOIN中没有匹配的左表记录，右表的字段输出为0或空字符串
+ */
+class JoinPlanner {
+    static Operator plan(long xid, Select read, Table left, Table right) throws Exception {
+        Join join = read.join;
+        TableManagerImpl tbm = (TableManagerImpl)left.tbm;
+        if(left == right || read.forShare || read.forUpdate) {
+            throw Error.invalidJoinException;
+        }
+        List<Field> all = new ArrayList<>(left.fields);
+        all.addAll(right.fields);
+        Field lk = resolve(all, join.leftField);
+        Field rk = resolve(all, join.rightField);
+        if(!left.fields.contains(lk)) {
+            Field t = lk;
+            lk = rk;
+            rk = t;
+        }
+        if(!left.fields.contains(lk) || !right.fields.contains(rk)
+                || "string".equals(lk.fieldType) != "string".equals(rk.fieldType)) {
+            throw Error.invalidJoinException;
+        }
+
+        List<Where> leftConds = new ArrayList<>(), rightConds = new ArrayList<>(), postConds = new ArrayList<>();
+        Set<Field> used = new HashSet<>();
+        for(Where cond : conjuncts(read.where)) {
+            Set<Field> fs = new HashSet<>();
+            fieldsOf(cond, all, fs);
+            used.addAll(fs);
+            if(left.fields.containsAll(fs)) {
+                leftConds.add(cond);
+            } else if(!join.left && right.fields.containsAll(fs)) {
+                rightConds.add(cond);
+            } else {
+                postConds.add(cond);
+            }
+        }
+        used.add(lk);
+        used.add(rk);
+        fieldsOf(read, all, used);
+        Where lw = and(leftConds), rw = and(rightConds);
+
+        AccessPath lp = left.choose(lw), rp = right.choose(rw);
+        double hash = lp.cost() + rp.cost();
+        double rightInner = rk.isIndexed() ? lp.cost() + lp.rows * probeCost(right, rk) : Double.MAX_VALUE;
+        double leftInner = !join.left && lk.isIndexed() ? rp.cost() + rp.rows * probeCost(left, lk) : Double.MAX_VALUE;
+        Operator joined;
+        if(rightInner <= hash && rightInner <= leftInner) {
+            Operator outer = left.planScan(xid, lw, names(left, used));
+            joined = new IndexJoin(outer, outer.schema().indexOf(lk), right, rk, rw, xid, join.left, true);
+        } else if(leftInner <= hash) {
+            Operator outer = right.planScan(xid, rw, names(right, used));
+            joined = new IndexJoin(outer, outer.schema().indexOf(rk), left, lk, lw, xid, false, false);
+        } else {
+            Operator l = left.planScan(xid, lw, names(left, used));
+            Operator r = right.planScan(xid, rw, names(right, used));
+            if(join.left || rp.rows <= lp.rows) {
+                joined = new HashJoin(l, l.schema().indexOf(lk), r, r.schema().indexOf(rk), join.left, true, tbm.sortMemory, tbm.spillBase);
+            } else {
+                joined = new HashJoin(r, r.schema().indexOf(rk), l, l.schema().indexOf(lk), false, false, tbm.sortMemory, tbm.spillBase);
+            }
+        }
+
+        Operator plan = postConds.isEmpty() ? joined : new Filter(joined, and(postConds));
+        if(read.funcs != null || read.groupBy != null) {
+            return left.planAggregate(plan, read, null);
+        }
+        return left.planOutput(plan, read, all, null);
+    }
+
+    // 在索引上查找一个值，再读出对应的记录
+    private static double probeCost(Table inner, Field fd) {
+        return AccessPath.COST_RANDOM_FETCH + inner.rowsPerKey(fd) * (AccessPath.COST_INDEX + AccessPath.COST_RANDOM_FETCH);
+    }
+
+    private static Field resolve(List<Field> all, String name) {
+        return all.get(Table.indexOf(all, name));
+    }
+
+    // 按AND拆开的各个条件
+    private static List<Where> conjuncts(Where where) {
+        if(where == null) {
+            return Collections.emptyList();
+        }
+        if("and".equals(where.logicOp)) {
+            List<Where> res = new ArrayList<>();
+            for(Where op : Table.operands(where)) {
+                res.addAll(conjuncts(op));
+            }
+            return res;
+        }
+        return Collections.singletonList(where);
+    }
+
+    private static Where and(List<Where> conds) {
+        if(conds.isEmpty()) {
+            return null;
+        }
+        if(conds.size() == 1) {
+            return conds.get(0);
+        }
+        Where where = new Where();
+        where.logicOp = "and";
+        where.children = conds.toArray(new Where[0]);
+        return where;
+    }
+
+    private static void fieldsOf(Where where, List<Field> all, Set<Field> res) {
+        Where[] ops = Table.operands(where);
+        if(ops == null) {
+            res.add(resolve(all, where.singleExp1.field));
+            return;
+        }
+        for(Where op : ops) {
+            fieldsOf(op, all, res);
+        }
+    }
+
+    // SELECT列表、GROUP BY和ORDER BY用到的字段，SELECT *为全部字段
+    private static void fieldsOf(Select read, List<Field> all, Set<Field> res) {
+        for(int i = 0; i < read.fields.length; i ++) {
+            if(!"*".equals(read.fields[i])) {
+                res.add(resolve(all, read.fields[i]));
+            } else if(read.funcs == null) {
+                res.addAll(all);
+            }
+        }
+        if(read.groupBy != null) res.add(resolve(all, read.groupBy));
+        if(read.orderBy != null) res.add(resolve(all, read.orderBy));
+    }
+
+    private static Set<String> names(Table table, Set<Field> used) {
+        Set<String> res = new HashSet<>();
+        for(Field f : table.fields) {
+            if(used.contains(f)) {
+                res.add(f.fieldName);
+            }
+        }
+        return res;
+    }
+}
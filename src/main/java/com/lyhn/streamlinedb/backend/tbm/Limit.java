@@ -0,0 +1,54 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 跳过前offset条记录，最多输出limit条
+ * 输出够之后不再从子算子读取，扫描随之提前结束
+ */
+class Limit implements Operator {
+    private final Operator child;
+    private final int offset;
+    // 为-1表示不限制
+    private final int limit;
+
+    private int skipped;
+    private int emitted;
+
+    Limit(Operator child, int offset, int limit) {
+        this.child = child;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return child.schema();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        RowBatch batch;
+        while((limit < 0 || emitted < limit) && (batch = child.next()) != null) {
+            int from = Math.min(offset-skipped, batch.size);
+            skipped += from;
+            int to = limit < 0 ? batch.size : Math.min(batch.size, from+limit-emitted);
+            if(to > from) {
+                batch.slice(from, to);
+                emitted += to-from;
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws Exception {
+        child.close();
+    }
+}
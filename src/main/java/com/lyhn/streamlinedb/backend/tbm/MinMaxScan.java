@@ -0,0 +1,104 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.im.UidCursor;
+import com.lyhn.streamlinedb.backend.parser.statement.Select;
+import com.lyhn.streamlinedb.backend.vm.EntryReader;
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+import java.util.List;
+
+/**
+ * 只有同一个有序索引字段上的min/max时，只读出可能是结果的记录，交给Aggregate计算
+ * min取索引顺序中第一条满足条件的记录，max取最右叶子节点中的记录，不扫描全部记录
+ *
+ * 候选记录在prepare中读出，prepare返回false时不能这样计算，需要改为普通的扫描
+ */
+class MinMaxScan implements Operator {
+    private final Table table;
+    private final long xid;
+    private final Select read;
+    private final Field fd;
+
+    // 候选记录，数量不超过一个叶子节点的大小加一
+    private final RowBatch rows = new RowBatch();
+    private boolean emitted;
+
+    MinMaxScan(Table table, long xid, Select read, Field fd) {
+        this.table = table;
+        this.xid = xid;
+        this.read = read;
+        this.fd = fd;
+    }
+
+    boolean prepare() throws Exception {
+        boolean hasMax = Aggregate.hasFunc(read, "max");
+        // min需要按fd的顺序扫描；max只在没有条件时从最右叶子读取
+        if(!fd.isOrdered()) {
+            return false;
+        }
+        IndexScan scan = null;
+        if(read.where != null) {
+            scan = new IndexScan(table, xid, read.where, -1);
+            if(hasMax || !scan.isOrderedBy(fd)) {
+                return false;
+            }
+        }
+        VersionManager vm = ((TableManagerImpl)table.tbm).vm;
+        int idx = table.fields.indexOf(fd);
+        Row row = new Row(table.fields);
+        long[] current = new long[1];
+        // 索引中被截断的键无法确定相对顺序，遇到时放弃
+        boolean[] state = new boolean[2];
+        EntryReader reader = data -> {
+            row.reset(data);
+            if(table.matchWhere(row, read.where) && !rows.isFull()) {
+                rows.add(current[0], data.raw, data.start, data.end);
+                state[0] = true;
+                state[1] |= fd.isKeyTruncated(row.get(idx));
+            }
+        };
+        if(hasMax) {
+            for(long uid : fd.lastLeaf()) {
+                current[0] = uid;
+                vm.read(xid, uid, reader);
+            }
+            if(!state[0] || state[1] || rows.isFull()) {
+                return false;
+            }
+        }
+        if(Aggregate.hasFunc(read, "min")) {
+            UidCursor uids = scan == null ? fd.cursor(fd.fullRange()) : scan.uids();
+            state[0] = false;
+            while(!state[0] && uids.hasNext()) {
+                current[0] = uids.next();
+                vm.read(xid, current[0], reader);
+            }
+            if(state[1] || rows.isFull()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return table.fields;
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public RowBatch next() {
+        if(emitted || rows.isEmpty()) {
+            return null;
+        }
+        emitted = true;
+        return rows;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,18 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.util.List;
+
+/**
+ * 火山模型的算子：open后反复调用next，每次返回一批记录，返回null表示没有更多记录，最后调用close
+ * 返回的批次属于算子，下一次调用next后失效，需要保留记录时要拷贝
+ */
+interface Operator {
+    // 输出记录的字段
+    List<Field> schema();
+
+    void open() throws Exception;
+
+    RowBatch next() throws Exception;
+
+    void close() throws Exception;
+}
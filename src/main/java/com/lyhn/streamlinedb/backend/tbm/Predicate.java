@@ -0,0 +1,258 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.parser.statement.SingleExpression;
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按批计算的where条件，由比较和AND/OR/NOT组成的树
+ * 以选择向量表示批次中仍然满足条件的行号：每个节点从sel[0..n)中保留满足条件的行号，顺序不变
+ *
+ * 比较在ColumnBatch解码出的列上逐个元素进行：整数比较统一换算成闭区间[lo, hi]，
+ * 字符串按UTF-8字节的无符号字节序直接在记录数据上比较，只有like需要构造String
+ */
+abstract class Predicate {
+    // 返回保留的行数
+    abstract int filter(ColumnBatch cols, int[] sel, int n);
+
+    static Predicate compile(Where where, List<Field> fields) throws Exception {
+        Where[] ops = Table.operands(where);
+        if(ops == null) {
+            return compare(where.singleExp1, fields);
+        }
+        Predicate[] children = new Predicate[ops.length];
+        for(int i = 0; i < ops.length; i ++) {
+            children[i] = compile(ops[i], fields);
+        }
+        switch(where.logicOp) {
+            case "and":
+                return new And(children);
+            case "or":
+                return new Or(children);
+            case "not":
+                return new Not(children[0]);
+            default:
+                throw Error.invalidLogOpException;
+        }
+    }
+
+    static Predicate compare(SingleExpression exp, List<Field> fields) throws Exception {
+        int col = Table.indexOf(fields, exp.field);
+        Field fd = fields.get(col);
+        boolean isString = "string".equals(fd.fieldType);
+        if("like".equals(exp.compareOp)) {
+            if(!isString) {
+                throw Error.invalidValuesException;
+            }
+            return new Like(col, exp.value);
+        }
+        if(isString) {
+            byte[] v = fd.value2Key(fd.string2Value(exp.value));
+            switch(exp.compareOp) {
+                case "<":
+                    return new StringRange(col, null, false, v, false);
+                case "<=":
+                    return new StringRange(col, null, false, v, true);
+                case ">":
+                    return new StringRange(col, v, false, null, false);
+                case ">=":
+                    return new StringRange(col, v, true, null, false);
+                case "between":
+                    return new StringRange(col, v, true, fd.value2Key(fd.string2Value(exp.value2)), true);
+                default:
+                    return new StringRange(col, v, true, v, true);
+            }
+        }
+        long v = ((Number)fd.string2Value(exp.value)).longValue();
+        switch(exp.compareOp) {
+            case "<":
+                return v == Long.MIN_VALUE ? new LongRange(col, 1, 0) : new LongRange(col, Long.MIN_VALUE, v-1);
+            case "<=":
+                return new LongRange(col, Long.MIN_VALUE, v);
+            case ">":
+                return v == Long.MAX_VALUE ? new LongRange(col, 1, 0) : new LongRange(col, v+1, Long.MAX_VALUE);
+            case ">=":
+                return new LongRange(col, v, Long.MAX_VALUE);
+            case "between":
+                return new LongRange(col, v, ((Number)fd.string2Value(exp.value2)).longValue());
+            default:
+                return new LongRange(col, v, v);
+        }
+    }
+
+    // 整数列的值在[lo, hi]内
+    static class LongRange extends Predicate {
+        private final int col;
+        private final long lo, hi;
+
+        LongRange(int col, long lo, long hi) {
+            this.col = col;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            long[] v = cols.longs(col);
+            int m = 0;
+            for(int i = 0; i < n; i ++) {
+                int r = sel[i];
+                if(v[r] >= lo && v[r] <= hi) {
+                    sel[m ++] = r;
+                }
+            }
+            return m;
+        }
+    }
+
+    // 字符串列的值在lo和hi之间，为null表示无边界
+    static class StringRange extends Predicate {
+        private final int col;
+        private final byte[] lo, hi;
+        private final boolean loInclusive, hiInclusive;
+
+        StringRange(int col, byte[] lo, boolean loInclusive, byte[] hi, boolean hiInclusive) {
+            this.col = col;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            byte[] data = cols.data();
+            int[] starts = cols.starts(col);
+            int[] lengths = cols.lengths(col);
+            int m = 0;
+            for(int i = 0; i < n; i ++) {
+                int r = sel[i];
+                int s = starts[r], e = s + lengths[r];
+                if(lo != null) {
+                    int c = Arrays.compareUnsigned(data, s, e, lo, 0, lo.length);
+                    if(c < 0 || (c == 0 && !loInclusive)) continue;
+                }
+                if(hi != null) {
+                    int c = Arrays.compareUnsigned(data, s, e, hi, 0, hi.length);
+                    if(c > 0 || (c == 0 && !hiInclusive)) continue;
+                }
+                sel[m ++] = r;
+            }
+            return m;
+        }
+    }
+
+    static class Like extends Predicate {
+        private final int col;
+        private final String pattern;
+
+        Like(int col, String pattern) {
+            this.col = col;
+            this.pattern = pattern;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            byte[] data = cols.data();
+            int[] starts = cols.starts(col);
+            int[] lengths = cols.lengths(col);
+            int m = 0;
+            for(int i = 0; i < n; i ++) {
+                int r = sel[i];
+                if(Field.likeMatch(new String(data, starts[r], lengths[r], StandardCharsets.UTF_8), pattern)) {
+                    sel[m ++] = r;
+                }
+            }
+            return m;
+        }
+    }
+
+    // 依次用各个条件缩小选择向量
+    static class And extends Predicate {
+        private final Predicate[] children;
+
+        And(Predicate... children) {
+            this.children = children;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            for(Predicate child : children) {
+                if(n == 0) break;
+                n = child.filter(cols, sel, n);
+            }
+            return n;
+        }
+    }
+
+    // 每个条件在原选择向量上各算一次，结果按行号归并取并集
+    static class Or extends Predicate {
+        private final Predicate[] children;
+        private final int[] input = new int[RowBatch.CAPACITY];
+        private final int[] part = new int[RowBatch.CAPACITY];
+        private final int[] merged = new int[RowBatch.CAPACITY];
+
+        Or(Predicate... children) {
+            this.children = children;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            System.arraycopy(sel, 0, input, 0, n);
+            int m = 0;
+            for(Predicate child : children) {
+                System.arraycopy(input, 0, part, 0, n);
+                int k = child.filter(cols, part, n);
+                m = union(sel, m, part, k, merged);
+                if(m == n) break;
+            }
+            return m;
+        }
+
+        // 把有序的b并入有序的a[0..m)，结果写回a
+        private static int union(int[] a, int m, int[] b, int k, int[] tmp) {
+            int i = 0, j = 0, t = 0;
+            while(i < m || j < k) {
+                if(j == k || (i < m && a[i] < b[j])) {
+                    tmp[t ++] = a[i ++];
+                } else if(i == m || b[j] < a[i]) {
+                    tmp[t ++] = b[j ++];
+                } else {
+                    tmp[t ++] = a[i ++];
+                    j ++;
+                }
+            }
+            System.arraycopy(tmp, 0, a, 0, t);
+            return t;
+        }
+    }
+
+    // 保留子条件不满足的行
+    static class Not extends Predicate {
+        private final Predicate child;
+        private final int[] part = new int[RowBatch.CAPACITY];
+
+        Not(Predicate child) {
+            this.child = child;
+        }
+
+        @Override
+        int filter(ColumnBatch cols, int[] sel, int n) {
+            System.arraycopy(sel, 0, part, 0, n);
+            int k = child.filter(cols, part, n);
+            int m = 0, j = 0;
+            for(int i = 0; i < n; i ++) {
+                if(j < k && part[j] == sel[i]) {
+                    j ++;
+                } else {
+                    sel[m ++] = sel[i];
+                }
+            }
+            return m;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 只保留指定的字段，按字段在原记录中的字节拼出新记录
+ */
+class Project implements Operator {
+    private final Operator child;
+    private final int[] columns;
+    private final List<Field> schema = new ArrayList<>();
+
+    private Row row;
+    private RowBatch batch;
+
+    Project(Operator child, int[] columns) {
+        this.child = child;
+        this.columns = columns;
+        for(int c : columns) {
+            schema.add(child.schema().get(c));
+        }
+    }
+
+    // columns是否就是子算子的全部字段，此时不需要投影
+    static boolean isIdentity(int[] columns, int count) {
+        if(columns.length != count) return false;
+        for(int i = 0; i < columns.length; i ++) {
+            if(columns[i] != i) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return schema;
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        row = new Row(child.schema());
+        batch = new RowBatch();
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        RowBatch in = child.next();
+        if(in == null) {
+            return null;
+        }
+        batch.clear();
+        for(int i = 0; i < in.size; i ++) {
+            in.load(row, i);
+            batch.begin(in.uids[i]);
+            for(int c : columns) {
+                batch.append(row.raw(), row.start(c), row.size(c));
+            }
+            batch.end();
+        }
+        return batch;
+    }
+
+    @Override
+    public void close() throws Exception {
+        child.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.common.SubArray;
+import com.lyhn.streamlinedb.backend.parser.statement.SingleExpression;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.util.List;
+
+/**
+ * 直接在记录的字节数组上按字段读取值，不拷贝数据，也不为每行构造Map
+ * 记录结构为各字段的值依次排列：int32占4字节，int64占8字节，string为[Length(4)][Bytes]
+ *
+ * 第一个string字段及其之前的字段偏移量固定，在创建时算好；
+ * 之后的字段偏移量依赖前面字符串的长度，每行在第一次访问时按需计算
+ */
+public class Row {
+    private final List<Field> fields;
+    // 偏移量固定的字段个数
+    private final int fixedCount;
+    private final int[] fixedOffsets;
+
+    private byte[] raw;
+    // 当前行各字段的绝对偏移量，前known个有效
+    private final int[] offsets;
+    private int known;
+
+    public Row(List<Field> fields) {
+        this.fields = fields;
+        this.offsets = new int[fields.size()];
+        this.fixedOffsets = new int[fields.size()];
+        int i = 0, pos = 0;
+        while(i < fields.size()) {
+            fixedOffsets[i] = pos;
+            int size = fixedSize(fields.get(i));
+            i ++;
+            if(size < 0) break;
+            pos += size;
+        }
+        this.fixedCount = i;
+    }
+
+    public void reset(SubArray data) {
+        reset(data.raw, data.start);
+    }
+
+    public void reset(byte[] raw) {
+        reset(raw, 0);
+    }
+
+    void reset(byte[] raw, int start) {
+        this.raw = raw;
+        for(int i = 0; i < fixedCount; i ++) {
+            offsets[i] = start + fixedOffsets[i];
+        }
+        known = fixedCount;
+    }
+
+    private int offset(int i) {
+        while(known <= i) {
+            int prev = offsets[known-1];
+            offsets[known] = prev + fields.get(known-1).valueSize(raw, prev);
+            known ++;
+        }
+        return offsets[i];
+    }
+
+    byte[] raw() {
+        return raw;
+    }
+
+    // 第i个字段在raw中的起始位置和长度
+    int start(int i) {
+        return offset(i);
+    }
+
+    int size(int i) {
+        return fields.get(i).valueSize(raw, offset(i));
+    }
+
+    public int getInt(int i) {
+        return Parser.readInt(raw, offset(i));
+    }
+
+    public long getLong(int i) {
+        return Parser.readLong(raw, offset(i));
+    }
+
+    public String getString(int i) {
+        int pos = offset(i);
+        return new String(raw, pos+4, Parser.readInt(raw, pos));
+    }
+
+    // 整数字段统一按long读取
+    public long getNumber(int i) {
+        return "int32".equals(fields.get(i).fieldType) ? getInt(i) : getLong(i);
+    }
+
+    public Object get(int i) {
+        switch(fields.get(i).fieldType) {
+            case "int32":
+                return getInt(i);
+            case "int64":
+                return getLong(i);
+            default:
+                return getString(i);
+        }
+    }
+
+    public boolean match(int i, SingleExpression exp) {
+        Field field = fields.get(i);
+        if("string".equals(field.fieldType)) {
+            return field.match(getString(i), exp);
+        }
+        return field.match(getNumber(i), exp);
+    }
+
+    // 输出全部字段，格式为[v1, v2, ...]
+    public void print(StringBuilder sb) {
+        sb.append("[");
+        for(int i = 0; i < fields.size(); i ++) {
+            switch(fields.get(i).fieldType) {
+                case "int32":
+                    sb.append(getInt(i));
+                    break;
+                case "int64":
+                    sb.append(getLong(i));
+                    break;
+                default:
+                    sb.append(getString(i));
+            }
+            sb.append(i == fields.size()-1 ? "]" : ", ");
+        }
+    }
+
+    // 各字段为0或空字符串的记录，用于LEFT JOIN中没有匹配的一侧
+    static byte[] empty(List<Field> fields) {
+        int size = 0;
+        for(Field field : fields) {
+            size += fixedSize(field) < 0 ? 4 : fixedSize(field);
+        }
+        return new byte[size];
+    }
+
+        private static int fixedSize(Field field) {
+        switch(field.fieldType) {
+            case "int32":
+                return 4;
+            case "int64":
+                return 8;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.util.Arrays;
+
+/**
+ * 算子之间传递的一批记录
+ * 每条记录的字节依次拷贝到data中，用Row按字段读取；过滤时只调整下标，不移动数据
+ */
+class RowBatch {
+    static final int CAPACITY = 256;
+
+    final long[] uids = new long[CAPACITY];
+    final int[] starts = new int[CAPACITY];
+    final int[] ends = new int[CAPACITY];
+    byte[] data = new byte[8192];
+    int used;
+    int size;
+
+    void clear() {
+        size = 0;
+        used = 0;
+    }
+
+    boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void add(long uid, byte[] raw, int start, int end) {
+        begin(uid);
+        append(raw, start, end-start);
+        end();
+    }
+
+    void add(long uid, byte[] raw) {
+        add(uid, raw, 0, raw.length);
+    }
+
+    // 分段写入一条记录：begin，若干次append，end
+    void begin(long uid) {
+        uids[size] = uid;
+        starts[size] = used;
+    }
+
+    void append(byte[] raw, int start, int len) {
+        if(used+len > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length*2, used+len));
+        }
+        System.arraycopy(raw, start, data, used, len);
+        used += len;
+    }
+
+    void end() {
+        ends[size] = used;
+        size ++;
+    }
+
+    void load(Row row, int i) {
+        row.reset(data, starts[i]);
+    }
+
+    byte[] copy(int i) {
+        return Arrays.copyOfRange(data, starts[i], ends[i]);
+    }
+
+    // 只保留选择向量sel[0..n)中的记录，sel按升序排列
+    void select(int[] sel, int n) {
+        for(int i = 0; i < n; i ++) {
+            int r = sel[i];
+            uids[i] = uids[r];
+            starts[i] = starts[r];
+            ends[i] = ends[r];
+        }
+        size = n;
+    }
+
+    // 只保留[from, to)之间的记录
+    void slice(int from, int to) {
+        int n = to-from;
+        System.arraycopy(uids, from, uids, 0, n);
+        System.arraycopy(starts, from, starts, 0, n);
+        System.arraycopy(ends, from, ends, 0, n);
+        size = n;
+    }
+}
@@ -0,0 +1,13 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.parser.statement.Where;
+
+/**
+ * 全表扫描
+ * 记录只能通过索引找到，因此按第一个索引字段的全部范围扫描
+ */
+class SeqScan extends IndexScan {
+    SeqScan(Table table, long xid, int lockMode) throws Exception {
+        super(table, xid, (Where)null, lockMode);
+    }
+}
@@ -0,0 +1,193 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 按一个字段排序
+ * 输入已按该字段升序（按索引顺序扫描）时边读边输出，只把索引中被截断后相同的键按完整的值重新排序；
+ * 否则topN不超过MAX_TOP_N时用大小为topN的堆只保留前N条；
+ * 其余情况用ExternalSorter排序全部记录，内存中的记录超过memoryBudget时分段写入临时文件再归并
+ */
+class Sort implements Operator {
+    static final int MAX_TOP_N = 10000;
+
+    private final Operator child;
+    private final int keyIdx;
+    private final Field keyField;
+    private final Comparator<Line> comparator;
+    private final boolean desc;
+    private final boolean inputSorted;
+    // 为-1表示需要全部记录
+    private final int topN;
+    private final long memoryBudget;
+    private final File spillBase;
+
+    private Row row;
+    private RowBatch batch;
+
+    // 输入有序时：当前子批次及读到的位置，截断后键相同的一段记录，排好序等待输出的记录
+    private RowBatch in;
+    private int pos;
+    private List<Line> run;
+    private ArrayDeque<Line> ready;
+    private boolean childDone;
+
+    // 输入无序时排好序的结果，只取前topN条时为top，否则为sorter
+    private Iterator<Line> top;
+    private ExternalSorter sorter;
+
+    static class Line {
+        Object key;
+        long uid;
+        byte[] data;
+
+        Line(Object key, long uid, byte[] data) {
+            this.key = key;
+            this.uid = uid;
+            this.data = data;
+        }
+    }
+
+    /**
+     * @param inputSorted 输入是否已按排序字段升序
+     * @param topN 只需要前topN条，为-1表示不限制
+     * @param spillBase 临时文件的位置，见SpillFile
+     */
+    Sort(Operator child, int keyIdx, boolean desc, boolean inputSorted, int topN, long memoryBudget, File spillBase) {
+        this.child = child;
+        this.keyIdx = keyIdx;
+        this.keyField = child.schema().get(keyIdx);
+        Comparator<Line> c = (a, b) -> keyField.compare(a.key, b.key);
+        this.comparator = desc ? c.reversed() : c;
+        this.desc = desc;
+        this.inputSorted = inputSorted && !desc;
+        this.topN = topN;
+        this.memoryBudget = memoryBudget;
+        this.spillBase = spillBase;
+    }
+
+    @Override
+    public List<Field> schema() {
+        return child.schema();
+    }
+
+    @Override
+    public void open() throws Exception {
+        child.open();
+        row = new Row(child.schema());
+        batch = new RowBatch();
+        if(inputSorted) {
+            run = new ArrayList<>();
+            ready = new ArrayDeque<>();
+            return;
+        }
+        if(topN >= 0 && topN <= MAX_TOP_N) {
+            List<Line> lines = readTop();
+            lines.sort(comparator);
+            top = lines.iterator();
+            return;
+        }
+        sorter = new ExternalSorter(memoryBudget, spillBase, desc);
+        RowBatch b;
+        while((b = child.next()) != null) {
+            for(int i = 0; i < b.size; i ++) {
+                b.load(row, i);
+                sorter.add(keyField.sortKey(row.get(keyIdx)), b.uids[i], b.data, b.starts[i], b.ends[i]);
+            }
+        }
+        sorter.finish();
+    }
+
+    // 写入临时文件的有序段数
+    int spilledRuns() {
+        return sorter == null ? 0 : sorter.runs();
+    }
+
+    // 堆顶为当前第N条，新记录排在它之前时才替换，只为进入堆的记录拷贝数据
+    private List<Line> readTop() throws Exception {
+        PriorityQueue<Line> heap = new PriorityQueue<>(Math.max(1, Math.min(topN, 1024)), comparator.reversed());
+        Line probe = new Line(null, 0, null);
+        RowBatch b;
+        while((b = child.next()) != null) {
+            for(int i = 0; i < b.size; i ++) {
+                b.load(row, i);
+                probe.key = row.get(keyIdx);
+                if(heap.size() < topN) {
+                    heap.add(new Line(probe.key, b.uids[i], b.copy(i)));
+                } else if(!heap.isEmpty() && comparator.compare(probe, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(new Line(probe.key, b.uids[i], b.copy(i)));
+                }
+            }
+        }
+        return new ArrayList<>(heap);
+    }
+
+    @Override
+    public RowBatch next() throws Exception {
+        batch.clear();
+        if(top != null) {
+            while(!batch.isFull() && top.hasNext()) {
+                Line line = top.next();
+                batch.add(line.uid, line.data);
+            }
+            return batch.isEmpty() ? null : batch;
+        }
+        if(sorter != null) {
+            while(!batch.isFull() && sorter.next()) {
+                batch.add(sorter.uid(), sorter.buf(), sorter.rowStart(), sorter.rowEnd());
+            }
+            return batch.isEmpty() ? null : batch;
+        }
+        while(!batch.isFull()) {
+            if(!ready.isEmpty()) {
+                Line line = ready.poll();
+                batch.add(line.uid, line.data);
+                continue;
+            }
+            if(in == null || pos == in.size) {
+                in = childDone ? null : child.next();
+                pos = 0;
+                if(in == null) {
+                    childDone = true;
+                    flushRun();
+                    if(ready.isEmpty()) break;
+                    continue;
+                }
+            }
+            in.load(row, pos);
+            Object key = row.get(keyIdx);
+            if(!run.isEmpty() && !keyField.sameIndexKey(run.get(0).key, key)) {
+                flushRun();
+                continue;
+            }
+            if(run.isEmpty() && !keyField.isKeyTruncated(key)) {
+                batch.add(in.uids[pos], in.data, in.starts[pos], in.ends[pos]);
+            } else {
+                run.add(new Line(key, in.uids[pos], in.copy(pos)));
+            }
+            pos ++;
+        }
+        return batch.isEmpty() ? null : batch;
+    }
+
+    private void flushRun() {
+        run.sort(comparator);
+        ready.addAll(run);
+        run.clear();
+    }
+
+    @Override
+    public void close() throws Exception {
+        child.close();
+        if(sorter != null) {
+            sorter.close();
+        }
+    }
+}
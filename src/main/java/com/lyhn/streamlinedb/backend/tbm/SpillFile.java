@@ -0,0 +1,112 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 算子的内存不够时把记录写到临时文件，写完后可以从头读取任意多遍
+ * 每条记录的格式为[Uid][Length][Data]，读取时当前记录保存在uid/data/length中，下一次next后失效
+ *
+ * 临时文件放在数据库文件所在的目录，文件名为 数据库名.spill-随机数.tmp，关闭时删除；
+ * 进程异常退出时留下的文件在下次打开数据库时由cleanup删除
+ */
+class SpillFile implements AutoCloseable {
+    private static final String SUFFIX = ".tmp";
+
+    private final File file;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private long count;
+    private long read;
+
+    long uid;
+    byte[] data = new byte[64];
+    int length;
+
+    /**
+     * @param base 数据库文件的路径（不含扩展名），为null时使用系统的临时目录
+     */
+    SpillFile(File base) throws IOException {
+        file = File.createTempFile(prefix(base), SUFFIX, base == null ? null : base.getAbsoluteFile().getParentFile());
+        // 不使用deleteOnExit，否则每个临时文件都会在进程退出前一直登记在JVM中
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        } catch(IOException e) {
+            file.delete();
+            throw e;
+        }
+    }
+
+    private static String prefix(File base) {
+        return (base == null ? "streamlinedb" : base.getName()) + ".spill-";
+    }
+
+    // 删除数据库base之前留下的临时文件
+    static void cleanup(File base) {
+        File[] files = base.getAbsoluteFile().getParentFile().listFiles();
+        if(files == null) return;
+        for(File f : files) {
+            if(f.getName().startsWith(prefix(base)) && f.getName().endsWith(SUFFIX)) {
+                f.delete();
+            }
+        }
+    }
+
+    void write(long uid, byte[] raw, int start, int end) throws IOException {
+        out.writeLong(uid);
+        out.writeInt(end-start);
+        out.write(raw, start, end-start);
+        count ++;
+    }
+
+    long count() {
+        return count;
+    }
+
+    // 结束写入，回到第一条记录
+    void rewind() throws IOException {
+        if(out != null) {
+            out.close();
+            out = null;
+        }
+        if(in != null) {
+            in.close();
+        }
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        read = 0;
+    }
+
+    boolean hasNext() {
+        return read < count;
+    }
+
+    boolean next() throws IOException {
+        if(!hasNext()) {
+            return false;
+        }
+        uid = in.readLong();
+        length = in.readInt();
+        if(length > data.length) {
+            data = new byte[Math.max(length, data.length*2)];
+        }
+        in.readFully(data, 0, length);
+        read ++;
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(out != null) out.close();
+            if(in != null) in.close();
+        } catch(IOException ignored) {
+        }
+        file.delete();
+    }
+}
@@ -2,19 +2,31 @@ package com.lyhn.streamlinedb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.common.SubArray;
+import com.lyhn.streamlinedb.backend.dm.DataManager;
+import com.lyhn.streamlinedb.backend.dm.dataItem.DataItem;
+import com.lyhn.streamlinedb.backend.im.IndexCursor;
+import com.lyhn.streamlinedb.backend.im.UidCursor;
+import com.lyhn.streamlinedb.backend.im.UidSet;
 import com.lyhn.streamlinedb.backend.parser.statement.*;
 import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
 import com.lyhn.streamlinedb.backend.utils.Panic;
 import com.lyhn.streamlinedb.backend.utils.ParseStringRes;
 import com.lyhn.streamlinedb.backend.utils.Parser;
+import com.lyhn.streamlinedb.backend.vm.LockTable;
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
 
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Table 维护了表结构
  * 二进制结构如下：
  * [TableName][NextTable]
- * [Field1Uid][Field2Uid]...[FieldNUid]
+ * [Field1Uid][Field2Uid]...[FieldNUid][0][StatsUid]
+ * StatsUid指向一个数据项，其中保存最近一次ANALYZE得到的统计信息的uid，为0表示没有统计信息；
+ * 早期版本没有[0][StatsUid]，统计信息只保留在内存中
  */
 public class Table {
     TableManager tbm;
@@ -23,6 +35,16 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    long statsUid;
+    volatile TableStats stats;
+    final VisibilityMap visibility = new VisibilityMap();
+    // 字段名或 表名.字段名 到字段下标的映射，查找一次后记下；表的字段创建之后不再变化
+    private final Map<String, Integer> fieldIndexes = new ConcurrentHashMap<>();
+
+    // 没有统计信息时假设的记录数，以及等值和范围条件的选择率
+    static final double DEFAULT_ROWS = 1000;
+    static final double DEFAULT_POINT = 0.01;
+    static final double DEFAULT_RANGE = 0.3;
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -47,11 +69,43 @@ public class Table {
         while(position < raw.length) {
             long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
             position += 8;
+            if(uid == 0) {
+                statsUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+                break;
+            }
             fields.add(Field.loadField(this, uid));
         }
+        if(statsUid != 0) {
+            loadStats();
+        }
         return this;
     }
 
+    // 统计信息只用于估计代价，读取失败时忽略
+    private void loadStats() {
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        try {
+            long blobUid;
+            DataItem di = dm.read(statsUid);
+            try {
+                SubArray sa = di.data();
+                blobUid = Parser.readLong(sa.raw, sa.start);
+            } finally {
+                di.release();
+            }
+            if(blobUid == 0) return;
+            DataItem blob = dm.read(blobUid);
+            try {
+                SubArray sa = blob.data();
+                stats = TableStats.parse(sa.raw, sa.start, fields);
+            } finally {
+                blob.release();
+            }
+        } catch(Exception e) {
+            stats = null;
+        }
+    }
+
     boolean parseSelfSafe(long uid) {
         byte[] raw = null;
         try {
@@ -78,19 +132,44 @@ public class Table {
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
             String fieldType = create.fieldType[i];
-            boolean indexed = false;
+            // 声明了unique或primary key的字段一定有索引
+            boolean unique = create.unique != null && create.unique[i];
+            boolean indexed = unique;
+            int fanout = 0;
+            boolean hash = false;
+            String[] include = null;
             for(int j = 0; j < create.index.length; j ++) {
                 if(fieldName.equals(create.index[j])) {
                     indexed = true;
+                    if(create.indexFanout != null && j < create.indexFanout.length) {
+                        fanout = create.indexFanout[j];
+                    }
+                    if(create.hashIndex != null && j < create.hashIndex.length) {
+                        hash = create.hashIndex[j];
+                    }
+                    if(create.indexInclude != null && j < create.indexInclude.length) {
+                        include = create.indexInclude[j];
+                    }
                     break;
                 }
             }
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            checkInclude(create, fieldName, include);
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, fanout, hash, unique, include));
         }
 
         return tb.persistSelf(xid);
     }
 
+    // 覆盖字段必须是表中其他的字段
+    private static void checkInclude(Create create, String fieldName, String[] include) throws Exception {
+        if(include == null) return;
+        for(String name : include) {
+            if(name.equals(fieldName) || !Arrays.asList(create.fieldName).contains(name)) {
+                throw Error.fieldNotFoundException;
+            }
+        }
+    }
+
     private Table persistSelf(long xid) throws Exception {
         // 将表名转换为字节数组
         byte[] nameRaw = Parser.string2Byte(name);
@@ -102,8 +181,11 @@ public class Table {
             // 将每一个字段的uid拼接到fieldRaw中
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(field.uid));
         }
+        // 保存统计信息uid的数据项，ANALYZE时原地更新
+        statsUid = ((TableManagerImpl)tbm).dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(0));
+        byte[] statsRaw = Bytes.concat(Parser.long2Byte(0), Parser.long2Byte(statsUid));
         // 将所有元数据拼接成一个字节数组，并通过 VersionManager 插入数据库
-        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
+        uid = ((TableManagerImpl)tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw, statsRaw));
         return this;
     }
 
@@ -119,123 +201,474 @@ public class Table {
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
-        int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count ++;
-                for (Field field : fields) {
-                    if(field.isIndexed()) {
-                        ((TableManagerImpl)tbm).addPendingIndexDelete(xid, name, field.fieldName, entry.get(field.fieldName));
-                    }
-                }
-            }
-        }
-        return count;
+        return new DeleteSink(scanPlan(xid, delete.where, -1), this, xid).execute();
     }
 
-    void executeIndexDelete(String fieldName, Object keyValue) throws Exception {
+    void executeIndexDelete(String fieldName, Object keyValue, long uid) throws Exception {
         for (Field field : fields) {
             if(field.fieldName.equals(fieldName) && field.isIndexed()) {
-                field.delete(keyValue);
+                field.delete(keyValue, uid);
                 return;
             }
         }
     }
     public int update(long xid, Update update) throws Exception {
-        // 解析where条件，获取符合条件的uid列表
-        List<Long> uids = parseWhere(update.where);
         // 找到要更新的字段
-        Field fd = null;
-        for (Field f : fields) {
-            if(f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
+        Field fd = fields.get(fieldIndex(update.fieldName));
+        // 将字符串值转换为字段对应类型
+        Object value = fd.string2Value(update.value);
+        return new UpdateSink(scanPlan(xid, update.where, -1), this, xid, fd, value).execute();
+    }
+
+    // 按查询计划逐批读出结果，每行写入out，不在内存中累积整个结果集
+    public void read(long xid, Select read, OutputStream out) throws Exception {
+        write(read.funcs != null || read.groupBy != null ? planAggregate(xid, read) : planSelect(xid, read), out);
+    }
+
+    static void write(Operator plan, OutputStream out) throws Exception {
+        Row row = new Row(plan.schema());
+        StringBuilder line = new StringBuilder();
+        try {
+            plan.open();
+            RowBatch batch;
+            while((batch = plan.next()) != null) {
+                for (int i = 0; i < batch.size; i++) {
+                    batch.load(row, i);
+                    line.setLength(0);
+                    row.print(line);
+                    out.write(line.append('\n').toString().getBytes());
+                }
             }
+        } finally {
+            plan.close();
         }
-        if(fd == null) {
-            throw Error.fieldNotFoundException;
+    }
+
+    // 扫描 -> 过滤 -> [排序] -> [LIMIT] -> [投影]
+    private Operator planSelect(long xid, Select read) throws Exception {
+        // FOR SHARE/FOR UPDATE 对读到的每一行加共享/排他锁
+        int lockMode = read.forUpdate ? LockTable.X : read.forShare ? LockTable.S : -1;
+        Set<String> columns = columnsOf(read);
+        ScanRes res = read.where == null ? fullScan(columns) : scan(read.where);
+        // 加锁读取时扫描先复核条件再逐条加锁，不锁不满足条件或LIMIT之外的记录
+        Operator scan = lockMode < 0 ? scanOperator(xid, res, columns) : new IndexScan(this, xid, res, read.where, lockMode);
+        Operator plan = filter(scan, read.where);
+        return planOutput(plan, read, fields, res);
+    }
+
+    // 过滤之后：[排序] -> [LIMIT] -> [投影]，all为SELECT *输出的字段
+    // 只读索引时输入的字段不是表的全部字段，下标都相对于输入的字段
+    Operator planOutput(Operator plan, Select read, List<Field> all, ScanRes res) throws Exception {
+        List<Field> schema = plan.schema();
+        int[] project = projectFields(read.fields, schema, all);
+        if(read.orderBy != null) {
+            int orderIdx = indexOf(schema, read.orderBy);
+            // 按扫描的索引字段升序排序时，索引的顺序就是结果的顺序，不需要排序
+            boolean indexOrder = res != null && res.isOrderedBy(schema.get(orderIdx));
+            plan = sort(plan, orderIdx, read.desc, indexOrder, read.limit < 0 ? -1 : read.offset+read.limit);
         }
-        // 将字符串值转换为字段对应类型
-        Object value = fd.string2Value(update.value);
-        // 遍历每条符合条件的记录
-        int count = 0;
-        for (Long uid : uids) {
-            // 读取原始数据
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            // 数据不可见，跳过
-            if(raw == null) continue;
-
-            // 删除旧记录（MVCC机制，设置XMAX）
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
-
-            // 解析原始数据为Map
-            Map<String, Object> entry = parseEntry(raw);
-            // 更新指定字段的值
-            entry.put(fd.fieldName, value);
-            // 将原始数据转为字节数组
-            raw = entry2Raw(entry);
-            // 插入新纪录，生成新的uid
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-
-            // 更新计数器
-            count ++;
-
-            // 更新所有索引
+        if(read.limit >= 0 || read.offset > 0) {
+            plan = new Limit(plan, read.offset, read.limit);
+        }
+        if(!Project.isIdentity(project, schema.size())) {
+            plan = new Project(plan, project);
+        }
+        return plan;
+    }
+
+    // 扫描 -> 过滤 -> 聚合 -> [排序] -> [LIMIT] -> [投影]
+    private Operator planAggregate(long xid, Select read) throws Exception {
+        Operator input = null;
+        int minMax = Aggregate.minMaxField(read, fields);
+        if(minMax >= 0) {
+            MinMaxScan edge = new MinMaxScan(this, xid, read, fields.get(minMax));
+            if(edge.prepare()) {
+                input = edge;
+            }
+        }
+        ScanRes res = null;
+        if(input == null) {
+            Set<String> columns = columnsOf(read);
+            res = read.where == null ? fullScan(columns) : scan(read.where);
+            input = filter(scanOperator(xid, res, columns), read.where);
+        }
+        return planAggregate(input, read, res);
+    }
+
+    // [按分组字段排序] -> 聚合 -> [排序] -> [LIMIT] -> [投影]，res为输入的扫描方式，不是单表扫描时为null
+    Operator planAggregate(Operator input, Select read, ScanRes res) throws Exception {
+        if(read.forShare || read.forUpdate) {
+            throw Error.invalidAggregateException;
+        }
+        // 只能按分组字段排序
+        if(read.orderBy != null && !read.orderBy.equals(read.groupBy)) {
+            throw Error.invalidAggregateException;
+        }
+        int groupIdx = read.groupBy == null ? -1 : indexOf(input.schema(), read.groupBy);
+        boolean sorted = false;
+        if(groupIdx >= 0) {
+            // 按分组字段的索引顺序读取时直接按顺序分组；统计信息表明分组太多、哈希表放不下时先外部排序，
+            // 没有统计信息时不知道分组数，也先外部排序，不在哈希表中无限制地累积
+            Field group = input.schema().get(groupIdx);
+            boolean indexOrder = res != null && res.isOrderedBy(group);
+            double groups = distinct(group);
+            if(indexOrder || groups < 0 || groups * Aggregate.GROUP_SIZE > ((TableManagerImpl)tbm).sortMemory) {
+                input = sort(input, groupIdx, false, indexOrder, -1);
+                sorted = true;
+            }
+        }
+        Aggregate agg = new Aggregate(input, read, groupIdx, sorted);
+        Operator plan = agg;
+        // 顺序分组的结果已按分组字段升序
+        if(read.orderBy != null && !(sorted && !read.desc)) {
+            // 分组字段附加在聚合输出的最后
+            plan = sort(plan, agg.width(), read.desc, false, read.limit < 0 ? -1 : read.offset+read.limit);
+        }
+        if(read.limit >= 0 || read.offset > 0) {
+            plan = new Limit(plan, read.offset, read.limit);
+        }
+        if(groupIdx >= 0) {
+            int[] project = new int[agg.width()];
+            for (int i = 0; i < project.length; i++) {
+                project[i] = i;
+            }
+            plan = new Project(plan, project);
+        }
+        return plan;
+    }
+
+    // 查询用到的全部字段名
+    private Set<String> columnsOf(Select read) {
+        Set<String> res = new HashSet<>();
+        if(read.fields == null) {
             for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+                res.add(field.fieldName);
+            }
+            return res;
+        }
+        for (int i = 0; i < read.fields.length; i++) {
+            if(!"*".equals(read.fields[i])) {
+                res.add(read.fields[i]);
+            } else if(read.funcs == null) {
+                for (Field field : fields) {
+                    res.add(field.fieldName);
                 }
             }
         }
-        return count;
+        if(read.orderBy != null) res.add(read.orderBy);
+        if(read.groupBy != null) res.add(read.groupBy);
+        columnsOf(read.where, res);
+        return res;
     }
-    public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
-        StringBuilder sb = new StringBuilder();
-        // 从版本管理器中读出每个uid对应的数据
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) continue;
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+
+    private static void columnsOf(Where where, Set<String> res) {
+        if(where == null) return;
+        Where[] ops = operands(where);
+        if(ops == null) {
+            res.add(where.singleExp1.field);
+            return;
+        }
+        for (Where op : ops) {
+            columnsOf(op, res);
+        }
+    }
+
+    // 没有where条件时扫描任意有序索引的全部范围都可以，优先选择能得到查询全部字段的索引
+    private ScanRes fullScan(Set<String> columns) throws Exception {
+        for (Field field : fields) {
+            if(field.isOrdered() && covers(field, columns)) {
+                return rangeScan(field, field.fullRange());
+            }
+        }
+        return scan(null);
+    }
+
+    private static boolean covers(Field fd, Set<String> columns) {
+        Set<String> names = new HashSet<>();
+        for (Field f : fd.indexColumns()) {
+            names.add(f.fieldName);
+        }
+        return names.containsAll(columns);
+    }
+
+    private Sort sort(Operator child, int keyIdx, boolean desc, boolean inputSorted, int topN) {
+        TableManagerImpl tm = (TableManagerImpl)tbm;
+        return new Sort(child, keyIdx, desc, inputSorted, topN, tm.sortMemory, tm.spillBase);
+    }
+
+    // 不加锁读出满足where条件的记录，只需要columns中的字段
+    Operator planScan(long xid, Where where, Set<String> columns) throws Exception {
+        ScanRes res = where == null ? fullScan(columns) : scan(where);
+        return filter(scanOperator(xid, res, columns), where);
+    }
+
+    // 不加行锁且查询用到的字段都能从所选B+树索引的一个范围中得到时只读索引，否则按uid读取记录
+    private Operator scanOperator(long xid, ScanRes res, Set<String> columns) {
+        if(res.fd != null && res.uids instanceof IndexCursor && covers(res.fd, columns)) {
+            return new IndexOnlyScan(this, xid, res);
+        }
+        return new IndexScan(this, xid, res, null, -1);
+    }
+
+    // 读出满足where条件的记录
+    private Operator scanPlan(long xid, Where where, int lockMode) throws Exception {
+        IndexScan scan = where == null ? new SeqScan(this, xid, lockMode) : new IndexScan(this, xid, where, lockMode);
+        return filter(scan, where);
+    }
+
+    private Operator filter(Operator scan, Where where) throws Exception {
+        if(where == null) {
+            return scan;
+        }
+        Operator plan = new Filter(scan, where);
+        // 唯一字段的等值查询最多只有一条可见记录，找到后停止扫描
+        return isUniquePoint(where) ? new Limit(plan, 0, 1) : plan;
+    }
+
+    // 读取事务可见的全部记录，收集记录数和各索引字段的统计信息并持久化
+    void analyze(long xid) throws Exception {
+        analyze(xid, TableStats.SAMPLE_SIZE);
+    }
+
+    /**
+     * 记录数按全部可见记录统计；各索引字段的直方图、不同值个数和相关性由最多sampleSize条记录的蓄水池样本估计，
+     * 内存占用与表的大小无关
+     */
+    void analyze(long xid, int sampleSize) throws Exception {
+        List<Integer> cols = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            if(fields.get(i).isIndexed()) {
+                cols.add(i);
+            }
+        }
+        long[][] longs = new long[cols.size()][];
+        byte[][][] keys = new byte[cols.size()][][];
+        long[] uids = new long[16];
+        long n = 0;
+        Random random = new Random();
+        Operator scan = new SeqScan(this, xid, -1);
+        Row row = new Row(fields);
+        try {
+            scan.open();
+            RowBatch batch;
+            while((batch = scan.next()) != null) {
+                for (int r = 0; r < batch.size; r++, n++) {
+                    // 前sampleSize条直接放入样本，之后第n条以sampleSize/(n+1)的概率替换样本中随机的一条
+                    int slot = n < sampleSize ? (int)n : (int)(random.nextDouble() * (n+1));
+                    if(slot >= sampleSize) {
+                        continue;
+                    }
+                    batch.load(row, r);
+                    if(slot == uids.length) {
+                        uids = Arrays.copyOf(uids, Math.min(slot*2, sampleSize));
+                    }
+                    uids[slot] = batch.uids[r];
+                    for (int c = 0; c < cols.size(); c++) {
+                        Field fd = fields.get(cols.get(c));
+                        if("string".equals(fd.fieldType)) {
+                            if(keys[c] == null || slot == keys[c].length) {
+                                keys[c] = Arrays.copyOf(keys[c] == null ? new byte[0][] : keys[c], Math.min(Math.max(16, slot*2), sampleSize));
+                            }
+                            keys[c][slot] = fd.value2Key(row.getString(cols.get(c)));
+                        } else {
+                            if(longs[c] == null || slot == longs[c].length) {
+                                longs[c] = Arrays.copyOf(longs[c] == null ? new long[0] : longs[c], Math.min(Math.max(16, slot*2), sampleSize));
+                            }
+                            longs[c][slot] = row.getNumber(cols.get(c));
+                        }
+                    }
+                }
+            }
+        } finally {
+            scan.close();
+        }
+        int m = (int)Math.min(n, sampleSize);
+        TableStats s = new TableStats(n);
+        long[] rowUids = uids;
+        for (int c = 0; c < cols.size(); c++) {
+            Field fd = fields.get(cols.get(c));
+            // 样本按(值, uid)排序，得到索引中的顺序
+            int[] order;
+            long[] sortedUids = new long[m];
+            if("string".equals(fd.fieldType)) {
+                byte[][] k = keys[c];
+                order = sortOrder(m, (a, b) -> {
+                    int cmp = Arrays.compareUnsigned(k[a], k[b]);
+                    return cmp != 0 ? cmp : Long.compare(rowUids[a], rowUids[b]);
+                });
+                byte[][] sorted = new byte[m][];
+                for (int i = 0; i < m; i++) {
+                    sorted[i] = k[order[i]];
+                    sortedUids[i] = rowUids[order[i]];
+                }
+                s.addKeys(fd, sorted, sortedUids, m);
+            } else {
+                long[] v = longs[c];
+                order = sortOrder(m, (a, b) -> {
+                    int cmp = Long.compare(v[a], v[b]);
+                    return cmp != 0 ? cmp : Long.compare(rowUids[a], rowUids[b]);
+                });
+                long[] sorted = new long[m];
+                for (int i = 0; i < m; i++) {
+                    sorted[i] = v[order[i]];
+                    sortedUids[i] = rowUids[order[i]];
+                }
+                s.addLongs(fd, sorted, sortedUids, m);
+            }
+        }
+        persistStats(s);
+        stats = s;
+        markAllVisible();
+    }
+
+    private interface IndexOrder {
+        int compare(int a, int b);
+    }
+
+    // 按cmp归并排序下标0..n-1，不装箱
+    private static int[] sortOrder(int n, IndexOrder cmp) {
+        int[] order = new int[n];
+        int[] tmp = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += width*2) {
+                int mid = lo + width, hi = Math.min(lo + width*2, n);
+                int i = lo, j = mid, k = lo;
+                while(i < mid && j < hi) {
+                    tmp[k++] = cmp.compare(order[j], order[i]) < 0 ? order[j++] : order[i++];
+                }
+                while(i < mid) tmp[k++] = order[i++];
+                while(j < hi) tmp[k++] = order[j++];
+                System.arraycopy(tmp, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+
+    // 检查第一个索引中的全部记录（包括已删除和未提交的版本），把其中记录都对所有事务可见的页加入可见性映射
+    private void markAllVisible() throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        long since = visibility.version();
+        Set<Integer> visible = new HashSet<>();
+        Set<Integer> dirty = new HashSet<>();
+        for (Field field : fields) {
+            if(!field.isIndexed()) continue;
+            UidCursor uids = field.cursor(field.fullRange());
+            while(uids.hasNext()) {
+                long uid = uids.next();
+                int page = VisibilityMap.page(uid);
+                (vm.isVisibleToAll(uid) ? visible : dirty).add(page);
+            }
+            break;
+        }
+        visible.removeAll(dirty);
+        visibility.setAll(visible, since);
+    }
+
+    /**
+     * 统计信息保存在固定大小（TableStats.MAX_SIZE）的数据项中，不足的部分补0
+     * 第一次ANALYZE时插入该数据项并原地更新StatsUid指向的数据项，之后原地覆盖，不再插入新的数据项；
+     * 旧版本创建的表只保留在内存中
+     */
+    private synchronized void persistStats(TableStats s) throws Exception {
+        if(statsUid == 0) {
+            return;
+        }
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        byte[] raw = Arrays.copyOf(s.toRaw(TableStats.MAX_SIZE), TableStats.MAX_SIZE);
+        DataItem di = dm.read(statsUid);
+        try {
+            SubArray sa = di.data();
+            long blobUid = Parser.readLong(sa.raw, sa.start);
+            if(blobUid != 0 && overwrite(dm, blobUid, raw)) {
+                return;
+            }
+            blobUid = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+            di.before();
+            Parser.writeLong(sa.raw, sa.start, blobUid);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    // 大小相同时原地覆盖数据项，否则返回false
+    private static boolean overwrite(DataManager dm, long uid, byte[] raw) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return false;
+        }
+        try {
+            SubArray sa = di.data();
+            if(sa.end - sa.start != raw.length) {
+                return false;
+            }
+            di.before();
+            System.arraycopy(raw, 0, sa.raw, sa.start, raw.length);
+            di.after(TransactionManagerImpl.SUPER_XID);
+            return true;
+        } finally {
+            di.release();
         }
-        return sb.toString();
     }
 
     public void insert(long xid, Insert insert) throws Exception {
         // 将字符串数组转换为键值对映射
         Map<String, Object> entry = string2Entry(insert.values);
+        // 检查唯一约束
+        checkUnique(xid, entry);
         // 将键值对映射转换为字节数组
         byte[] raw = entry2Raw(entry);
         // 通过vm将数据插入到数据库
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        // 插入索引
+        insertIndexes(entry, uid);
+    }
+
+    // 插入新记录的索引项
+    // 在索引项可见之前清除所在页的全部可见标志；插入索引项后再清除一次，使期间开始检查这一页的ANALYZE放弃设置
+    void insertIndexes(Map<String, Object> entry, long uid) throws Exception {
+        visibility.clear(uid);
         for (Field field : fields) {
             if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+                field.insert(entry, uid);
             }
         }
+        visibility.clear(uid);
+    }
+
+    // 检查记录在唯一字段上的值是否已存在
+    // 先对(字段, 值)加排他锁并持有到事务结束，使并发插入相同值的事务串行化；
+    // 再按最新版本而不是快照判断索引查到的记录是否仍然有效
+    void checkUnique(long xid, Map<String, Object> entry) throws Exception {
+        checkUnique(xid, entry, 0);
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
+    // self为正在被更新的记录，它将被新版本替换，不算冲突
+    void checkUnique(long xid, Map<String, Object> entry, long self) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        Row row = new Row(fields);
         for (int i = 0; i < fields.size(); i++) {
             Field field = fields.get(i);
-            sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
-                sb.append("]");
-            } else {
-                sb.append(", ");
+            if(!field.isUnique()) continue;
+            Object value = entry.get(field.fieldName);
+            vm.lock(xid, field.uniqueLockUid(value), LockTable.X);
+            UidCursor uids = field.cursor(field.pointRange(value));
+            while (uids.hasNext()) {
+                long uid = uids.next();
+                if(uid == self) continue;
+                byte[] raw = vm.readLatest(xid, uid);
+                if(raw == null) continue;
+                row.reset(raw);
+                if(value.equals(row.get(i))) {
+                    throw Error.duplicatedKeyException;
+                }
             }
         }
-        return sb.toString();
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    byte[] entry2Raw(Map<String, Object> entry) {
         byte[] raw = new byte[0];
         for (Field field : fields) {
             raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
@@ -243,17 +676,62 @@ public class Table {
         return raw;
     }
 
-    private Map<String, Object> parseEntry(byte[] raw) {
+    Map<String, Object> parseEntry(byte[] raw) {
         int pos = 0;
         Map<String, Object> entry = new HashMap<>();
         for (Field field : fields) {
-            Field.ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
+            Field.ParseValueRes r = field.parserValue(raw, pos);
             entry.put(field.fieldName, r.v);
             pos += r.shift;
         }
         return entry;
     }
 
+    // SELECT列表对应的字段在schema中的下标，*或未指定表示按all的顺序输出全部字段
+    private static int[] projectFields(String[] names, List<Field> schema, List<Field> all) throws Exception {
+        if(names == null || (names.length == 1 && "*".equals(names[0]))) {
+            int[] res = new int[all.size()];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = schema.indexOf(all.get(i));
+                if(res[i] < 0) {
+                    throw Error.fieldNotFoundException;
+                }
+            }
+            return res;
+        }
+        int[] res = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            res[i] = indexOf(schema, names[i]);
+        }
+        return res;
+    }
+
+    private int fieldIndex(String name) throws Exception {
+        Integer i = fieldIndexes.get(name);
+        if(i == null) {
+            i = indexOf(fields, name);
+            fieldIndexes.put(name, i);
+        }
+        return i;
+    }
+
+    // 按字段名或 表名.字段名 查找字段的下标，JOIN的结果中两个表有同名字段时必须带表名
+    static int indexOf(List<Field> schema, String name) {
+        int res = -1;
+        for (int i = 0; i < schema.size(); i++) {
+            if(schema.get(i).isNamed(name)) {
+                if(res >= 0) {
+                    throw Error.ambiguousFieldException;
+                }
+                res = i;
+            }
+        }
+        if(res < 0) {
+            throw Error.fieldNotFoundException;
+        }
+        return res;
+    }
+
     private Map<String, Object> string2Entry(String[] values) throws Exception {
         if(values.length != fields.size()) {
             throw Error.invalidValuesException;
@@ -267,90 +745,238 @@ public class Table {
         return entry;
     }
 
-    // 返回符合条件的uid列表
-    private List<Long> parseWhere(Where where) throws Exception {
-        long l0=0, r0=0, l1=0, r1=0;
-        // 表示是否为单个查询范围
-        boolean single = false;
-        // 用于查询的索引字段
-        Field fd = null;
-        // 无where条件，返回所有uid
-        if(where == null) {
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    fd = field;
-                    break;
-                }
+    class ScanRes {
+        // 扫描的索引字段
+        Field fd;
+        UidCursor uids;
+        // 是否只扫描了一个范围，此时uid按索引的顺序返回
+        boolean ordered;
+
+        // 输出是否按字段fd升序
+        boolean isOrderedBy(Field fd) {
+            return ordered && this.fd == fd && fd.isOrdered();
+        }
+    }
+
+    ScanRes scan(Where where) throws Exception {
+        AccessPath path = choose(where);
+        if(path.type == AccessPath.RANGE) {
+            return rangeScan(path.fd, path.range);
+        }
+        return setScan(path.uids());
+    }
+
+    // 读出满足where条件的记录的方式，估计代价不低于全表扫描时，按第一个索引全表扫描
+    AccessPath choose(Where where) throws Exception {
+        Field first = null;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                first = field;
+                break;
             }
-            // 全表查询
-            l0 = 0;
-            r0 = Long.MAX_VALUE;
-            single = true;
-        }else{
-            // 查找与where条件中字段名匹配的字段
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.fieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
+        }
+        AccessPath path = where == null ? null : access(where);
+        AccessPath full = AccessPath.range(first, first.fullRange(), rowCount(), AccessPath.fetchCost(stats, first));
+        return path == null || path.cost() >= full.cost() ? full : path;
+    }
+
+    // 统计信息中字段fd的不同值个数，没有时返回-1
+    double distinct(Field fd) {
+        TableStats s = stats;
+        TableStats.ColumnStats cs = s == null ? null : s.column(fd);
+        return cs == null ? -1 : cs.distinct;
+    }
+
+    // 估计字段fd上一个值对应的记录数
+    double rowsPerKey(Field fd) {
+        double n = rowCount();
+        TableStats s = stats;
+        TableStats.ColumnStats cs = s == null ? null : s.column(fd);
+        if(cs != null) {
+            return cs.distinct == 0 ? 0 : n / cs.distinct;
+        }
+        return fd.isUnique() ? 1 : n * DEFAULT_POINT;
+    }
+
+    private double rowCount() {
+        TableStats s = stats;
+        return s == null ? DEFAULT_ROWS : s.rowCount;
+    }
+
+    // 选择能缩小扫描范围的索引，返回null表示条件不能使用索引
+    // 查出的记录可能比条件宽，由Filter复核
+    private AccessPath access(Where where) throws Exception {
+        Where[] ops = operands(where);
+        if(ops == null) {
+            Field fd = fields.get(fieldIndex(where.singleExp1.field));
+            if(!fd.isIndexed()) {
+                return null;
+            }
+            return estimate(fd, fd.calExp(where.singleExp1), "=".equals(where.singleExp1.compareOp));
+        }
+        switch(where.logicOp) {
+            case "and":
+                return accessAnd(ops);
+            case "or":
+                return accessOr(ops);
+            case "not":
+                return null;
+            default:
+                throw Error.invalidLogOpException;
+        }
+    }
+
+    // 按统计信息估计索引字段上一个范围内的记录数，没有统计信息时使用默认的选择率
+    private AccessPath estimate(Field fd, FieldCalRes range, boolean point) {
+        double n = rowCount();
+        TableStats s = stats;
+        double f = s == null ? -1 : s.fraction(fd, range, point);
+        if(f < 0) {
+            if(point) {
+                f = fd.isUnique() ? 1 / n : DEFAULT_POINT;
+            } else {
+                boolean full = range.left == Long.MIN_VALUE && range.right == Long.MAX_VALUE
+                        && range.leftKey == null && range.rightKey == null;
+                f = full ? 1 : DEFAULT_RANGE;
+            }
+        }
+        return AccessPath.range(fd, range, f * n, AccessPath.fetchCost(s, fd));
+    }
+
+    // 同一索引字段上的条件合并为一个范围；从估计记录数最少的方式开始，
+    // 与下一个方式求uid的交集能降低代价时才求交集，其余条件由Filter复核
+    private AccessPath accessAnd(Where[] ops) throws Exception {
+        Map<Field, FieldCalRes> ranges = new LinkedHashMap<>();
+        Set<Field> points = new HashSet<>();
+        List<AccessPath> candidates = new ArrayList<>();
+        for (Where op : ops) {
+            if(operands(op) != null) {
+                AccessPath p = access(op);
+                if(p != null) {
+                    candidates.add(p);
                 }
+                continue;
             }
-            if(fd == null) {
-                throw Error.fieldNotFoundException;
+            Field fd = fields.get(fieldIndex(op.singleExp1.field));
+            if(!fd.isIndexed()) continue;
+            ranges.merge(fd, fd.calExp(op.singleExp1), fd::intersect);
+            if("=".equals(op.singleExp1.compareOp)) {
+                points.add(fd);
             }
+        }
+        for (Map.Entry<Field, FieldCalRes> e : ranges.entrySet()) {
+            candidates.add(estimate(e.getKey(), e.getValue(), points.contains(e.getKey())));
+        }
+        if(candidates.isEmpty()) {
+            return null;
+        }
+        candidates.sort(Comparator.comparingDouble(p -> p.rows));
+        double n = rowCount();
+        AccessPath best = candidates.get(0);
+        List<AccessPath> chosen = new ArrayList<>(List.of(best));
+        for (int i = 1; i < candidates.size(); i++) {
+            List<AccessPath> next = new ArrayList<>(chosen);
+            next.add(candidates.get(i));
+            // 假设各条件相互独立
+            double rows = n == 0 ? 0 : best.rows * candidates.get(i).rows / n;
+            AccessPath p = AccessPath.combine(AccessPath.INTERSECT, next, rows);
+            if(p.cost() >= best.cost()) break;
+            best = p;
+            chosen = next;
+        }
+        return best;
+    }
 
-            // 计算查询范围
-            CalWhereRes res = calWhere(fd, where);
-            l0 = res.l0; r0 = res.r0;
-            l1 = res.l1; r1 = res.r1;
-            single = res.single;
+    // 每个子条件都能使用索引时对查出的uid求并集，范围重叠时也不会重复返回记录
+    private AccessPath accessOr(Where[] ops) throws Exception {
+        List<AccessPath> children = new ArrayList<>();
+        double rows = 0;
+        for (Where op : ops) {
+            AccessPath p = access(op);
+            if(p == null) {
+                return null;
+            }
+            children.add(p);
+            rows += p.rows;
         }
+        return AccessPath.combine(AccessPath.UNION, children, Math.min(rows, rowCount()));
+    }
+
+    private ScanRes rangeScan(Field fd, FieldCalRes range) throws Exception {
+        ScanRes res = new ScanRes();
+        res.fd = fd;
+        res.uids = fd.cursor(range);
+        res.ordered = true;
+        return res;
+    }
 
-        List<Long> uids = fd.search(l0, r0);
-        if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+    // 按uid的顺序返回，不对应任何索引的顺序
+    private ScanRes setScan(UidSet set) {
+        ScanRes res = new ScanRes();
+        res.uids = set.cursor();
+        return res;
+    }
+
+    // 复合条件的子条件，单个条件返回null
+    static Where[] operands(Where where) {
+        if(where.children != null) {
+            return where.children;
+        }
+        if("".equals(where.logicOp)) {
+            return null;
         }
-        // 执行查询索引结果
-        return uids;
+        return new Where[]{single(where.singleExp1), single(where.singleExp2)};
     }
 
-    class CalWhereRes {
-        long l0, r0, l1, r1;
-        boolean single;
+    private static Where single(SingleExpression exp) {
+        Where where = new Where();
+        where.singleExp1 = exp;
+        where.logicOp = "";
+        return where;
     }
 
-    private CalWhereRes calWhere(Field fd, Where where) throws Exception {
-        CalWhereRes res = new CalWhereRes();
+    // where是唯一字段上的单个等值条件时，最多只有一条可见记录满足条件，找到后可以停止
+    private boolean isUniquePoint(Where where) {
+        if(where == null || !"".equals(where.logicOp) || !"=".equals(where.singleExp1.compareOp)) {
+            return false;
+        }
+        for (Field field : fields) {
+            if(field.fieldName.equals(where.singleExp1.field)) {
+                return field.isUnique();
+            }
+        }
+        return false;
+    }
+
+    // 复核记录是否满足where条件
+    boolean matchWhere(Row row, Where where) throws Exception {
+        if(where == null) {
+            return true;
+        }
+        Where[] ops = operands(where);
+        if(ops == null) {
+            return matchExp(row, where.singleExp1);
+        }
         switch(where.logicOp) {
-            // 单个条件
-            case "":
-                res.single = true;
-                FieldCalRes r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                break;
-            case "or":
-                res.single = false;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                break;
             case "and":
-                res.single = true;
-                r = fd.calExp(where.singleExp1);
-                res.l0 = r.left; res.r0 = r.right;
-                r = fd.calExp(where.singleExp2);
-                res.l1 = r.left; res.r1 = r.right;
-                if(res.l1 > res.l0) res.l0 = res.l1;
-                if(res.r1 < res.r0) res.r0 = res.r1;
-                break;
+                for (Where op : ops) {
+                    if(!matchWhere(row, op)) return false;
+                }
+                return true;
+            case "or":
+                for (Where op : ops) {
+                    if(matchWhere(row, op)) return true;
+                }
+                return false;
+            case "not":
+                return !matchWhere(row, ops[0]);
             default:
                 throw Error.invalidLogOpException;
         }
-        return res;
+    }
+
+    private boolean matchExp(Row row, SingleExpression exp) throws Exception {
+        return row.match(fieldIndex(exp.field), exp);
     }
 
     @Override
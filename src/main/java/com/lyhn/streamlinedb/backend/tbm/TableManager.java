@@ -5,6 +5,9 @@ import com.lyhn.streamlinedb.backend.parser.statement.*;
 import com.lyhn.streamlinedb.backend.utils.Parser;
 import com.lyhn.streamlinedb.backend.vm.VersionManager;
 
+import java.io.File;
+import java.io.OutputStream;
+
 // 表管理器
 public interface TableManager {
     BeginRes begin(Begin begin);
@@ -16,18 +19,33 @@ public interface TableManager {
 
     byte[]  insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
+    // 查询结果逐行写入out
+    void read(long xid, Select select, OutputStream out) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
     byte[] drop(long xid, Drop drop) throws Exception;
+    // 收集表的统计信息，供选择查询方式使用
+    byte[] analyze(long xid, Analyze analyze) throws Exception;
 
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.spillBase = new File(path);
+        return tbm;
     }
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
+        return open(path, vm, dm, TableManagerImpl.DEFAULT_SORT_MEMORY);
+    }
+
+    // sortMemory为每个排序或哈希连接可以使用的内存，超过时写入数据库文件所在目录下的临时文件
+    public static TableManager open(String path, VersionManager vm, DataManager dm, long sortMemory) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.spillBase = new File(path);
+        tbm.sortMemory = sortMemory;
+        SpillFile.cleanup(tbm.spillBase);
+        return tbm;
     }
 }
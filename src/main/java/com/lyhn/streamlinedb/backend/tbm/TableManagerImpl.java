@@ -4,23 +4,37 @@ import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.dm.DataManager;
 import com.lyhn.streamlinedb.backend.parser.statement.*;
 import com.lyhn.streamlinedb.backend.utils.Parser;
+import com.lyhn.streamlinedb.backend.vm.LockTable;
 import com.lyhn.streamlinedb.backend.vm.VersionManager;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-// 负责数据库中的表结构
+/**
+ * 负责数据库中的表结构
+ * DML语句对表加意向锁（IS/IX），DROP对表加排他锁，CREATE对表名加排他锁，
+ * 通过锁表与并发的事务协调；ddlLock只保护引导器和表链表的修改
+ */
 public class TableManagerImpl implements TableManager{
+    public static final long DEFAULT_SORT_MEMORY = 4 << 20;
+
     VersionManager vm;
     DataManager dm;
+    // 每个排序或哈希连接可以使用的内存，超过时把记录写到临时文件
+    long sortMemory = DEFAULT_SORT_MEMORY;
+    // 数据库文件的路径（不含扩展名），临时文件放在同一目录下
+    File spillBase;
     private Booter booter;
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
-    private Lock lock;
+    private Lock ddlLock;
 
     private Map<Long, List<PendingIndexDelete>> pendingIndexDeletes;
 
@@ -28,10 +42,10 @@ public class TableManagerImpl implements TableManager{
         this.vm = vm;
         this.dm = dm;
         this.booter = booter;
-        this.tableCache = new HashMap<>();
-        this.xidTableCache = new HashMap<>();
-        this.pendingIndexDeletes = new HashMap<>();
-        lock = new ReentrantLock();
+        this.tableCache = new ConcurrentHashMap<>();
+        this.xidTableCache = new ConcurrentHashMap<>();
+        this.pendingIndexDeletes = new ConcurrentHashMap<>();
+        ddlLock = new ReentrantLock();
         loadTables();
     }
 
@@ -139,33 +153,30 @@ public class TableManagerImpl implements TableManager{
     // 显示所有表信息
     @Override
     public byte[] show(long xid) {
-        lock.lock();
-        try {
-            StringBuilder sb = new StringBuilder();
-            // 遍历全局缓存中的所有表
-            for (Table tb : tableCache.values()) {
+        StringBuilder sb = new StringBuilder();
+        // 遍历全局缓存中的所有表
+        for (Table tb : tableCache.values()) {
+            sb.append(tb.toString()).append("\n");
+        }
+        // 获取当前事务创建的表
+        List<Table> t = xidTableCache.get(xid);
+        if(t != null) {
+            for (Table tb : t) {
                 sb.append(tb.toString()).append("\n");
             }
-            // 获取当前事务创建的表
-            List<Table> t = xidTableCache.get(xid);
-            if(t != null) {
-                for (Table tb : t) {
-                    sb.append(tb.toString()).append("\n");
-                }
-            }
-            if(sb.length() == 0) {
-                return "\n".getBytes();
-            }
-            return sb.toString().getBytes();
-        } finally {
-            lock.unlock();
         }
+        if(sb.length() == 0) {
+            return "\n".getBytes();
+        }
+        return sb.toString().getBytes();
     }
 
     // 创建新表
     @Override
     public byte[] create(long xid, Create create) throws Exception {
-        lock.lock();
+        // 对表名加排他锁，同名的并发创建互相等待
+        vm.lock(xid, nameLockUid(create.tableName), LockTable.X);
+        ddlLock.lock();
         try {
             // 检查表名是否存在
             if(tableCache.containsKey(create.tableName)) {
@@ -176,28 +187,19 @@ public class TableManagerImpl implements TableManager{
             updateFirstTableUid(table.uid);
             // 将表加入缓存
             tableCache.put(create.tableName, table);
-            // 检查事务缓存中是否存在该事务的记录
-            if(!xidTableCache.containsKey(xid)) {
-                xidTableCache.put(xid, new ArrayList<>());
-            }
             // 将表加入事务缓存
-            xidTableCache.get(xid).add(table);
+            xidTableCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(table);
             return ("create " + create.tableName).getBytes();
         } finally {
-            lock.unlock();
+            ddlLock.unlock();
         }
     }
 
     // 插入数据
     @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
-        lock.lock();
-        // 根据表名查找表对象
-        Table table = tableCache.get(insert.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.tableNotFoundException;
-        }
+        // 根据表名查找表对象，并加意向排他锁
+        Table table = getTable(xid, insert.tableName, LockTable.IX);
         // 调用表的insert操作
         table.insert(xid, insert);
         // 返回操作结果
@@ -206,47 +208,46 @@ public class TableManagerImpl implements TableManager{
 
     @Override
     public byte[] read(long xid, Select read) throws Exception {
-        lock.lock();
-        // 根据表名查找表对象
-        Table table = tableCache.get(read.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.tableNotFoundException;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        read(xid, read, out);
+        return out.toByteArray();
+    }
+
+    @Override
+    public void read(long xid, Select read, OutputStream out) throws Exception {
+        // 根据表名查找表对象，FOR UPDATE加意向排他锁，其余加意向共享锁
+        Table table = getTable(xid, read.tableName, read.forUpdate ? LockTable.IX : LockTable.IS);
+        if(read.join != null) {
+            Table other = getTable(xid, read.join.tableName, LockTable.IS);
+            Table.write(JoinPlanner.plan(xid, read, table, other), out);
+            return;
         }
-        // 调用表的read操作并返回操作结果
-        return table.read(xid, read).getBytes();
+        // 调用表的read操作，结果逐行写入out
+        table.read(xid, read, out);
     }
 
     @Override
     public byte[] update(long xid, Update update) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(update.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.tableNotFoundException;
-        }
+        Table table = getTable(xid, update.tableName, LockTable.IX);
         int count = table.update(xid, update);
         return ("update " + count).getBytes();
     }
 
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
-        lock.lock();
-        Table table = tableCache.get(delete.tableName);
-        lock.unlock();
-        if(table == null) {
-            throw Error.tableNotFoundException;
-        }
+        Table table = getTable(xid, delete.tableName, LockTable.IX);
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
 
     @Override
     public byte[] drop(long xid, Drop drop) throws Exception {
-        lock.lock();
+        // 对表加排他锁，等待正在使用该表的事务结束
+        Table table = getTable(xid, drop.tableName, LockTable.X);
+        vm.lock(xid, nameLockUid(drop.tableName), LockTable.X);
+        ddlLock.lock();
         try {
-            Table table = tableCache.get(drop.tableName);
-            if(table == null) {
+            if(tableCache.get(drop.tableName) != table) {
                 throw Error.tableNotFoundException;
             }
             long firstUid = firstTableUid();
@@ -261,10 +262,37 @@ public class TableManagerImpl implements TableManager{
             tableCache.remove(drop.tableName);
             return ("drop " + drop.tableName).getBytes();
         } finally {
-            lock.unlock();
+            ddlLock.unlock();
         }
     }
 
+    @Override
+    public byte[] analyze(long xid, Analyze analyze) throws Exception {
+        // 统计时读取全部记录，与读操作一样加意向共享锁
+        Table table = getTable(xid, analyze.tableName, LockTable.IS);
+        table.analyze(xid);
+        return ("analyze " + analyze.tableName).getBytes();
+    }
+
+    // 查找表并以指定模式加表锁
+    Table getTable(long xid, String tableName, int mode) throws Exception {
+        Table table = tableCache.get(tableName);
+        if(table == null) {
+            throw Error.tableNotFoundException;
+        }
+        vm.lock(xid, table.uid, mode);
+        // 等待期间表可能已被删除
+        if(tableCache.get(tableName) != table) {
+            throw Error.tableNotFoundException;
+        }
+        return table;
+    }
+
+    // 表名锁的资源id，取负数以免与数据项的uid冲突；哈希冲突会让不相关的表名互相阻塞
+    private static long nameLockUid(String tableName) {
+        return Parser.hash64(tableName) | Long.MIN_VALUE;
+    }
+
     private long findPrevTableUid(long startUid, long targetUid) {
         long uid = startUid;
         while(uid != 0) {
@@ -294,9 +322,9 @@ public class TableManagerImpl implements TableManager{
         }
     }
 
-    void addPendingIndexDelete(long xid, String tableName, String fieldName, Object keyValue) {
+    void addPendingIndexDelete(long xid, String tableName, String fieldName, Object keyValue, long uid) {
         pendingIndexDeletes.computeIfAbsent(xid, k -> new ArrayList<>())
-                .add(new PendingIndexDelete(tableName, fieldName, keyValue));
+                .add(new PendingIndexDelete(tableName, fieldName, keyValue, uid));
     }
 
     private void executePendingIndexDeletes(long xid) throws Exception {
@@ -305,7 +333,7 @@ public class TableManagerImpl implements TableManager{
         for(PendingIndexDelete pid : pending) {
             Table tb = tableCache.get(pid.tableName);
             if(tb != null) {
-                tb.executeIndexDelete(pid.fieldName, pid.keyValue);
+                tb.executeIndexDelete(pid.fieldName, pid.keyValue, pid.uid);
             }
         }
     }
@@ -314,11 +342,14 @@ public class TableManagerImpl implements TableManager{
         String tableName;
         String fieldName;
         Object keyValue;
+        // 被删除记录的uid，只删除指向这条记录的索引项
+        long uid;
 
-        PendingIndexDelete(String tableName, String fieldName, Object keyValue) {
+        PendingIndexDelete(String tableName, String fieldName, Object keyValue, long uid) {
             this.tableName = tableName;
             this.fieldName = fieldName;
             this.keyValue = keyValue;
+            this.uid = uid;
         }
     }
 }
@@ -0,0 +1,244 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.google.common.primitives.Bytes;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 表的统计信息：记录数，每个索引字段的不同值个数、等深直方图，以及索引顺序与记录存放顺序的相关性
+ * 由ANALYZE收集，之后的修改不会更新统计信息，需要重新ANALYZE；
+ * 记录数是准确的，其余各项由最多SAMPLE_SIZE条记录的随机样本估计
+ *
+ * 二进制格式为：
+ * [RowCount][ColumnCount]
+ * 每个字段：[FieldName][Distinct][Correlation][Kind][BoundCount][Bound0]...[BoundN]
+ * Kind为0时是整数字段，边界为8字节；为1时是字符串字段，边界为UTF-8编码，格式同字符串值，最多保存MAX_BOUND_LENGTH字节
+ * 持久化时序列化结果不超过MAX_SIZE字节，放不下的字段不保存，之后按没有统计信息估计
+ */
+public class TableStats {
+    static final int BUCKETS = 16;
+    static final int MAX_BOUND_LENGTH = 32;
+    // ANALYZE时每个表最多抽取的记录数
+    static final int SAMPLE_SIZE = 30000;
+    // 保存统计信息的数据项的固定大小，重新ANALYZE时原地覆盖
+    static final int MAX_SIZE = 4096;
+
+    long rowCount;
+    private final Map<String, ColumnStats> columns = new HashMap<>();
+
+    /**
+     * 直方图把按值排序的记录等分为若干桶，bounds[0]为最小值，最后一个边界为最大值，
+     * 相邻两个边界之间的记录数相同；整数字段使用longBounds，字符串字段使用keyBounds
+     */
+    static class ColumnStats {
+        long distinct;
+        // 按值排序后记录uid的单调程度，1为完全递增，-1为完全递减，0为无关
+        double correlation;
+        long[] longBounds;
+        byte[][] keyBounds;
+    }
+
+    TableStats(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    ColumnStats column(Field fd) {
+        return columns.get(fd.fieldName);
+    }
+
+    // 由排好序的n条样本的整数值和按同样顺序排列的uid生成统计信息
+    void addLongs(Field fd, long[] values, long[] uids, int n) {
+        ColumnStats cs = new ColumnStats();
+        cs.correlation = correlation(uids, n);
+        long d = 0, once = 0;
+        for(int i = 0; i < n; i ++) {
+            if(i == 0 || values[i] != values[i-1]) {
+                d ++;
+                if(i == n-1 || values[i+1] != values[i]) once ++;
+            }
+        }
+        cs.distinct = scaleDistinct(d, once, n);
+        int count = n == 0 ? 0 : BUCKETS + 1;
+        cs.longBounds = new long[count];
+        for(int b = 0; b < count; b ++) {
+            cs.longBounds[b] = values[(int)((long)b * (n-1) / BUCKETS)];
+        }
+        columns.put(fd.fieldName, cs);
+    }
+
+    // 由按无符号字节序排好序的n条样本的字符串键和按同样顺序排列的uid生成统计信息
+    void addKeys(Field fd, byte[][] keys, long[] uids, int n) {
+        ColumnStats cs = new ColumnStats();
+        cs.correlation = correlation(uids, n);
+        long d = 0, once = 0;
+        for(int i = 0; i < n; i ++) {
+            if(i == 0 || !Arrays.equals(keys[i], keys[i-1])) {
+                d ++;
+                if(i == n-1 || !Arrays.equals(keys[i+1], keys[i])) once ++;
+            }
+        }
+        cs.distinct = scaleDistinct(d, once, n);
+        int count = n == 0 ? 0 : BUCKETS + 1;
+        cs.keyBounds = new byte[count][];
+        for(int b = 0; b < count; b ++) {
+            byte[] key = keys[(int)((long)b * (n-1) / BUCKETS)];
+            cs.keyBounds[b] = Arrays.copyOf(key, Math.min(key.length, MAX_BOUND_LENGTH));
+        }
+        columns.put(fd.fieldName, cs);
+    }
+
+    /**
+     * 由n条样本中的不同值个数d和只出现一次的值的个数once估计全表的不同值个数（Haas-Stokes的Duj1估计），
+     * 样本是全表时就是d；样本中每个值都只出现一次时估计为全部记录都不同
+     */
+    private long scaleDistinct(long d, long once, int n) {
+        if(n >= rowCount || n == 0) {
+            return d;
+        }
+        double est = (double)n * d / (n - once + (double)once * n / rowCount);
+        return Math.max(d, Math.min(rowCount, Math.round(est)));
+    }
+
+    // 相邻两条记录中uid递增的比例换算到[-1, 1]
+    private static double correlation(long[] uids, int n) {
+        if(n < 2) {
+            return 1;
+        }
+        int inc = 0;
+        for(int i = 1; i < n; i ++) {
+            if(uids[i] > uids[i-1]) inc ++;
+        }
+        return 2.0 * inc / (n-1) - 1;
+    }
+
+    /**
+     * 估计索引字段fd上的范围range内的记录占全表的比例，没有该字段的统计信息时返回-1
+     * 等值条件至少为一个不同值的比例，值分布倾斜时按直方图中等于该值的边界数估计；
+     * 无序索引上只能是等值查询或全部范围
+     */
+    double fraction(Field fd, FieldCalRes range, boolean point) {
+        ColumnStats cs = column(fd);
+        if(cs == null) {
+            return -1;
+        }
+        if(rowCount == 0 || cs.distinct == 0) {
+            return 0;
+        }
+        if(!fd.isOrdered()) {
+            return point ? 1.0 / cs.distinct : 1;
+        }
+        double f;
+        if(cs.longBounds != null) {
+            if(range.left > range.right) return 0;
+            double lo = range.left == Long.MIN_VALUE ? 0 : atMost(cs.longBounds, range.left - 1);
+            f = atMost(cs.longBounds, range.right) - lo;
+        } else {
+            double lo = range.leftKey == null ? 0 : position(cs.keyBounds, range.leftKey, false);
+            double hi = range.rightKey == null ? 1 : position(cs.keyBounds, range.rightKey, range.rightInclusive);
+            f = hi - lo;
+        }
+        // 范围不为空时至少估计为一个不同值的比例
+        return Math.min(1, Math.max(f, 1.0 / cs.distinct));
+    }
+
+    // 值不大于x的记录的比例，在桶内按线性分布插值
+    private static double atMost(long[] bounds, long x) {
+        int last = bounds.length - 1;
+        if(x < bounds[0]) return 0;
+        if(x >= bounds[last]) return 1;
+        int i = 0;
+        while(i < last-1 && bounds[i+1] <= x) i ++;
+        double width = (double)bounds[i+1] - bounds[i];
+        double inBucket = width == 0 ? 1 : ((double)x - bounds[i]) / width;
+        return (i + inBucket) / last;
+    }
+
+    // 小于（inclusive为true时不大于）key的记录的大致比例，桶内取中点
+    private static double position(byte[][] bounds, byte[] key, boolean inclusive) {
+        int count = 0;
+        for(byte[] bound : bounds) {
+            int c = Arrays.compareUnsigned(bound, key);
+            if(c < 0 || (inclusive && c == 0)) count ++;
+        }
+        double p = (count - 0.5) / (bounds.length - 1);
+        return Math.max(0, Math.min(1, p));
+    }
+
+    byte[] toRaw() {
+        return toRaw(Integer.MAX_VALUE);
+    }
+
+    // 序列化后不超过maxSize字节，超出的字段跳过
+    byte[] toRaw(int maxSize) {
+        byte[] raw = new byte[0];
+        int n = 0;
+        for(Map.Entry<String, ColumnStats> e : columns.entrySet()) {
+            ColumnStats cs = e.getValue();
+            boolean isLong = cs.longBounds != null;
+            int count = isLong ? cs.longBounds.length : cs.keyBounds.length;
+            byte[] col = Bytes.concat(Parser.string2Byte(e.getKey()), Parser.long2Byte(cs.distinct),
+                    Parser.long2Byte(Double.doubleToLongBits(cs.correlation)), new byte[]{(byte)(isLong ? 0 : 1)}, Parser.int2Byte(count));
+            for(int i = 0; i < count; i ++) {
+                col = Bytes.concat(col, isLong ? Parser.long2Byte(cs.longBounds[i]) : keyRaw(cs.keyBounds[i]));
+            }
+            if(12L + raw.length + col.length > maxSize) {
+                continue;
+            }
+            raw = Bytes.concat(raw, col);
+            n ++;
+        }
+        return Bytes.concat(Parser.long2Byte(rowCount), Parser.int2Byte(n), raw);
+    }
+
+    private static byte[] keyRaw(byte[] key) {
+        return Bytes.concat(Parser.int2Byte(key.length), key);
+    }
+
+    static TableStats parse(byte[] raw, int start, List<Field> fields) {
+        int pos = start;
+        TableStats stats = new TableStats(Parser.readLong(raw, pos));
+        pos += 8;
+        int n = Parser.readInt(raw, pos);
+        pos += 4;
+        for(int c = 0; c < n; c ++) {
+            int len = Parser.readInt(raw, pos);
+            String name = new String(raw, pos+4, len);
+            pos += 4 + len;
+            ColumnStats cs = new ColumnStats();
+            cs.distinct = Parser.readLong(raw, pos);
+            pos += 8;
+            cs.correlation = Double.longBitsToDouble(Parser.readLong(raw, pos));
+            pos += 8;
+            boolean isLong = raw[pos] == 0;
+            pos ++;
+            int count = Parser.readInt(raw, pos);
+            pos += 4;
+            if(isLong) {
+                cs.longBounds = new long[count];
+                for(int i = 0; i < count; i ++) {
+                    cs.longBounds[i] = Parser.readLong(raw, pos);
+                    pos += 8;
+                }
+            } else {
+                cs.keyBounds = new byte[count][];
+                for(int i = 0; i < count; i ++) {
+                    int klen = Parser.readInt(raw, pos);
+                    cs.keyBounds[i] = Arrays.copyOfRange(raw, pos+4, pos+4+klen);
+                    pos += 4 + klen;
+                }
+            }
+            // 只保留仍然存在的字段
+            for(Field fd : fields) {
+                if(fd.fieldName.equals(name)) {
+                    stats.columns.put(name, cs);
+                    break;
+                }
+            }
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,62 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import com.lyhn.streamlinedb.backend.vm.VersionManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 把子算子输出的每条记录的一个字段改为新值：删除旧版本，插入新版本并更新索引
+ * 新版本会插入索引，边扫描边更新可能再次遇到新插入的记录，因此先读完全部记录再修改
+ */
+class UpdateSink {
+    private final Operator child;
+    private final Table table;
+    private final long xid;
+    private final Field fd;
+    private final Object value;
+
+    UpdateSink(Operator child, Table table, long xid, Field fd, Object value) {
+        this.child = child;
+        this.table = table;
+        this.xid = xid;
+        this.fd = fd;
+        this.value = value;
+    }
+
+    // 返回更新的记录数
+    int execute() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> rows = new ArrayList<>();
+        try {
+            child.open();
+            RowBatch batch;
+            while((batch = child.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    uids.add(batch.uids[i]);
+                    rows.add(batch.copy(i));
+                }
+            }
+        } finally {
+            child.close();
+        }
+
+        VersionManager vm = ((TableManagerImpl)table.tbm).vm;
+        int count = 0;
+        for(int i = 0; i < uids.size(); i ++) {
+            Map<String, Object> entry = table.parseEntry(rows.get(i));
+            entry.put(fd.fieldName, value);
+            // 先检查唯一性，跳过旧版本自身；冲突时旧记录保持不变
+            table.checkUnique(xid, entry, uids.get(i));
+            // 删除旧记录（MVCC机制，设置XMAX）
+            table.visibility.clear(uids.get(i));
+            vm.delete(xid, uids.get(i));
+            // 插入新纪录，生成新的uid，并更新所有索引
+            long uuid = vm.insert(xid, table.entry2Raw(entry));
+            count ++;
+            table.insertIndexes(entry, uuid);
+        }
+        return count;
+    }
+}
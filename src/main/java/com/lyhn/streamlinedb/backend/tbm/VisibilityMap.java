@@ -0,0 +1,42 @@
+package com.lyhn.streamlinedb.backend.tbm;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 表的可见性映射：记录哪些页中本表的记录都对所有事务可见，这些记录不需要读出来检查MVCC可见性
+ * uid的高32位是页号
+ *
+ * ANALYZE检查后设置，表上的插入和删除在修改记录前后清除所在页；只保存在内存中，重启后全部清除。
+ * 每次清除都会增加版本号，检查期间版本号变化时放弃设置，避免覆盖检查之后的修改
+ */
+class VisibilityMap {
+    private final Set<Integer> pages = new HashSet<>();
+    private long version;
+
+    static int page(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    synchronized boolean isAllVisible(long uid) {
+        return pages.contains(page(uid));
+    }
+
+    synchronized void clear(long uid) {
+        version ++;
+        pages.remove(page(uid));
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    // 从取得since之后没有清除过任何页时才设置，返回是否设置成功
+    synchronized boolean setAll(Set<Integer> visible, long since) {
+        if(version != since) {
+            return false;
+        }
+        pages.addAll(visible);
+        return true;
+    }
+}
@@ -1,9 +1,42 @@
 package com.lyhn.streamlinedb.backend.utils;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
 public class Parser {
+    // 直接在字节数组上按大端序读写基本类型，与ByteBuffer的默认字节序一致，不产生临时数组
+    private static final VarHandle SHORT_VIEW = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT_VIEW = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short readShort(byte[] buf, int offset) {
+        return (short)SHORT_VIEW.get(buf, offset);
+    }
+
+    public static void writeShort(byte[] buf, int offset, short value) {
+        SHORT_VIEW.set(buf, offset, value);
+    }
+
+    public static int readInt(byte[] buf, int offset) {
+        return (int)INT_VIEW.get(buf, offset);
+    }
+
+    public static void writeInt(byte[] buf, int offset, int value) {
+        INT_VIEW.set(buf, offset, value);
+    }
+
+    public static long readLong(byte[] buf, int offset) {
+        return (long)LONG_VIEW.get(buf, offset);
+    }
+
+    public static void writeLong(byte[] buf, int offset, long value) {
+        LONG_VIEW.set(buf, offset, value);
+    }
+
     public static byte[] short2Byte(short value) {
         return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
     }
@@ -52,4 +85,46 @@ public class Parser {
         }
         return res;
     }
+
+    // 64位哈希，每8字节做一次乘法-循环移位混合，最后做雪崩处理
+    // 与str2Uid相比，长度相近、仅相差少数字符的字符串也不容易冲突
+    // str2Uid仍用于已持久化的旧索引，新的哈希场景使用hash64
+    public static long hash64(byte[] buf) {
+        final long c1 = 0x87c37b91114253d5L, c2 = 0x4cf5ad432745937fL;
+        long h = 0x9E3779B97F4A7C15L ^ (buf.length * c1);
+        int i = 0;
+        for(; i + 8 <= buf.length; i += 8) {
+            h ^= mixK(readLong(buf, i), c1, c2);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for(int j = buf.length - 1; j >= i; j --) {
+            k = (k << 8) | (buf[j] & 0xFF);
+        }
+        h ^= mixK(k, c1, c2);
+        return fmix64(h);
+    }
+
+    public static long hash64(long value) {
+        return fmix64(value ^ 0x9E3779B97F4A7C15L);
+    }
+
+    public static long hash64(String str) {
+        return hash64(str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long mixK(long k, long c1, long c2) {
+        k *= c1;
+        k = Long.rotateLeft(k, 31);
+        return k * c2;
+    }
+
+    private static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
 }
@@ -74,6 +74,17 @@ public class Entry {
         }
     }
 
+    // 不拷贝，直接在数据项上读取内容
+    public void read(EntryReader reader) throws Exception {
+        dataItem.rLock();
+        try {
+            SubArray sa = dataItem.data();
+            reader.read(new SubArray(sa.raw, sa.start+OF_DATA, sa.end));
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     public long getXmin() {
         dataItem.rLock();
         try {
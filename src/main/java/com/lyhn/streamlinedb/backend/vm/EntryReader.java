@@ -0,0 +1,8 @@
+package com.lyhn.streamlinedb.backend.vm;
+
+import com.lyhn.streamlinedb.backend.common.SubArray;
+
+// 在数据项上直接读取数据，读取期间持有数据项的读锁，不能在其中执行可能阻塞的操作
+public interface EntryReader {
+    void read(SubArray data) throws Exception;
+}
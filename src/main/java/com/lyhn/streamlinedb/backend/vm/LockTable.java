@@ -1,8 +1,16 @@
 package com.lyhn.streamlinedb.backend.vm;
 
 import com.lyhn.streamlinedb.backend.common.Error;
+import com.lyhn.streamlinedb.backend.common.LongHashSet;
+import com.lyhn.streamlinedb.backend.common.LongLongMap;
+import com.lyhn.streamlinedb.backend.common.LongObjectMap;
+import com.lyhn.streamlinedb.backend.common.LongSetMap;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,198 +18,378 @@ import java.util.concurrent.locks.ReentrantLock;
  * 维护了一个依赖等待图，以进行死锁检测
  * 节点：xid和uid
  * 边：事务持有资源（xid->uid）和事务等待资源（xid->uid）
+ *
+ * 资源按uid散列到多个分片，每个分片有独立的锁和每个资源的等待队列，
+ * 不同资源上的加锁/解锁互不阻塞。等待者在分片锁的Condition上等待，
+ * 死锁检测只从新加入的等待边出发搜索，不再遍历全部事务。
+ *
+ * 支持四种锁模式：行上的共享锁S和排他锁X，表上的意向锁IS/IX（表同样可以加S/X）。
+ * 同一资源可被多个相容模式的事务同时持有，等待队列先来先得，锁升级排在队首。
+ *
+ * 内部的映射都使用基本类型的开放寻址哈希表，事务持有的资源按分片记录，
+ * 释放时逐个分片整体取出，不再有装箱和线性查找。
  */
 public class LockTable {
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;
+    // 锁模式
+    public static final int IS = 0;     // 意向共享
+    public static final int IX = 1;     // 意向排他
+    public static final int S = 2;      // 共享
+    public static final int X = 3;      // 排他
+    // 未持有
+    private static final int NONE = -1;
+
+    // 锁模式相容矩阵
+    private static final boolean[][] COMPATIBLE = {
+            //      IS     IX     S      X
+            {true,  true,  true,  false},   // IS
+            {true,  true,  false, false},   // IX
+            {true,  false, true,  false},   // S
+            {false, false, false, false},   // X
+    };
+
+    // 分片数量，必须是2的幂
+    private static final int SHARD_NUMBER = 64;
+
+    private Shard[] shards;
+    private LongLongMap waitU;          // XID正在等待的UID
+    private Lock waitLock;              // 保护waitU，持有分片锁时可以获取，反之不行
+    // 串行化死锁检测，只有需要等待的加锁请求才会获取
+    private Lock detectLock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        shards = new Shard[SHARD_NUMBER];
+        for(int i = 0; i < SHARD_NUMBER; i ++) {
+            shards[i] = new Shard();
+        }
+        waitU = new LongLongMap();
+        waitLock = new ReentrantLock();
+        detectLock = new ReentrantLock();
+    }
+
+    // 以排他模式加锁
+    public Waiter add(long xid, long uid) throws Exception {
+        return add(xid, uid, X);
     }
 
     // 添加锁请求，实现了锁的获取和死锁检测
-    // 不需要等待则返回null，否则返回锁对象
+    // 不需要等待则返回null，否则返回等待句柄，调用其await()阻塞直到获得资源
     // 会造成死锁则抛出异常
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public Waiter add(long xid, long uid, int mode) throws Exception {
+        Shard shard = shardOf(uid);
+        Waiter w;
+        shard.lock.lock();
         try {
-            // 如果事务已经持有该资源，直接返回
-            if (isInList(x2u, xid, uid)) {
+            Resource r = shard.resources.computeIfAbsent(uid, k -> new Resource());
+            int held = (int)r.holders.get(xid, NONE);
+            int want = held == NONE ? mode : supremum(held, mode);
+            // 如果事务已经以不弱于请求的模式持有该资源，直接返回
+            if(held == want) {
                 return null;
             }
-            // 如果资源未被占用，分配给事务
-            if (!u2x.containsKey(uid)) {
-                // 记录资源被哪一个事务占用
-                u2x.put(uid, xid);
-                // 记录事务持有哪些资源
-                putIntoList(x2u, xid, uid);
-                // 获取锁成功，返回null
+            // 与其他持有者相容，且没有排在前面的等待者（锁升级不需要排队），直接分配
+            if(compatibleWithHolders(r, xid, want) && (held != NONE || r.waiters.isEmpty())) {
+                r.holders.put(xid, want);
+                if(held == NONE) {
+                    shard.held.add(xid, uid);
+                }
                 return null;
             }
-            // 资源已被占用，将事务加入到等待队列
-            waitU.put(xid, uid);
-            // 记录资源有哪些事务在等待
-            putIntoList(wait, uid, xid);
-            // 检查是否产生死锁
-            if (hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
-                throw Error.deadlockException;
-            }
-            Lock l = new ReentrantLock();
-            // 锁住，进入阻塞状态
-            l.lock();
-            // 记录事务的锁对象
-            waitLock.put(xid, l);
-            // 不产生死锁，创建一个锁对象并返回，事务将被阻塞
-            return l;
+            // 需要等待，锁升级排在队首，避免与后来的请求互相等待
+            w = new Waiter(xid, want, shard);
+            if(held != NONE) {
+                r.waiters.addFirst(w);
+            } else {
+                r.waiters.addLast(w);
+            }
+            // 先发布等待边，再做检测，保证成环时最后一个加入的事务一定能发现
+            setWaiting(xid, uid);
+        } finally {
+            shard.lock.unlock();
+        }
 
+        detectLock.lock();
+        try {
+            if(hasDeadLock(xid)) {
+                shard.lock.lock();
+                try {
+                    // 检测期间已经被分配到资源，说明环已被打破
+                    if(!w.granted) {
+                        clearWaiting(xid, uid);
+                        removeWaiter(shard, uid, w);
+                        throw Error.deadlockException;
+                    }
+                } finally {
+                    shard.lock.unlock();
+                }
+            }
         } finally {
-            lock.unlock();
+            detectLock.unlock();
         }
+        return w;
     }
 
     // 处理事务释放锁
     public void remove(long xid) {
-        lock.lock();
+        // 先取消正在进行的等待，保证之后不会再有资源分配给该事务
+        boolean isWaiting;
+        long waiting;
+        waitLock.lock();
         try {
-            // 获取事务持有的所有资源
-            List<Long> l = x2u.get(xid);
-            if(l != null) {
-                // 对每一个资源，从等待队列中选择一个新的事务来占用
-                while(l.size() > 0) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
+            isWaiting = waitU.containsKey(xid);
+            waiting = waitU.remove(xid, 0);
+        } finally {
+            waitLock.unlock();
+        }
+        if(isWaiting) {
+            cancelWait(xid, waiting);
+        }
+        // 逐个分片释放持有的资源，并从等待队列中选择新的事务来占用
+        for(Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                LongHashSet held = shard.held.removeAll(xid);
+                if(held == null) continue;
+                for(int i = held.nextSlot(0); i >= 0; i = held.nextSlot(i + 1)) {
+                    long uid = held.keyAt(i);
+                    Resource r = shard.resources.get(uid);
+                    if(r == null || r.holders.remove(xid, NONE) == NONE) continue;
+                    grantWaiters(shard, uid, r);
                 }
+            } finally {
+                shard.lock.unlock();
             }
-            // 清除事务的所有相关数据结构
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
-
-        } finally {
-            lock.unlock();
         }
     }
 
-    // 从等待队列中选择一个xid来占用uid
-    private void selectNewXID(long uid) {
-        // 释放资源
-        u2x.remove(uid);
-        // 获取等待该资源的事务列表
-        List<Long> l = wait.get(uid);
-        if(l == null) return;
-        assert l.size() > 0;
+    // 按队列顺序唤醒与当前持有者相容的等待者，遇到第一个不相容的即停止
+    // 调用者需持有分片锁
+    private void grantWaiters(Shard shard, long uid, Resource r) {
+        while(!r.waiters.isEmpty()) {
+            Waiter w = r.waiters.peekFirst();
+            if(!compatibleWithHolders(r, w.xid, w.mode)) {
+                break;
+            }
+            r.waiters.pollFirst();
+            if(!r.holders.containsKey(w.xid)) {
+                shard.held.add(w.xid, uid);
+            }
+            r.holders.put(w.xid, w.mode);
+            clearWaiting(w.xid, uid);
+            w.granted = true;
+            w.cond.signalAll();
+        }
+        if(r.holders.isEmpty() && r.waiters.isEmpty()) {
+            shard.resources.remove(uid);
+        }
+    }
 
-        while(l.size() > 0) {
-            long xid = l.remove(0);
-            // 检查该事务是否在等待
-            if(!waitLock.containsKey(xid)) {
-                continue;
-            } else {
-                u2x.put(uid, xid);
-                // 获取并移除事务的锁对象
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                try {
-                    lo.unlock();
-                } catch (IllegalMonitorStateException e) {
+    // 事务结束时仍在等待，将其从等待队列中移除并唤醒
+    private void cancelWait(long xid, long uid) {
+        Shard shard = shardOf(uid);
+        shard.lock.lock();
+        try {
+            Resource r = shard.resources.get(uid);
+            if(r == null) return;
+            for(Waiter w : r.waiters) {
+                if(w.xid == xid) {
+                    removeWaiter(shard, uid, w);
+                    break;
                 }
-                break;
             }
+        } finally {
+            shard.lock.unlock();
         }
+    }
 
-        if(l.size() == 0) wait.remove(uid);
+    // 调用者需持有分片锁
+    private void removeWaiter(Shard shard, long uid, Waiter w) {
+        w.cancelled = true;
+        w.cond.signalAll();
+        Resource r = shard.resources.get(uid);
+        if(r != null && r.waiters.remove(w)) {
+            // 排在它后面的等待者可能因此可以获得资源
+            grantWaiters(shard, uid, r);
+        }
     }
 
-    // 记录每一个事务的时间戳
-    // xid -> stamp
-    private Map<Long, Integer> xidStamp;
-    // 全局时间戳计数器
-    private int stamp;
+    // 调用者可以持有分片锁
+    private void setWaiting(long xid, long uid) {
+        waitLock.lock();
+        try {
+            waitU.put(xid, uid);
+        } finally {
+            waitLock.unlock();
+        }
+    }
 
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        // 为每一个事务分配一个时间戳 初始化为1
-        stamp = 1;
-        // 遍历所有事务
-        for(long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if(s != null && s > 0) {
-                continue;
+    // 只有xid仍在等待uid时才清除
+    private void clearWaiting(long xid, long uid) {
+        waitLock.lock();
+        try {
+            if(waitU.containsKey(xid) && waitU.get(xid, 0) == uid) {
+                waitU.remove(xid, 0);
             }
-            stamp ++;
-            // 对每一个事务执行DFS检测
-            if(dfs(xid)) {
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    // 从xid出发沿等待边做DFS，只访问从新等待边可达的事务，回到xid即说明成环
+    private boolean hasDeadLock(long xid) {
+        LongHashSet visited = new LongHashSet();
+        long[] stack = blockersOf(xid);
+        int top = stack.length;
+        while(top > 0) {
+            long x = stack[-- top];
+            if(x == xid) {
                 return true;
             }
+            if(visited.add(x)) {
+                long[] next = blockersOf(x);
+                if(top + next.length > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length << 1, top + next.length));
+                }
+                System.arraycopy(next, 0, stack, top, next.length);
+                top += next.length;
+            }
         }
         return false;
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
-            }
+    private static final long[] NO_BLOCKERS = new long[0];
+
+    // 阻塞xid的事务：与其请求不相容的持有者，以及等待队列中排在它前面的事务
+    private long[] blockersOf(long xid) {
+        long uid;
+        waitLock.lock();
+        try {
+            if(!waitU.containsKey(xid)) return NO_BLOCKERS;
+            uid = waitU.get(xid, 0);
+        } finally {
+            waitLock.unlock();
         }
-        if(l.size() == 0) {
-            listMap.remove(uid0);
+        Shard shard = shardOf(uid);
+        shard.lock.lock();
+        try {
+            Resource r = shard.resources.get(uid);
+            if(r == null) return NO_BLOCKERS;
+            long[] res = new long[r.waiters.size() + r.holders.size()];
+            int n = 0;
+            Waiter self = null;
+            for(Waiter w : r.waiters) {
+                if(w.xid == xid) {
+                    self = w;
+                    break;
+                }
+                res[n ++] = w.xid;
+            }
+            // 已经获得了资源
+            if(self == null) return NO_BLOCKERS;
+            LongLongMap holders = r.holders;
+            for(int i = holders.nextSlot(0); i >= 0; i = holders.nextSlot(i + 1)) {
+                if(holders.keyAt(i) != xid && !COMPATIBLE[(int)holders.valueAt(i)][self.mode]) {
+                    res[n ++] = holders.keyAt(i);
+                }
+            }
+            return n == res.length ? res : Arrays.copyOf(res, n);
+        } finally {
+            shard.lock.unlock();
         }
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        // 发现环（死锁）
-        if(stp != null && stp == stamp) {
-            return true;
-        }
-        // 已在前几轮DFS中访问过
-        if(stp != null && stp < stamp) {
-            return false;// 避免重复检测
+    private static boolean compatibleWithHolders(Resource r, long xid, int mode) {
+        LongLongMap holders = r.holders;
+        for(int i = holders.nextSlot(0); i >= 0; i = holders.nextSlot(i + 1)) {
+            if(holders.keyAt(i) != xid && !COMPATIBLE[(int)holders.valueAt(i)][mode]) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        // 首次访问
-        xidStamp.put(xid, stamp);
+    // 同时满足两种模式的最弱模式，S与IX的组合直接升级为X
+    private static int supremum(int m1, int m2) {
+        if(m1 == m2 || m2 == IS) return m1;
+        if(m1 == IS) return m2;
+        if(m1 == X || m2 == X) return X;
+        if(m1 == S && m2 == S) return S;
+        return X;
+    }
 
-        Long uid = waitU.get(xid);
-        if(uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+    private Shard shardOf(long uid) {
+        int h = Long.hashCode(uid);
+        h ^= (h >>> 16);
+        return shards[h & (SHARD_NUMBER - 1)];
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
-        }
-        listMap.get(uid0).add(0, uid1);
+    // 一个分片：保护落在该分片上的资源的持有者和等待队列
+    private static class Shard {
+        Lock lock = new ReentrantLock();
+        LongObjectMap<Resource> resources = new LongObjectMap<>();
+        LongSetMap held = new LongSetMap();     // 某个XID在该分片上已经获得的资源的UID集合
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
+    // 一个被加锁的资源
+    private static class Resource {
+        LongLongMap holders = new LongLongMap(2);       // 持有该资源的XID及其锁模式
+        Deque<Waiter> waiters = new ArrayDeque<>();     // 正在等待该资源的事务，先来先得
+    }
+
+    /**
+     * 等待句柄
+     * await()阻塞直到资源被分配给该事务，或该事务被移出锁表时等待被取消
+     */
+    public static final class Waiter {
+        final long xid;
+        final int mode;
+        final Lock shardLock;
+        final Condition cond;
+        // 以下两个标志由分片锁保护
+        boolean granted;
+        boolean cancelled;
+
+        Waiter(long xid, int mode, Shard shard) {
+            this.xid = xid;
+            this.mode = mode;
+            this.shardLock = shard.lock;
+            this.cond = shard.lock.newCondition();
+        }
+
+        // 返回true表示获得了资源，false表示等待被取消
+        public boolean await() {
+            shardLock.lock();
+            try {
+                while(!granted && !cancelled) {
+                    cond.awaitUninterruptibly();
+                }
+                return granted;
+            } finally {
+                shardLock.unlock();
+            }
+        }
+
+        // 最多等待time，超时仍未获得资源返回false
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(time);
+            shardLock.lock();
+            try {
+                while(!granted && !cancelled) {
+                    if(nanos <= 0) return false;
+                    nanos = cond.awaitNanos(nanos);
+                }
+                return granted;
+            } finally {
+                shardLock.unlock();
+            }
+        }
+
+        public boolean isGranted() {
+            shardLock.lock();
+            try {
+                return granted;
+            } finally {
+                shardLock.unlock();
             }
         }
-        return false;
     }
 }
@@ -5,9 +5,20 @@ import com.lyhn.streamlinedb.backend.tm.TransactionManager;
 
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
+    // 数据可见时直接在数据项上调用reader读取，返回是否可见
+    boolean read(long xid, long uid, EntryReader reader) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
+    // 读取数据并加行锁（SELECT ... FOR SHARE/UPDATE）
+    byte[] readForLock(long xid, long uid, int mode) throws Exception;
+    // 读取数据的最新版本，用于唯一性检查：创建者已提交（或是当前事务）且未被已提交的事务删除
+    byte[] readLatest(long xid, long uid) throws Exception;
+    // 数据是否对所有当前和之后的事务都可见，用于维护可见性映射
+    boolean isVisibleToAll(long uid) throws Exception;
+    // 对任意资源（如表）加锁，锁持有到事务结束
+    void lock(long xid, long uid, int mode) throws Exception;
+
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
@@ -112,22 +112,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if(!Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l = null;
-            try {
-                // 获取锁，添加到锁表
-                l = lt.add(xid, uid);
-            } catch(Exception e) {
-                // 死锁检测失败，自动中止事务
-                t.err = Error.concurrentUpdateException;
-                internAbort(xid, true);
-                t.autoAborted = true;
-                throw t.err;
-            }
-            // 两阶段锁协议
-            if(l != null) {
-                l.lock();// 获取锁
-                l.unlock();// 释放锁
-            }
+            // 获取排他锁，添加到锁表
+            acquire(t, uid, LockTable.X);
 
             // 检查是否已被当前事务删除
             if(entry.getXmax() == xid) {
@@ -152,6 +138,162 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    // 与read相同，但不拷贝数据，直接在数据项上读取
+    @Override
+    public boolean read(long xid, long uid, EntryReader reader) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.nullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(!Visibility.isVisible(tm, t, entry)) {
+                return false;
+            }
+            entry.read(reader);
+            return true;
+        } finally {
+            entry.release();
+        }
+    }
+
+    // 读取数据并加行锁，加锁后重新检查可见性
+    @Override
+    public byte[] readForLock(long xid, long uid, int mode) throws Exception {
+        lock.lock();
+        // 获取事务对象
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.nullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(!Visibility.isVisible(tm, t, entry)) {
+                return null;
+            }
+            acquire(t, uid, mode);
+
+            // 等待期间数据项可能已被其他事务删除或更新
+            if(Visibility.isVersionSkip(tm, t, entry)) {
+                t.err = Error.concurrentUpdateException;
+                internAbort(xid, true);
+                t.autoAborted = true;
+                throw t.err;
+            }
+            if(!Visibility.isVisible(tm, t, entry)) {
+                return null;
+            }
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public byte[] readLatest(long xid, long uid) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.nullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return Visibility.isLatest(tm, t, entry) ? entry.data() : null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public boolean isVisibleToAll(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.nullEntryException) {
+                return false;
+            } else {
+                throw e;
+            }
+        }
+        lock.lock();
+        try {
+            return Visibility.isVisibleToAll(tm, activeTransaction.values(), entry);
+        } finally {
+            lock.unlock();
+            entry.release();
+        }
+    }
+
+    // 对资源加锁，例如表上的意向锁
+    @Override
+    public void lock(long xid, long uid, int mode) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+        acquire(t, uid, mode);
+    }
+
+    // 获取锁，必要时阻塞等待
+    private void acquire(Transaction t, long uid, int mode) throws Exception {
+        LockTable.Waiter w = null;
+        try {
+            // 获取锁，添加到锁表
+            w = lt.add(t.xid, uid, mode);
+        } catch(Exception e) {
+            // 死锁检测失败，自动中止事务
+            t.err = Error.concurrentUpdateException;
+            internAbort(t.xid, true);
+            t.autoAborted = true;
+            throw t.err;
+        }
+        // 两阶段锁协议，等待锁被分配；等待被取消说明事务已经被移出锁表，不能当作获得了锁
+        if(w != null && !w.await()) {
+            throw t.err != null ? t.err : Error.transactionAbortedException;
+        }
+    }
+
     // 开启新事物
     @Override
     public long begin(int level) {
@@ -189,8 +331,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         activeTransaction.remove(xid);
         lock.unlock();
 
-        lt.remove(xid);
+        // 先标记提交再释放锁，等待锁的事务被唤醒后能看到本事务已提交
         tm.commit(xid);
+        lt.remove(xid);
     }
 
     // 中止事务，回滚所有操作
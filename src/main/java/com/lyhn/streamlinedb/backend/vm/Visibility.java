@@ -2,6 +2,8 @@ package com.lyhn.streamlinedb.backend.vm;
 
 import com.lyhn.streamlinedb.backend.tm.TransactionManager;
 
+import java.util.Collection;
+
 public class Visibility {
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
         long xmax = e.getXmax();
@@ -22,6 +24,26 @@ public class Visibility {
         }
     }
 
+    // 不考虑快照，数据是否是最新的有效版本
+    // 创建者未提交且不是当前事务时视为无效：唯一性检查持有键锁，活跃事务插入的同键数据不会出现在这里
+    public static boolean isLatest(TransactionManager tm, Transaction t, Entry e) {
+        long xmin = e.getXmin();
+        long xmax = e.getXmax();
+        if(xmin != t.xid && !tm.isCommitted(xmin)) return false;
+        if(xmax == 0) return true;
+        return xmax != t.xid && !tm.isCommitted(xmax);
+    }
+
+    // 数据对所有活跃事务和之后开始的事务都可见：未被删除，创建者已提交且不在任何活跃事务的快照中
+    public static boolean isVisibleToAll(TransactionManager tm, Collection<Transaction> active, Entry e) {
+        long xmin = e.getXmin();
+        if(e.getXmax() != 0 || !tm.isCommitted(xmin)) return false;
+        for(Transaction t : active) {
+            if(t.level != 0 && (xmin > t.xid || t.isInSnapshot(xmin))) return false;
+        }
+        return true;
+    }
+
     private static boolean readCommitted(TransactionManager tm, Transaction t, Entry e) {
         long xid = t.xid;
         long xmin = e.getXmin();// 创建事务id
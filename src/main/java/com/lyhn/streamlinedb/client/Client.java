@@ -1,7 +1,12 @@
 package com.lyhn.streamlinedb.client;
 
+import com.lyhn.streamlinedb.backend.utils.Parser;
+import com.lyhn.streamlinedb.transport.Encoder;
 import com.lyhn.streamlinedb.transport.Packager;
 import com.lyhn.streamlinedb.transport.Package;
+
+import java.io.OutputStream;
+
 public class Client {
     private RoundTripper rt;
 
@@ -19,6 +24,48 @@ public class Client {
         return resPkg.getData();
     }
 
+    // 查询结果收到一个分片就写入out，不在客户端累积整个结果集
+    // 中途出错时抛出异常，但已经写入out的分片无法撤回，需要完整结果的调用者应自行缓冲
+    public void execute(byte[] stat, OutputStream out) throws Exception {
+        Package pkg = new Package(stat, null);
+        Package resPkg = rt.roundTrip(pkg, out);
+        if(resPkg.getError() != null) {
+            throw resPkg.getError();
+        }
+        out.write(resPkg.getData());
+    }
+
+    // 预处理带参数占位符?的语句，返回的编号只在本连接中有效
+    public int prepare(byte[] stat) throws Exception {
+        return Parser.parseInt(execute(new Package(Package.PREPARE, stat)));
+    }
+
+    // 参数按占位符出现的顺序给出，字符串参数不需要加引号
+    public byte[] execute(int statementId, String... params) throws Exception {
+        return execute(new Package(Package.EXECUTE, Encoder.encodeExecute(statementId, params)));
+    }
+
+    // 释放预处理的语句，每个连接同时保留的语句数有上限
+    public void deallocate(int statementId) throws Exception {
+        execute(new Package(Package.DEALLOCATE, Parser.int2Byte(statementId)));
+    }
+
+    public void execute(int statementId, String[] params, OutputStream out) throws Exception {
+        Package resPkg = rt.roundTrip(new Package(Package.EXECUTE, Encoder.encodeExecute(statementId, params)), out);
+        if(resPkg.getError() != null) {
+            throw resPkg.getError();
+        }
+        out.write(resPkg.getData());
+    }
+
+    private byte[] execute(Package pkg) throws Exception {
+        Package resPkg = rt.roundTrip(pkg);
+        if(resPkg.getError() != null) {
+            throw resPkg.getError();
+        }
+        return resPkg.getData();
+    }
+
     public void close() {
         try {
             rt.close();
@@ -31,6 +31,11 @@ public class ClientTest {
                 packager.send(request);
 
                 Package response = packager.receive();
+                // 查询结果按分片返回
+                while(response.isPartial()){
+                    System.out.print(new String(response.getData()));
+                    response = packager.receive();
+                }
                 if(response.getError() != null){
                     System.out.println(response.getError().getMessage());
                 }else{
@@ -2,6 +2,10 @@ package com.lyhn.streamlinedb.client;
 
 import com.lyhn.streamlinedb.transport.Packager;
 import com.lyhn.streamlinedb.transport.Package;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
 public class RoundTripper {
     private Packager packager;
 
@@ -10,9 +14,25 @@ public class RoundTripper {
     }
 
     public Package roundTrip(Package pkg) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Package res = roundTrip(pkg, out);
+        if(res.getError() != null || out.size() == 0) {
+            return res;
+        }
+        out.write(res.getData());
+        return new Package(out.toByteArray(), null);
+    }
+
+    // 结果集的分片依次写入out，返回最后一个数据包
+    public Package roundTrip(Package pkg, OutputStream out) throws Exception {
         packager.send(pkg);
         // 接受服务器响应
-        return packager.receive();
+        Package res = packager.receive();
+        while(res.isPartial()) {
+            out.write(res.getData());
+            res = packager.receive();
+        }
+        return res;
     }
 
     public void close() throws Exception {
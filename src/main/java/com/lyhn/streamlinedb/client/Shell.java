@@ -1,5 +1,6 @@
 package com.lyhn.streamlinedb.client;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Scanner;
 
 public class Shell {
@@ -19,9 +20,11 @@ public class Shell {
                     break;
                 }
                 try {
-                    // 发送请求
-                    byte[] res = client.execute(statStr.getBytes());
-                    System.out.println(new String(res));
+                    // 收到最后一个数据包后再输出，出错时已收到的分片全部丢弃，不输出不完整的结果
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    client.execute(statStr.getBytes(), out);
+                    out.writeTo(System.out);
+                    System.out.println();
                 } catch(Exception e) {
                     System.out.println(e.getMessage());
                 }
@@ -2,10 +2,21 @@ package com.lyhn.streamlinedb.transport;
 
 import com.google.common.primitives.Bytes;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 // 编解码
+// [Flag(1)][Data]，Flag为0表示数据，1表示错误信息，2表示结果集的一个分片，后面还有数据包；
+// 请求中Flag为3表示预处理语句，4表示执行预处理的语句，Data为[StatementId(4)][ParamCount(4)]{[Length(4)][Param]}；
+// 5表示释放预处理的语句，Data为[StatementId(4)]
 public class Encoder {
+    static final byte FLAG_DATA = 0;
+    static final byte FLAG_ERROR = 1;
+    static final byte FLAG_PARTIAL = 2;
+    static final byte FLAG_PREPARE = 3;
+    static final byte FLAG_EXECUTE = 4;
+    static final byte FLAG_DEALLOCATE = 5;
+
     public byte[] encode(Package pkg){
         if(pkg.getError() != null){
             Exception error = pkg.getError();
@@ -13,9 +24,17 @@ public class Encoder {
             if(error.getMessage() != null){
                 msg = error.getMessage();
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());
+            return Bytes.concat(new byte[]{FLAG_ERROR}, msg.getBytes());
         }else{
-            return Bytes.concat(new byte[]{0}, pkg.getData());
+            byte flag = pkg.isPartial() ? FLAG_PARTIAL : FLAG_DATA;
+            if(pkg.getKind() == Package.PREPARE) {
+                flag = FLAG_PREPARE;
+            } else if(pkg.getKind() == Package.EXECUTE) {
+                flag = FLAG_EXECUTE;
+            } else if(pkg.getKind() == Package.DEALLOCATE) {
+                flag = FLAG_DEALLOCATE;
+            }
+            return Bytes.concat(new byte[]{flag}, pkg.getData());
         }
     }
 
@@ -24,12 +43,57 @@ public class Encoder {
             throw new Exception("Invalid package data!");
         }
         // 无异常
-        if(data[0] == 0){
+        if(data[0] == FLAG_DATA){
             return new Package(Arrays.copyOfRange(data,1,data.length),null);
-        }else if(data[0] == 1){
+        }else if(data[0] == FLAG_PARTIAL){
+            return new Package(Arrays.copyOfRange(data,1,data.length),true);
+        }else if(data[0] == FLAG_PREPARE){
+            return new Package(Package.PREPARE, Arrays.copyOfRange(data,1,data.length));
+        }else if(data[0] == FLAG_EXECUTE){
+            return new Package(Package.EXECUTE, Arrays.copyOfRange(data,1,data.length));
+        }else if(data[0] == FLAG_DEALLOCATE){
+            return new Package(Package.DEALLOCATE, Arrays.copyOfRange(data,1,data.length));
+        }else if(data[0] == FLAG_ERROR){
             return new Package(null,new RuntimeException(new String(Arrays.copyOfRange(data,1,data.length))));
         }else{
             throw new Exception("Invalid package data!");
         }
     }
+
+    public static byte[] encodeExecute(int statementId, String[] params) {
+        byte[][] raws = new byte[params.length][];
+        int size = 8;
+        for(int i = 0; i < params.length; i ++) {
+            raws[i] = params[i].getBytes();
+            size += 4 + raws[i].length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(statementId).putInt(params.length);
+        for(byte[] raw : raws) {
+            buf.putInt(raw.length).put(raw);
+        }
+        return buf.array();
+    }
+
+    public static int statementId(byte[] data) {
+        return ByteBuffer.wrap(data).getInt(0);
+    }
+
+    public static String[] params(byte[] data) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(data, 4, data.length-4);
+        int count = buf.getInt();
+        if(count < 0 || count > buf.remaining() / 4) {
+            throw new Exception("Invalid package data!");
+        }
+        String[] params = new String[count];
+        for(int i = 0; i < params.length; i ++) {
+            int length = buf.getInt();
+            if(length < 0 || length > buf.remaining()) {
+                throw new Exception("Invalid package data!");
+            }
+            params[i] = new String(data, buf.position(), length);
+            buf.position(buf.position() + length);
+        }
+        return params;
+    }
 }
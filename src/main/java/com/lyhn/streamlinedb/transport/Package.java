@@ -2,14 +2,33 @@ package com.lyhn.streamlinedb.transport;
 
 // 数据包对象
 public class Package {
+    // 请求的种类：SQL语句，预处理带参数占位符的SQL语句，执行预处理的语句，释放预处理的语句
+    public static final byte QUERY = 0;
+    public static final byte PREPARE = 1;
+    public static final byte EXECUTE = 2;
+    public static final byte DEALLOCATE = 3;
+
     byte[] data;
     Exception error;
+    // 结果集的一部分，之后还有数据包
+    boolean partial;
+    byte kind = QUERY;
 
     public Package(byte[] data,Exception error){
         this.data = data;
         this.error = error;
     }
 
+    public Package(byte[] data,boolean partial){
+        this.data = data;
+        this.partial = partial;
+    }
+
+    public Package(byte kind, byte[] data) {
+        this.kind = kind;
+        this.data = data;
+    }
+
     public byte[] getData() {
         return data;
     }
@@ -17,4 +36,12 @@ public class Package {
     public Exception getError() {
         return error;
     }
+
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public byte getKind() {
+        return kind;
+    }
 }
@@ -0,0 +1,70 @@
+package com.lyhn.streamlinedb.transport;
+
+import com.google.common.primitives.Bytes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// 把写入的结果集按分片发送，每攒够CHUNK_SIZE字节发送一个分片数据包
+// 调用finish发送最后一个数据包，客户端收到后结果集结束
+public class PackageOutputStream extends OutputStream {
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    private Packager packager;
+    private byte[] buf = new byte[CHUNK_SIZE];
+    private int count;
+
+    public PackageOutputStream(Packager packager) {
+        this.packager = packager;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(count == CHUNK_SIZE) {
+            sendChunk();
+        }
+        buf[count ++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(count == CHUNK_SIZE) {
+                sendChunk();
+            }
+            int n = Math.min(len, CHUNK_SIZE - count);
+            System.arraycopy(b, off, buf, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void sendChunk() throws IOException {
+        try {
+            packager.send(new Package(Arrays.copyOf(buf, count), true));
+        } catch(IOException e) {
+            throw e;
+        } catch(Exception e) {
+            throw new IOException(e);
+        }
+        count = 0;
+    }
+
+    // 发送缓冲区中剩余的数据和tail，结束本次结果
+    public void finish(byte[] tail) throws Exception {
+        byte[] data = Arrays.copyOf(buf, count);
+        if(tail != null) {
+            data = Bytes.concat(data, tail);
+        }
+        count = 0;
+        packager.send(new Package(data, null));
+    }
+
+    // 出错时丢弃缓冲区，发送错误包，客户端会丢弃已收到的分片
+    public void fail(Exception err) throws Exception {
+        count = 0;
+        packager.send(new Package(null, err));
+    }
+}
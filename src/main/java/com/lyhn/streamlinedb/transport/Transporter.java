@@ -22,8 +22,9 @@ public class Transporter {
     }
 
     public void send(byte[] data) throws Exception {
-        String raw = hexEncode(data);
-        writer.write(raw);
+        // 直接写出十六进制字符，不再拼接成字符串
+        writer.write(Hex.encodeHex(data, true));
+        writer.write('\n');
         writer.flush();
     }
 
@@ -41,10 +42,6 @@ public class Transporter {
         socket.close();
     }
 
-    private String hexEncode(byte[] buf){
-        return Hex.encodeHexString(buf,true) + "\n";
-    }
-
     private byte[] hexDecode(String buf) throws DecoderException {
         return Hex.decodeHex(buf);
     }
@@ -0,0 +1,86 @@
+package com.lyhn.streamlinedb.backend.common;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongLongMapTest {
+    @Test
+    public void testRandomAgainstHashMap() {
+        LongLongMap map = new LongLongMap();
+        Map<Long, Long> expect = new HashMap<>();
+        Random random = new Random(20261019L);
+        for(int i = 0; i < 200000; i ++) {
+            // 键的范围较小，保证有大量的覆盖和删除
+            long key = random.nextInt(5000) - 2500;
+            if(random.nextInt(3) == 0) {
+                Long old = expect.remove(key);
+                Assert.assertEquals(old == null ? -1 : old, map.remove(key, -1));
+            } else {
+                long value = random.nextLong();
+                expect.put(key, value);
+                map.put(key, value);
+            }
+            Assert.assertEquals(expect.size(), map.size());
+        }
+        for(long key = -2500; key < 2500; key ++) {
+            Assert.assertEquals(expect.containsKey(key), map.containsKey(key));
+            if(expect.containsKey(key)) {
+                Assert.assertEquals((long)expect.get(key), map.get(key, 0));
+            }
+        }
+        int n = 0;
+        for(int i = map.nextSlot(0); i >= 0; i = map.nextSlot(i + 1)) {
+            Assert.assertEquals((long)expect.get(map.keyAt(i)), map.valueAt(i));
+            n ++;
+        }
+        Assert.assertEquals(expect.size(), n);
+    }
+
+    @Test
+    public void testZeroAndNegativeKeys() {
+        LongLongMap map = new LongLongMap();
+        Assert.assertFalse(map.containsKey(0));
+        map.put(0, 0);
+        map.put(Long.MIN_VALUE, 1);
+        map.put(-1, 2);
+        Assert.assertTrue(map.containsKey(0));
+        Assert.assertEquals(0, map.get(0, -1));
+        Assert.assertEquals(1, map.get(Long.MIN_VALUE, -1));
+        Assert.assertEquals(2, map.remove(-1, -1));
+        Assert.assertEquals(-1, map.get(-1, -1));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testLongSetMap() {
+        LongSetMap map = new LongSetMap();
+        Set<Long> expect = new HashSet<>();
+        for(long uid = 0; uid < 50000; uid ++) {
+            Assert.assertTrue(map.add(7, uid << 13));
+            expect.add(uid << 13);
+        }
+        Assert.assertFalse(map.add(7, 0));
+        Assert.assertTrue(map.contains(7, 100L << 13));
+        Assert.assertFalse(map.contains(8, 100L << 13));
+        Assert.assertTrue(map.remove(7, 100L << 13));
+        expect.remove(100L << 13);
+
+        LongHashSet set = map.removeAll(7);
+        Assert.assertEquals(expect.size(), set.size());
+        for(long uid : set.toArray()) {
+            Assert.assertTrue(expect.contains(uid));
+        }
+        Assert.assertTrue(map.isEmpty());
+
+        // 集合变空时自动删除键
+        map.add(1, 1);
+        map.remove(1, 1);
+        Assert.assertNull(map.get(1));
+    }
+}
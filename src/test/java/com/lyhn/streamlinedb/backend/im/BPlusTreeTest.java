@@ -1,14 +1,314 @@
 package com.lyhn.streamlinedb.backend.im;
 
+import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.dm.DataManager;
 import com.lyhn.streamlinedb.backend.dm.pageCache.PageCache;
 import com.lyhn.streamlinedb.backend.tm.MockTransactionManager;
 import com.lyhn.streamlinedb.backend.tm.TransactionManager;
+import com.lyhn.streamlinedb.backend.tm.TransactionManagerImpl;
+import com.lyhn.streamlinedb.backend.utils.Parser;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
 
 public class BPlusTreeTest {
+    private String testPath;
+    private DataManager dm;
+
+    @Before
+    public void setUp() {
+        testPath = System.getProperty("java.io.tmpdir") + File.separator + "BPlusTreeTest_" + System.nanoTime();
+        dm = DataManager.create(testPath, PageCache.PAGE_SIZE * 1000, new MockTransactionManager());
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        new File(testPath + ".db").delete();
+        new File(testPath + ".log").delete();
+    }
+
+    @Test
+    public void testConcurrentInsertAndSearch() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        int threads = 8, perThread = 3000;
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            final int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    for(int i = 0; i < perThread; i ++) {
+                        // 各线程的键交错，使分裂同时发生在相邻节点上
+                        long key = (long)i * threads + id;
+                        tree.insert(key, key + 1);
+                        List<Long> found = tree.search(key);
+                        if(!found.contains(key + 1)) {
+                            throw new AssertionError("key " + key + " not found after insert");
+                        }
+                    }
+                } catch(Throwable e) {
+                    synchronized(errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(threads * perThread, all.size());
+        for(int i = 0; i < all.size(); i ++) {
+            Assert.assertEquals(i + 1, (long)all.get(i));
+        }
+        tree.close();
+    }
+
+    @Test
+    public void testRandomKeysStaySorted() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        Random random = new Random(30);
+        List<Long> keys = new ArrayList<>();
+        for(int i = 0; i < 5000; i ++) {
+            // 包含负数和重复的键
+            long key = random.nextInt(4000) - 2000;
+            keys.add(key);
+            tree.insert(key, i);
+        }
+        Collections.sort(keys);
+
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE);
+        Assert.assertEquals(keys.size(), all.size());
+        for(long key = -2000; key < 2000; key += 37) {
+            int expect = Collections.frequency(keys, key);
+            Assert.assertEquals(expect, tree.search(key).size());
+        }
+        int expect = 0;
+        for(long key : keys) {
+            if(key >= -100 && key <= 100) expect ++;
+        }
+        Assert.assertEquals(expect, tree.searchRange(-100, 100).size());
+        tree.close();
+    }
+
+    @Test
+    public void testConfigurableFanout() throws Exception {
+        // 最大扇出时一个节点占满一页
+        BPlusTree wide = BPlusTree.load(BPlusTree.create(dm, Node.MAX_BALANCE), dm);
+        BPlusTree narrow = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE), dm);
+        Assert.assertEquals(Node.MAX_BALANCE, wide.getBalance());
+        Assert.assertEquals(Node.MIN_BALANCE, narrow.getBalance());
+        for(long key = 0; key < 3000; key ++) {
+            wide.insert(key, key + 1);
+            narrow.insert(key, key + 1);
+        }
+        Assert.assertEquals(3000, wide.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        Assert.assertEquals(3000, narrow.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        Assert.assertEquals(List.of(1235L), wide.search(1234));
+        Assert.assertEquals(List.of(1235L), narrow.search(1234));
+
+        Assert.assertThrows(Error.InvalidFanoutException.class, () -> BPlusTree.create(dm, Node.MAX_BALANCE + 1));
+        Assert.assertThrows(Error.InvalidFanoutException.class, () -> BPlusTree.create(dm, 1));
+        wide.close();
+        narrow.close();
+    }
+
+    @Test
+    public void testLoadLegacyBootRecord() throws Exception {
+        // 早期的引导节点只有根节点uid
+        long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw(Node.BALANCE_NUMBER));
+        long bootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        BPlusTree tree = BPlusTree.load(bootUid, dm);
+        Assert.assertEquals(Node.BALANCE_NUMBER, tree.getBalance());
+        for(long key = 0; key < 500; key ++) {
+            tree.insert(key, key + 1);
+        }
+        Assert.assertEquals(500, tree.searchRange(0, 499).size());
+        tree.close();
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for(long key = 0; key < 1000; key ++) {
+            tree.insert(key, key + 1);
+        }
+        for(long key = 0; key < 1000; key += 2) {
+            tree.delete(key, key + 1);
+        }
+        Assert.assertTrue(tree.search(10).isEmpty());
+        Assert.assertEquals(List.of(12L), tree.search(11));
+        Assert.assertEquals(500, tree.searchRange(0, 1000).size());
+        // 重复的键只删除uid匹配的一项
+        tree.insert(11, 100);
+        tree.delete(11, 12);
+        Assert.assertEquals(List.of(100L), tree.search(11));
+        tree.close();
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for(long i = 0; i < 2000; i ++) {
+            tree.insert(i, i + 1);
+        }
+        // 跨越多个叶子节点
+        UidCursor cursor = tree.cursor(100, 1500);
+        long expect = 101;
+        while(cursor.hasNext()) {
+            Assert.assertEquals(expect ++, cursor.next());
+        }
+        Assert.assertEquals(1502, expect);
+        Assert.assertFalse(cursor.hasNext());
+
+        // 提前停止后插入，游标不持有节点，不影响插入
+        cursor = tree.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        for(int i = 0; i < 10; i ++) {
+            Assert.assertTrue(cursor.hasNext());
+            Assert.assertEquals(i + 1, cursor.next());
+        }
+        tree.insert(5000, 5001);
+        Assert.assertEquals(2001, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE).size());
+
+        // 空范围
+        Assert.assertFalse(tree.cursor(3000, 4000).hasNext());
+
+        tree.close();
+
+        BPlusTree bytesTree = BPlusTree.load(BPlusTree.create(dm, Node.BALANCE_NUMBER, BPlusTree.KEY_BYTES), dm);
+        Assert.assertFalse(bytesTree.cursor(null, null, true).hasNext());
+        bytesTree.close();
+    }
+
+    @Test
+    public void testLastLeaf() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        Assert.assertEquals(0, tree.lastLeaf().length);
+        Random random = new Random(42);
+        for(int i = 0; i < 2000; i ++) {
+            long key = random.nextInt(100000) - 50000;
+            tree.insert(key, key);
+        }
+        tree.insert(Long.MAX_VALUE, 7);
+        long[] last = tree.lastLeaf();
+        Assert.assertTrue(last.length > 0 && last.length < 2001);
+        Assert.assertEquals(7, last[last.length-1]);
+        tree.close();
+
+        BPlusTree bytesTree = BPlusTree.load(BPlusTree.create(dm, Node.BALANCE_NUMBER, BPlusTree.KEY_BYTES), dm);
+        for(int i = 0; i < 2000; i ++) {
+            bytesTree.insert(("k" + i).getBytes(StandardCharsets.UTF_8), i);
+        }
+        last = bytesTree.lastLeaf();
+        // "k999"是最大的键
+        Assert.assertEquals(999, last[last.length-1]);
+        bytesTree.close();
+    }
+
+    @Test
+    public void testBytesKeys() throws Exception {
+        long bootUid = BPlusTree.create(dm, Node.BALANCE_NUMBER, BPlusTree.KEY_BYTES);
+        BPlusTree tree = BPlusTree.load(bootUid, dm);
+        Random random = new Random(7);
+        TreeMap<String, List<Long>> expect = new TreeMap<>();
+        for(long uid = 1; uid <= 3000; uid ++) {
+            // 共享较长前缀的键，部分重复
+            String key = "customer-" + String.format("%05d", random.nextInt(2000)) + (random.nextBoolean() ? "" : "-x");
+            tree.insert(key.getBytes(StandardCharsets.UTF_8), uid);
+            expect.computeIfAbsent(key, k -> new ArrayList<>()).add(uid);
+        }
+        tree.close();
+        tree = BPlusTree.load(bootUid, dm);
+        Assert.assertTrue(tree.isBytesKey());
+
+        for(Map.Entry<String, List<Long>> e : expect.entrySet()) {
+            List<Long> found = tree.search(e.getKey().getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(new HashSet<>(e.getValue()), new HashSet<>(found));
+        }
+        String from = "customer-00500", to = "customer-00900";
+        int inRange = 0;
+        for(List<Long> uids : expect.subMap(from, true, to, false).values()) {
+            inRange += uids.size();
+        }
+        List<Long> range = tree.searchRange(from.getBytes(StandardCharsets.UTF_8), to.getBytes(StandardCharsets.UTF_8), false);
+        Assert.assertEquals(inRange, range.size());
+        Assert.assertEquals(3000, tree.searchRange(null, null, true).size());
+
+        String first = expect.firstKey();
+        long uid = expect.get(first).get(0);
+        tree.delete(first.getBytes(StandardCharsets.UTF_8), uid);
+        Assert.assertFalse(tree.search(first.getBytes(StandardCharsets.UTF_8)).contains(uid));
+        tree.close();
+    }
+
+    @Test
+    public void testLongBytesKeys() throws Exception {
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, Node.MIN_BALANCE * 8, BPlusTree.KEY_BYTES), dm);
+        // 超过最大长度的键截断存储，查询结果是超集
+        String prefix = "p".repeat(500);
+        for(long uid = 1; uid <= 200; uid ++) {
+            tree.insert((prefix + uid).getBytes(StandardCharsets.UTF_8), uid);
+        }
+        Assert.assertEquals(200, tree.search((prefix + 1).getBytes(StandardCharsets.UTF_8)).size());
+        Assert.assertEquals(200, tree.searchRange(null, null, true).size());
+        tree.close();
+    }
+
+    @Test
+    public void testPayload() throws Exception {
+        long bootUid = BPlusTree.create(dm, Node.BALANCE_NUMBER, BPlusTree.KEY_BYTES, true);
+        BPlusTree tree = BPlusTree.load(bootUid, dm);
+        for(long uid = 1; uid <= 3000; uid ++) {
+            tree.insert(String.format("k%05d", uid % 1000).getBytes(StandardCharsets.UTF_8), uid, Parser.long2Byte(uid * 10));
+        }
+        // 附加数据与键一起放不下时不保存
+        tree.insert("z".getBytes(StandardCharsets.UTF_8), 9999, new byte[tree.maxKeyLength()]);
+        tree.close();
+        tree = BPlusTree.load(bootUid, dm);
+        Assert.assertTrue(tree.hasPayload());
+
+        // 分裂后叶子中的附加数据仍与uid对应
+        IndexCursor cursor = tree.cursor(null, null, true);
+        int count = 0;
+        while(cursor.hasNext()) {
+            long uid = cursor.next();
+            if(uid == 9999) {
+                Assert.assertNull(cursor.payload());
+            } else {
+                Assert.assertEquals(uid * 10, Parser.parseLong(cursor.payload()));
+            }
+            count ++;
+        }
+        Assert.assertEquals(3001, count);
+        tree.delete("k00007".getBytes(StandardCharsets.UTF_8), 1007);
+        cursor = tree.cursor("k00007".getBytes(StandardCharsets.UTF_8), "k00007".getBytes(StandardCharsets.UTF_8), true);
+        List<Long> payloads = new ArrayList<>();
+        while(cursor.hasNext()) {
+            cursor.next();
+            payloads.add(Parser.parseLong(cursor.payload()));
+        }
+        Collections.sort(payloads);
+        Assert.assertEquals(List.of(70L, 20070L), payloads);
+        tree.close();
+    }
+
     public static void main(String[] args) throws Exception {
         String TEST_PATH = "E:\\StreamlineDB\\BPlusTreeExample";
 
@@ -0,0 +1,79 @@
+package com.lyhn.streamlinedb.backend.im;
+
+import com.lyhn.streamlinedb.backend.dm.DataManager;
+import com.lyhn.streamlinedb.backend.dm.pageCache.PageCache;
+import com.lyhn.streamlinedb.backend.tm.MockTransactionManager;
+import com.lyhn.streamlinedb.backend.utils.Parser;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashIndexTest {
+    private String testPath;
+    private DataManager dm;
+
+    @Before
+    public void setUp() {
+        testPath = System.getProperty("java.io.tmpdir") + File.separator + "HashIndexTest_" + System.nanoTime();
+        dm = DataManager.create(testPath, PageCache.PAGE_SIZE * 1000, new MockTransactionManager());
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        new File(testPath + ".db").delete();
+        new File(testPath + ".log").delete();
+    }
+
+    @Test
+    public void testInsertSearchDelete() throws Exception {
+        long bootUid = HashIndex.create(dm);
+        HashIndex index = HashIndex.load(bootUid, dm);
+        Map<Long, List<Long>> expect = new HashMap<>();
+        Random random = new Random(35);
+        for(long uid = 1; uid <= 20000; uid ++) {
+            long hash = Parser.hash64(random.nextInt(8000));
+            index.insert(hash, uid);
+            expect.computeIfAbsent(hash, k -> new ArrayList<>()).add(uid);
+        }
+        Assert.assertTrue(index.getGlobalDepth() > 0);
+        index.close();
+
+        // 重新加载后目录和桶都应保持一致
+        index = HashIndex.load(bootUid, dm);
+        for(Map.Entry<Long, List<Long>> e : expect.entrySet()) {
+            Assert.assertEquals(new HashSet<>(e.getValue()), new HashSet<>(index.search(e.getKey())));
+        }
+        Assert.assertEquals(20000, index.searchAll().size());
+
+        long hash = expect.keySet().iterator().next();
+        long uid = expect.get(hash).get(0);
+        index.delete(hash, uid);
+        Assert.assertFalse(index.search(hash).contains(uid));
+        Assert.assertEquals(expect.get(hash).size() - 1, index.search(hash).size());
+        index.close();
+    }
+
+    @Test
+    public void testSameHashOverflow() throws Exception {
+        HashIndex index = HashIndex.load(HashIndex.create(dm), dm);
+        // 相同的哈希值超过桶容量时追加溢出桶，不会无限分裂
+        for(long uid = 1; uid <= HashIndex.BUCKET_CAPACITY * 3; uid ++) {
+            index.insert(42, uid);
+        }
+        index.insert(43, 1000);
+        Assert.assertEquals(HashIndex.BUCKET_CAPACITY * 3, index.search(42).size());
+        Assert.assertEquals(List.of(1000L), index.search(43));
+        index.close();
+    }
+}
@@ -1,14 +1,26 @@
 package com.lyhn.streamlinedb.backend.tbm;
 
+import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.dm.DataManager;
 import com.lyhn.streamlinedb.backend.parser.statement.*;
+import com.lyhn.streamlinedb.backend.server.Executor;
+import com.lyhn.streamlinedb.backend.server.StatementCache;
 import com.lyhn.streamlinedb.backend.tm.TransactionManager;
 import com.lyhn.streamlinedb.backend.vm.VersionManager;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -611,4 +623,1136 @@ public class TableManagerTest {
 
         tbm.commit(xid3);
     }
+
+    @Test
+    public void testDropWaitsForActiveTransaction() throws Exception {
+        Create create = new Create();
+        create.tableName = "drop_test";
+        create.fieldName = new String[]{"id"};
+        create.fieldType = new String[]{"int32"};
+        create.index = new String[]{"id"};
+
+        long xid0 = tbm.begin(new Begin()).xid;
+        tbm.create(xid0, create);
+        tbm.commit(xid0);
+
+        long xid1 = tbm.begin(new Begin()).xid;
+        Insert insert = new Insert();
+        insert.tableName = "drop_test";
+        insert.values = new String[]{"1"};
+        tbm.insert(xid1, insert);
+
+        long xid2 = tbm.begin(new Begin()).xid;
+        Drop drop = new Drop();
+        drop.tableName = "drop_test";
+        CountDownLatch dropped = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                tbm.drop(xid2, drop);
+                tbm.commit(xid2);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                dropped.countDown();
+            }
+        });
+        t.start();
+
+        assert !dropped.await(200, TimeUnit.MILLISECONDS);
+        tbm.commit(xid1);
+        assert dropped.await(5, TimeUnit.SECONDS);
+
+        long xid3 = tbm.begin(new Begin()).xid;
+        Select select = new Select();
+        select.tableName = "drop_test";
+        try {
+            tbm.read(xid3, select);
+            assert false;
+        } catch (Exception e) {
+            assert true;
+        }
+        tbm.abort(xid3);
+    }
+
+    @Test
+    public void testSelectForUpdateBlocksDelete() throws Exception {
+        Create create = new Create();
+        create.tableName = "lock_test";
+        create.fieldName = new String[]{"id", "value"};
+        create.fieldType = new String[]{"int32", "int32"};
+        create.index = new String[]{"id", null};
+
+        long xid0 = tbm.begin(new Begin()).xid;
+        tbm.create(xid0, create);
+        Insert insert = new Insert();
+        insert.tableName = "lock_test";
+        insert.values = new String[]{"1", "10"};
+        tbm.insert(xid0, insert);
+        tbm.commit(xid0);
+
+        long xid1 = tbm.begin(new Begin()).xid;
+        Select select = new Select();
+        select.tableName = "lock_test";
+        select.forUpdate = true;
+        assert new String(tbm.read(xid1, select)).contains("10");
+
+        long xid2 = tbm.begin(new Begin()).xid;
+        Delete delete = new Delete();
+        delete.tableName = "lock_test";
+        delete.where = new Where();
+        delete.where.singleExp1 = new SingleExpression();
+        delete.where.singleExp1.field = "id";
+        delete.where.singleExp1.compareOp = "=";
+        delete.where.singleExp1.value = "1";
+        delete.where.logicOp = "";
+        CountDownLatch deleted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                tbm.delete(xid2, delete);
+                tbm.commit(xid2);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                deleted.countDown();
+            }
+        });
+        t.start();
+
+        assert !deleted.await(200, TimeUnit.MILLISECONDS);
+        tbm.commit(xid1);
+        assert deleted.await(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAbortWhileWaitingForRowLock() throws Exception {
+        long xid0 = tbm.begin(new Begin()).xid;
+        tbm.create(xid0, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table wait_t id int64, v int32 (index id)".getBytes()));
+        insertRow(xid0, "wait_t", "1", "0");
+        tbm.commit(xid0);
+
+        long xid1 = tbm.begin(new Begin()).xid;
+        tbm.update(xid1, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse("update wait_t set v = 1 where id = 1".getBytes()));
+        long xid2 = tbm.begin(new Begin()).xid;
+        Exception[] err = new Exception[1];
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                tbm.update(xid2, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse("update wait_t set v = 2 where id = 1".getBytes()));
+            } catch (Exception e) {
+                err[0] = e;
+            } finally {
+                done.countDown();
+            }
+        });
+        t.start();
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        // 等待中的事务被中止，等待被取消时不能当作获得了锁
+        tbm.abort(xid2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(err[0] instanceof Error.TransactionAbortedException);
+        tbm.commit(xid1);
+
+        long xid3 = tbm.begin(new Begin()).xid;
+        assertEquals("[1, 1]\n", query(xid3, "select * from wait_t"));
+        tbm.commit(xid3);
+    }
+
+    @Test
+    public void testLockingReadLocksOnlyReturnedRows() throws Exception {
+        long xid0 = tbm.begin(new Begin()).xid;
+        tbm.create(xid0, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table lk id int64, v int32 (index id)".getBytes()));
+        for(int i = 1; i <= 10; i ++) {
+            insertRow(xid0, "lk", String.valueOf(i), String.valueOf(i % 2));
+        }
+        tbm.commit(xid0);
+
+        long xid1 = tbm.begin(new Begin()).xid;
+        assertEquals("[1]\n", query(xid1, "select id from lk where v = 1 limit 1 for update"));
+        // 不满足条件的记录和LIMIT之外的记录都没有被锁住，其他事务可以直接修改
+        long xid2 = tbm.begin(new Begin()).xid;
+        Exception[] err = new Exception[1];
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                tbm.update(xid2, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse("update lk set v = 5 where id = 2".getBytes()));
+                tbm.update(xid2, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse("update lk set v = 5 where id = 3".getBytes()));
+            } catch (Exception e) {
+                err[0] = e;
+            } finally {
+                done.countDown();
+            }
+        });
+        t.start();
+        boolean finished = done.await(5, TimeUnit.SECONDS);
+        tbm.commit(xid1);
+        assertTrue(finished);
+        assertNull(err[0]);
+        tbm.commit(xid2);
+
+        long xid3 = tbm.begin(new Begin()).xid;
+        assertEquals("[2, 5]\n[3, 5]\n", query(xid3, "select * from lk where id >= 2 and id <= 3"));
+        tbm.commit(xid3);
+    }
+
+    @Test
+    public void testCreateIndexWithFanout() throws Exception {
+        BeginRes beginRes = tbm.begin(new Begin());
+        long xid = beginRes.xid;
+
+        Create create = (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table fanout_t id int32, name string (index id fanout 8 name)".getBytes());
+        assertArrayEquals(new String[]{"id", "name"}, create.index);
+        assertArrayEquals(new int[]{8, 0}, create.indexFanout);
+        tbm.create(xid, create);
+
+        for(int i = 0; i < 200; i ++) {
+            Insert insert = new Insert();
+            insert.tableName = "fanout_t";
+            insert.values = new String[]{String.valueOf(i), "n" + i};
+            tbm.insert(xid, insert);
+        }
+        Select select = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from fanout_t where id = 150".getBytes());
+        String resultStr = new String(tbm.read(xid, select));
+        assert resultStr.contains("n150");
+        assert !resultStr.contains("n149");
+        tbm.commit(xid);
+
+        try {
+            com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                    "create table bad_t id int32 (index id fanout x)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert true;
+        }
+    }
+
+    @Test
+    public void testStringIndexRange() throws Exception {
+        BeginRes beginRes = tbm.begin(new Begin());
+        long xid = beginRes.xid;
+
+        Create create = (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table str_t name string, age int32 (index name)".getBytes());
+        tbm.create(xid, create);
+        String[] names = {"bob", "alice", "carol", "alex", "dave", "bobby"};
+        for(int i = 0; i < names.length; i ++) {
+            Insert insert = new Insert();
+            insert.tableName = "str_t";
+            insert.values = new String[]{names[i], String.valueOf(i)};
+            tbm.insert(xid, insert);
+        }
+
+        // 字符串索引保持字典序，可以做范围查询
+        Select select = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from str_t where name > bob".getBytes());
+        String resultStr = new String(tbm.read(xid, select));
+        assert resultStr.contains("bobby") && resultStr.contains("carol") && resultStr.contains("dave");
+        assert !resultStr.contains("[bob,") && !resultStr.contains("alice");
+
+        select = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from str_t where name < bob".getBytes());
+        resultStr = new String(tbm.read(xid, select));
+        assert resultStr.contains("alice") && resultStr.contains("alex");
+        assert !resultStr.contains("bob");
+
+        Delete delete = new Delete();
+        delete.tableName = "str_t";
+        delete.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from str_t where name = bob".getBytes())).where;
+        tbm.delete(xid, delete);
+        tbm.commit(xid);
+
+        beginRes = tbm.begin(new Begin());
+        xid = beginRes.xid;
+        select = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from str_t where name = bobby".getBytes());
+        resultStr = new String(tbm.read(xid, select));
+        assert resultStr.contains("bobby");
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testPreparedStatement() throws Exception {
+        StatementCache cache = new StatementCache(2);
+        Executor exe = new Executor(tbm, cache);
+        exe.execute("create table ps id int64, name string, v int32 (index id)".getBytes());
+        int insert = exe.prepare("insert into ps values ? ? ?".getBytes());
+        assertEquals(insert, exe.prepare("insert into ps values ? ? ?".getBytes()));
+        for(int i = 0; i < 10; i ++) {
+            execute(exe, insert, String.valueOf(i), i == 0 ? "?" : "n " + i, String.valueOf(i * 10));
+        }
+        int select = exe.prepare("select name, v from ps where id between ? and ? and v < ? order by id".getBytes());
+        assertEquals("[n 3, 30]\n[n 4, 40]\n", execute(exe, select, "3", "8", "50"));
+        assertEquals("[n 7, 70]\n", execute(exe, select, "7", "7", "100"));
+        // 引号中的?是普通的值
+        assertEquals("[0]\n", new String(exe.execute("select id from ps where name = '?'".getBytes())));
+
+        int update = exe.prepare("update ps set name = ? where id = ?".getBytes());
+        execute(exe, update, "x y", "5");
+        assertEquals("[x y, 50]\n", execute(exe, select, "5", "5", "100"));
+
+        assertThrows(Error.InvalidParamsException.class, () -> execute(exe, select, "1"));
+        assertThrows(Error.StatementNotFoundException.class, () -> execute(exe, 100));
+        assertThrows(Error.InvalidParamsException.class, () -> exe.execute("select id from ps where id = ?".getBytes()));
+        assertThrows(RuntimeException.class, () -> exe.execute("select ? from ps".getBytes()));
+
+        // 相同的SQL文本共享解析好的语句，超过容量时淘汰最久没有使用的
+        assertSame(cache.get("select id from ps".getBytes()), cache.get("select id from ps".getBytes()));
+        assertEquals(2, cache.size());
+        // 非ASCII的SQL文本按UTF-8解码作为缓存的键
+        assertSame(cache.get("select id from ps where name = '名字'".getBytes(StandardCharsets.UTF_8)),
+                cache.get("select id from ps where name = '名字'".getBytes(StandardCharsets.UTF_8)));
+
+        // 释放后编号不能再用，重新预处理得到新的编号
+        exe.deallocate(update);
+        assertThrows(Error.StatementNotFoundException.class, () -> execute(exe, update, "z", "5"));
+        assertThrows(Error.StatementNotFoundException.class, () -> exe.deallocate(update));
+        assertNotEquals(update, exe.prepare("update ps set name = ? where id = ?".getBytes()));
+        // 每个连接同时保留的预处理语句有上限
+        for(int i = 0; i < Executor.MAX_PREPARED - 3; i ++) {
+            exe.prepare(("select id from ps where id = " + i).getBytes());
+        }
+        assertThrows(Error.TooManyPreparedException.class, () -> exe.prepare("select v from ps".getBytes()));
+        exe.deallocate(insert);
+        exe.prepare("select v from ps".getBytes());
+        exe.close();
+    }
+
+    private String execute(Executor exe, int id, String... params) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] res = exe.execute(id, params, out);
+        return out.size() == 0 ? new String(res) : out.toString();
+    }
+
+    private String query(long xid, String sql) throws Exception {
+        return new String(tbm.read(xid, (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(sql.getBytes())));
+    }
+
+    @Test
+    public void testRangePredicates() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table range_t name string, score int32 (index name score)".getBytes()));
+        String[] names = {"apple", "apricot", "banana", "blueberry", "cherry", "ap"};
+        int[] scores = {-20, -5, 0, 5, 20, 7};
+        for(int i = 0; i < names.length; i ++) {
+            Insert insert = new Insert();
+            insert.tableName = "range_t";
+            insert.values = new String[]{names[i], String.valueOf(scores[i])};
+            tbm.insert(xid, insert);
+        }
+
+        String res = query(xid, "select * from range_t where name like 'ap%'");
+        assert res.contains("apple") && res.contains("apricot") && res.contains("[ap,");
+        assert !res.contains("banana");
+        res = query(xid, "select * from range_t where name like 'ap_'");
+        assert res.trim().isEmpty();
+        res = query(xid, "select * from range_t where name between apricot and blueberry");
+        assert res.contains("apricot") && res.contains("banana") && res.contains("blueberry");
+        assert !res.contains("apple") && !res.contains("cherry");
+        res = query(xid, "select * from range_t where name >= banana");
+        assert res.contains("banana") && res.contains("cherry") && !res.contains("apricot");
+        res = query(xid, "select * from range_t where name <= ap");
+        assert res.trim().equals("[ap, 7]");
+
+        // 负数边界
+        res = query(xid, "select * from range_t where score < '-5'");
+        assert res.trim().equals("[apple, -20]");
+        res = query(xid, "select * from range_t where score <= '-5'");
+        assert res.contains("apple") && res.contains("apricot") && !res.contains("banana");
+        res = query(xid, "select * from range_t where score between '-5' and 5");
+        assert res.contains("apricot") && res.contains("banana") && res.contains("blueberry");
+        assert !res.contains("apple") && !res.contains("cherry") && !res.contains("[ap,");
+        res = query(xid, "select * from range_t");
+        assert res.contains("apple") && res.contains("cherry");
+
+        // 第二个条件在其他字段上时逐条复核
+        res = query(xid, "select * from range_t where name like 'b%' and score > 0");
+        assert res.trim().equals("[blueberry, 5]");
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testHashIndex() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        Create create = (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table hash_t id int64, name string (hashindex id index name)".getBytes());
+        assertArrayEquals(new boolean[]{true, false}, create.hashIndex);
+        tbm.create(xid, create);
+        for(int i = 0; i < 300; i ++) {
+            Insert insert = new Insert();
+            insert.tableName = "hash_t";
+            insert.values = new String[]{String.valueOf(i), "n" + i};
+            tbm.insert(xid, insert);
+        }
+        assert query(xid, "select * from hash_t where id = 123").trim().equals("[123, n123]");
+        // 非等值条件扫描整个哈希索引后复核
+        String res = query(xid, "select * from hash_t where id > 297");
+        assert res.contains("n298") && res.contains("n299") && !res.contains("n297");
+
+        Delete delete = new Delete();
+        delete.tableName = "hash_t";
+        delete.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from hash_t where id = 123".getBytes())).where;
+        assertEquals("delete 1", new String(tbm.delete(xid, delete)));
+        tbm.commit(xid);
+
+        xid = tbm.begin(new Begin()).xid;
+        assert query(xid, "select * from hash_t where id = 123").isEmpty();
+        assert query(xid, "select * from hash_t where name = n124").contains("124");
+        tbm.commit(xid);
+
+        try {
+            com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                    "create table bad_t id int32 (hashindex id fanout 8)".getBytes());
+            assert false;
+        } catch (Exception e) {
+            assert true;
+        }
+    }
+
+    private void insertRow(long xid, String table, String... values) throws Exception {
+        Insert insert = new Insert();
+        insert.tableName = table;
+        insert.values = values;
+        tbm.insert(xid, insert);
+    }
+
+    @Test
+    public void testRejectedUpdateKeepsRow() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table uniq_u id int64 primary key, name string unique".getBytes()));
+        insertRow(xid, "uniq_u", "1", "a");
+        insertRow(xid, "uniq_u", "2", "b");
+        tbm.commit(xid);
+
+        // 显式事务中更新失败后继续提交，被更新的记录不能丢失
+        xid = tbm.begin(new Begin()).xid;
+        try {
+            tbm.update(xid, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                    "update uniq_u set name = a where id = 2".getBytes()));
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.duplicatedKeyException, e);
+        }
+        tbm.commit(xid);
+
+        xid = tbm.begin(new Begin()).xid;
+        assertEquals("[1, a]\n[2, b]\n", query(xid, "select * from uniq_u order by id"));
+        assertEquals("[2, b]\n", query(xid, "select * from uniq_u where id = 2"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testUniqueConstraint() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        Create create = (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table uniq_t id int64 primary key, name string unique, age int32".getBytes());
+        assertEquals("id", create.primaryKey);
+        assertArrayEquals(new boolean[]{true, true, false}, create.unique);
+        tbm.create(xid, create);
+        insertRow(xid, "uniq_t", "1", "a", "10");
+        insertRow(xid, "uniq_t", "2", "b", "10");
+        try {
+            insertRow(xid, "uniq_t", "1", "c", "10");
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.duplicatedKeyException, e);
+        }
+        try {
+            insertRow(xid, "uniq_t", "3", "b", "10");
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.duplicatedKeyException, e);
+        }
+        // 更新为已存在的值也违反约束，更新为自身的值不违反
+        Update update = (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "update uniq_t set name = a where id = 2".getBytes());
+        try {
+            tbm.update(xid, update);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.duplicatedKeyException, e);
+        }
+        tbm.abort(xid);
+
+        xid = tbm.begin(new Begin()).xid;
+        insertRow(xid, "uniq_t", "1", "a", "10");
+        tbm.update(xid, (Update)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "update uniq_t set name = a where id = 1".getBytes()));
+        tbm.commit(xid);
+
+        // 另一个事务删除并提交后可以重新插入
+        xid = tbm.begin(new Begin()).xid;
+        Delete delete = new Delete();
+        delete.tableName = "uniq_t";
+        delete.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from uniq_t where id = 1".getBytes())).where;
+        assertEquals("delete 1", new String(tbm.delete(xid, delete)));
+        tbm.commit(xid);
+        xid = tbm.begin(new Begin()).xid;
+        insertRow(xid, "uniq_t", "1", "a2", "11");
+        assertEquals("[1, a2, 11]", query(xid, "select * from uniq_t where id = 1").trim());
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testConcurrentUniqueInsert() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table uniq_c id int64 primary key".getBytes()));
+        tbm.commit(xid);
+
+        long xid1 = tbm.begin(new Begin()).xid;
+        insertRow(xid1, "uniq_c", "7");
+        long xid2 = tbm.begin(new Begin()).xid;
+        Exception[] err = new Exception[1];
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                // 等待xid1提交后发现重复
+                insertRow(xid2, "uniq_c", "7");
+            } catch (Exception e) {
+                err[0] = e;
+            }
+            done.countDown();
+        }).start();
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        tbm.commit(xid1);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertSame(Error.duplicatedKeyException, err[0]);
+        tbm.abort(xid2);
+    }
+
+    @Test
+    public void testStreamedRead() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table stream_t id int64, name string (index id)".getBytes()));
+        for(int i = 0; i < 50; i ++) {
+            insertRow(xid, "stream_t", String.valueOf(i), "row" + i);
+        }
+        Select select = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse("select * from stream_t".getBytes());
+        // 每行单独写出，而不是整个结果一次写出
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] writes = new int[1];
+        tbm.read(xid, select, new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b) throws IOException {
+                writes[0] ++;
+                out.write(b);
+            }
+        });
+        assertEquals(50, writes[0]);
+        assertArrayEquals(tbm.read(xid, select), out.toByteArray());
+        assertTrue(out.toString().startsWith("[0, row0]\n[1, row1]\n"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table proj_t id int64, name string, note string, score int32 (index id)".getBytes()));
+        insertRow(xid, "proj_t", "1", "alice", "long note", "90");
+        insertRow(xid, "proj_t", "2", "bob", "", "75");
+
+        assertEquals("[alice, 1]\n[bob, 2]\n", query(xid, "select name, id from proj_t"));
+        // where条件中的字段不在输出列表中
+        assertEquals("[bob]\n", query(xid, "select name from proj_t where id = 2"));
+        assertEquals("[1, alice, long note, 90]\n", query(xid, "select * from proj_t where id = 1"));
+        try {
+            query(xid, "select missing from proj_t");
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.fieldNotFoundException, e);
+        }
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testColumnsAfterStrings() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table row_t name string, note string, score int32, total int64 (index name score total)".getBytes()));
+        insertRow(xid, "row_t", "a", "x", "-3", "10000000000");
+        insertRow(xid, "row_t", "b", "", "8", "-1");
+        // 字符串之后的字段偏移量随行变化
+        assertEquals("[b, -1]\n", query(xid, "select name, total from row_t where score > 0"));
+        assertEquals("[-3, x]\n", query(xid, "select score, note from row_t where total between 0 and 10000000000"));
+        assertEquals("[b, , 8, -1]\n", query(xid, "select * from row_t where name = b"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testOrderByLimit() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table page_t id int64, name string, score int32 (index id score)".getBytes()));
+        int[] scores = {50, 20, 90, 20, 70, 10};
+        for(int i = scores.length-1; i >= 0; i --) {
+            insertRow(xid, "page_t", String.valueOf(i), "n" + (char)('f' - i), String.valueOf(scores[i]));
+        }
+        // 按扫描的索引排序
+        assertEquals("[2]\n[3]\n[4]\n", query(xid, "select id from page_t order by id limit 3 offset 2"));
+        assertEquals("[5]\n[4]\n", query(xid, "select id from page_t order by id desc limit 2"));
+        // 排序字段不是扫描的索引
+        assertEquals("[2, 90]\n[4, 70]\n", query(xid, "select id, score from page_t where score >= 20 order by score desc limit 2"));
+        assertEquals("[5, na]\n[4, nb]\n[3, nc]\n", query(xid, "select id, name from page_t where id > 2 order by name"));
+        assertEquals("[1]\n[3]\n", query(xid, "select id from page_t where score = 20 order by id"));
+        assertEquals(2, query(xid, "select * from page_t limit 2").split("\n").length);
+        assertEquals("", query(xid, "select * from page_t order by score limit 0"));
+        assertEquals("", query(xid, "select * from page_t order by id limit 5 offset 10"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testOrderByTruncatedKeys() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table long_t name string (index name)".getBytes()));
+        // 超过最大键长的字符串在索引中被截断，前缀相同时索引中的顺序是任意的
+        String prefix = "p".repeat(1500);
+        for(char c : new char[]{'c', 'a', 'd', 'b'}) {
+            insertRow(xid, "long_t", prefix + c);
+        }
+        insertRow(xid, "long_t", "q");
+        String res = query(xid, "select * from long_t order by name limit 3");
+        assertEquals("[" + prefix + "a]\n[" + prefix + "b]\n[" + prefix + "c]\n", res);
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testAggregates() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table agg_t id int64, dept string, salary int32 (index id salary dept)".getBytes()));
+        String[] depts = {"eng", "ops", "eng", "hr", "eng", "ops"};
+        int[] salaries = {300, 200, 500, 100, 400, -50};
+        for(int i = 0; i < depts.length; i ++) {
+            insertRow(xid, "agg_t", String.valueOf(i), depts[i], String.valueOf(salaries[i]));
+        }
+        assertEquals("[6]\n", query(xid, "select count(*) from agg_t"));
+        assertEquals("[3, 1200, 400.0]\n", query(xid, "select count(id), sum(salary), avg(salary) from agg_t where dept = eng"));
+        // min/max通过索引计算
+        assertEquals("[-50, 500]\n", query(xid, "select min(salary), max(salary) from agg_t"));
+        assertEquals("[eng, ops]\n", query(xid, "select min(dept), max(dept) from agg_t"));
+        assertEquals("[200]\n", query(xid, "select min(salary) from agg_t where salary > 100"));
+        assertEquals("[400]\n", query(xid, "select max(salary) from agg_t where salary < 500"));
+        assertEquals("[eng, 3, 300]\n[hr, 1, 100]\n[ops, 2, -50]\n",
+                query(xid, "select dept, count(*), min(salary) from agg_t group by dept order by dept"));
+        assertEquals("[ops, 150]\n", query(xid, "select dept, sum(salary) from agg_t group by dept order by dept desc limit 1"));
+        // 没有记录时
+        assertEquals("[0, null, null]\n", query(xid, "select count(*), sum(salary), max(id) from agg_t where id > 100"));
+        assertEquals("", query(xid, "select dept from agg_t where id > 100 group by dept"));
+
+        // 删除后min/max只看可见的记录
+        Delete delete = new Delete();
+        delete.tableName = "agg_t";
+        delete.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse("select * from agg_t where salary = 500".getBytes())).where;
+        tbm.delete(xid, delete);
+        assertEquals("[-50, 400]\n", query(xid, "select min(salary), max(salary) from agg_t"));
+
+        for(String sql : new String[]{"select id, count(*) from agg_t", "select sum(dept) from agg_t",
+                "select dept, count(*) from agg_t group by dept order by id"}) {
+            try {
+                query(xid, sql);
+                fail(sql);
+            } catch (Exception e) {
+                assertSame(Error.invalidAggregateException, e);
+            }
+        }
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testMultipleBatches() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table batch_t id int64, v int32 (index id v)".getBytes()));
+        int n = 700;
+        for(int i = 0; i < n; i ++) {
+            insertRow(xid, "batch_t", String.valueOf(i), String.valueOf(i % 7));
+        }
+        // 结果跨越多个批次
+        assertEquals(n, query(xid, "select * from batch_t").split("\n").length);
+        String res = query(xid, "select v, id from batch_t where id >= 100 order by id limit 300 offset 250");
+        String[] lines = res.split("\n");
+        assertEquals(300, lines.length);
+        assertEquals("[0, 350]", lines[0]);
+        assertEquals("[5, 649]", lines[299]);
+        assertEquals("[6, 699]\n[6, 692]\n", query(xid, "select v, id from batch_t where v = 6 order by id desc limit 2"));
+        assertEquals("[100]\n", query(xid, "select count(*) from batch_t where v = 3"));
+
+        // 更新的新版本插入索引后不会再被扫描到
+        Update update = new Update();
+        update.tableName = "batch_t";
+        update.fieldName = "id";
+        update.value = "1000";
+        update.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse("select * from batch_t where id >= 0".getBytes())).where;
+        assertEquals("update " + n, new String(tbm.update(xid, update)));
+        assertEquals("[" + n + "]\n", query(xid, "select count(*) from batch_t where id = 1000"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testNonIndexedFilter() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table filter_t id int64, name string, age int32 (index id)".getBytes()));
+        String[] names = {"ann", "bob", "cat", "dan", "eve", "fay"};
+        int[] ages = {30, 17, 45, 17, 60, 25};
+        for(int i = 0; i < names.length; i ++) {
+            insertRow(xid, "filter_t", String.valueOf(i), names[i], String.valueOf(ages[i]));
+        }
+        // 条件字段没有索引时全表扫描，按列批量过滤
+        assertEquals("[1]\n[3]\n", query(xid, "select id from filter_t where age = 17"));
+        assertEquals("[2]\n[4]\n", query(xid, "select id from filter_t where age > 30 and name < fay"));
+        assertEquals("[0]\n[1]\n[3]\n[5]\n", query(xid, "select id from filter_t where age < 30 or name = ann"));
+        assertEquals("[3]\n[4]\n", query(xid, "select id from filter_t where name between dan and eve"));
+        assertEquals("[5]\n", query(xid, "select id from filter_t where name like 'f%'"));
+        // 第二个条件的字段有索引时用它查询
+        assertEquals("[3]\n", query(xid, "select id from filter_t where age = 17 and id > 1"));
+
+        // NOT取子条件的补集
+        java.util.List<Field> fields = java.util.List.of(new Field(null, "id", "int64", 0),
+                new Field(null, "name", "string", 0), new Field(null, "age", "int32", 0));
+        RowBatch batch = new RowBatch();
+        Row row = new Row(fields);
+        for(int i = 0; i < names.length; i ++) {
+            batch.begin(i);
+            for(byte[] raw : new byte[][]{fields.get(0).value2Raw((long)i), fields.get(1).value2Raw(names[i]), fields.get(2).value2Raw(ages[i])}) {
+                batch.append(raw, 0, raw.length);
+            }
+            batch.end();
+        }
+        ColumnBatch cols = new ColumnBatch(fields);
+        cols.reset(batch);
+        int[] sel = {0, 1, 2, 3, 4, 5};
+        Predicate young = Predicate.compile(((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from filter_t where age < 30".getBytes())).where, fields);
+        int n = new Predicate.Not(young).filter(cols, sel, sel.length);
+        assertArrayEquals(new int[]{0, 2, 4}, java.util.Arrays.copyOf(sel, n));
+        batch.select(sel, n);
+        batch.load(row, 1);
+        assertEquals("cat", row.getString(1));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testBooleanWhere() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table bool_t id int64, city string, age int32, tag int32 (index id city age)".getBytes()));
+        String[] cities = {"nyc", "sf", "nyc", "la", "sf", "nyc"};
+        int[] ages = {30, 30, 40, 30, 50, 20};
+        for(int i = 0; i < cities.length; i ++) {
+            insertRow(xid, "bool_t", String.valueOf(i), cities[i], String.valueOf(ages[i]), String.valueOf(i % 2));
+        }
+        // 重叠的or范围不会重复返回记录
+        assertEquals("[1]\n[2]\n[3]\n[4]\n", query(xid, "select id from bool_t where id between 1 and 3 or id between 2 and 4 order by id"));
+        // 两个索引字段上的等值条件求交集
+        assertEquals("[0]\n", query(xid, "select id from bool_t where city = nyc and age = 30"));
+        assertEquals("[0]\n[5]\n", query(xid, "select id from bool_t where city = nyc and age < 40 and tag >= 0 order by id"));
+        assertEquals("[1]\n[3]\n[4]\n", query(xid, "select id from bool_t where (city = sf or city = la) and not (id = 9) order by id"));
+        assertEquals("[0]\n[1]\n[3]\n", query(xid, "select id from bool_t where not city = nyc and age < 50 or id = 0 order by id"));
+        assertEquals("[2]\n[4]\n", query(xid, "select id from bool_t where tag = 0 and (age > 35 or city = la) order by id"));
+        assertEquals("[5]\n", query(xid, "select id from bool_t where (city = nyc or age = 50) and (tag = 1 and id > 3)"));
+        assertEquals("[1]\n", query(xid, "select count(*) from bool_t where age = 30 and city = sf"));
+
+        Delete delete = new Delete();
+        delete.tableName = "bool_t";
+        delete.where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from bool_t where city = nyc or age = 30".getBytes())).where;
+        assertEquals("delete 5", new String(tbm.delete(xid, delete)));
+        assertEquals("[4]\n", query(xid, "select id from bool_t"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table stats_t id int64, r int32, k int32 (index id r k)".getBytes()));
+        // r是id的一个排列，与记录的存放顺序无关；k绝大多数为1
+        for(int i = 0; i < 200; i ++) {
+            insertRow(xid, "stats_t", String.valueOf(i), String.valueOf(i * 37 % 200), String.valueOf(i < 190 ? 1 : i));
+        }
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "stats_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        Where wide = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from stats_t where r < 150".getBytes())).where;
+        Where narrow = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from stats_t where r < 10".getBytes())).where;
+        // 没有统计信息时按默认选择率使用r上的索引
+        assertEquals("r", table.scan(wide).fd.fieldName);
+
+        Analyze analyze = (Analyze)com.lyhn.streamlinedb.backend.parser.Parser.Parse("analyze stats_t".getBytes());
+        assertEquals("analyze stats_t", new String(tbm.analyze(xid, analyze)));
+        assertEquals(200, table.stats.rowCount);
+        // 按r的顺序读取75%的记录不如按存放顺序全表扫描
+        assertEquals("id", table.scan(wide).fd.fieldName);
+        assertEquals("r", table.scan(narrow).fd.fieldName);
+        assertEquals("[150]\n", query(xid, "select count(*) from stats_t where r < 150"));
+        assertEquals("[190]\n", query(xid, "select count(*) from stats_t where k = 1"));
+        assertEquals("[1]\n", query(xid, "select count(*) from stats_t where k = 195 and r < 150"));
+
+        // 统计信息序列化后不变
+        Field k = table.fields.get(2);
+        FieldCalRes one = k.calExp(((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from stats_t where k = 1".getBytes())).where.singleExp1);
+        TableStats parsed = TableStats.parse(table.stats.toRaw(), 0, table.fields);
+        assertEquals(table.stats.fraction(k, one, true), parsed.fraction(k, one, true), 1e-9);
+        assertTrue(parsed.fraction(k, one, true) > 0.9);
+        assertEquals(table.stats.column(k).correlation, parsed.column(k).correlation, 1e-9);
+
+        // 重新ANALYZE时原地覆盖统计信息，不插入新的数据项
+        long blobUid = statsBlobUid(table);
+        insertRow(xid, "stats_t", "200", "200", "1");
+        tbm.analyze(xid, analyze);
+        assertEquals(blobUid, statsBlobUid(table));
+        assertEquals(201, storedStats(table).rowCount);
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testAnalyzeSample() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table sample_t id int64, k int32, s string (index id k s)".getBytes()));
+        int n = 3000;
+        for(int i = 0; i < n; i ++) {
+            insertRow(xid, "sample_t", String.valueOf(i), String.valueOf(i % 10), "s" + (i % 500));
+        }
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "sample_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        // 只抽取300条记录，记录数仍是准确的，不同值个数由样本放大估计
+        table.analyze(xid, 300);
+        TableStats stats = table.stats;
+        assertEquals(n, stats.rowCount);
+        Field id = table.fields.get(0), k = table.fields.get(1), str = table.fields.get(2);
+        assertEquals(n, stats.column(id).distinct);
+        assertEquals(10, stats.column(k).distinct);
+        long d = stats.column(str).distinct;
+        assertTrue(d > 300 && d <= n);
+        assertEquals(TableStats.BUCKETS + 1, stats.column(id).longBounds.length);
+        FieldCalRes three = k.calExp(((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select * from sample_t where k = 3".getBytes())).where.singleExp1);
+        assertEquals(0.1, stats.fraction(k, three, true), 0.1);
+        assertEquals("[300]\n", query(xid, "select count(*) from sample_t where k = 3"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testAnalyzeManyStringColumns() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        int cols = 16;
+        StringBuilder create = new StringBuilder("create table wide_t ");
+        StringBuilder index = new StringBuilder(" (index");
+        for(int c = 0; c < cols; c ++) {
+            create.append(c == 0 ? "" : ", ").append("c").append(c).append(" string");
+            index.append(" c").append(c);
+        }
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                create.append(index).append(")").toString().getBytes()));
+        String pad = "x".repeat(60);
+        for(int i = 0; i < 50; i ++) {
+            String[] row = new String[cols];
+            Arrays.fill(row, pad + i);
+            insertRow(xid, "wide_t", row);
+        }
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "wide_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        // 全部字段的统计信息超过一个数据项的上限时只保存放得下的字段
+        assertTrue(table.stats == null);
+        tbm.analyze(xid, (Analyze)com.lyhn.streamlinedb.backend.parser.Parser.Parse("analyze wide_t".getBytes()));
+        assertTrue(table.stats.toRaw().length > com.lyhn.streamlinedb.backend.dm.page.PageX.MAX_FREE_SPACE);
+        TableStats stored = storedStats(table);
+        assertEquals(50, stored.rowCount);
+        int kept = 0;
+        for(Field fd : table.fields) {
+            if(stored.column(fd) != null) kept ++;
+        }
+        assertTrue(kept > 0 && kept < table.fields.size());
+        assertEquals("[50]\n", query(xid, "select count(*) from wide_t where c3 >= x"));
+        tbm.commit(xid);
+    }
+
+    private long statsBlobUid(Table table) throws Exception {
+        com.lyhn.streamlinedb.backend.dm.dataItem.DataItem di = ((TableManagerImpl)tbm).dm.read(table.statsUid);
+        try {
+            return com.lyhn.streamlinedb.backend.utils.Parser.readLong(di.data().raw, di.data().start);
+        } finally {
+            di.release();
+        }
+    }
+
+    private TableStats storedStats(Table table) throws Exception {
+        com.lyhn.streamlinedb.backend.dm.dataItem.DataItem di = ((TableManagerImpl)tbm).dm.read(statsBlobUid(table));
+        try {
+            assertEquals(TableStats.MAX_SIZE, di.data().end - di.data().start);
+            return TableStats.parse(di.data().raw, di.data().start, table.fields);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Test
+    public void testIndexOnlyScan() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table cover_t id int64, name string, age int32 (index id include (name) age)".getBytes()));
+        for(int i = 0; i < 100; i ++) {
+            insertRow(xid, "cover_t", String.valueOf(i), "n" + i, String.valueOf(i % 10));
+        }
+        tbm.commit(xid);
+
+        xid = tbm.begin(new Begin()).xid;
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "cover_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        Where where = ((Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "select name from cover_t where id >= 90".getBytes())).where;
+        // 没有标记可见性时每条记录都要读出检查
+        assertEquals(10, indexOnlyFetches(table, xid, where));
+
+        tbm.analyze(xid, (Analyze)com.lyhn.streamlinedb.backend.parser.Parser.Parse("analyze cover_t".getBytes()));
+        assertEquals(0, indexOnlyFetches(table, xid, where));
+        assertEquals("[n90]\n[n91]\n", query(xid, "select name from cover_t where id >= 90 and id < 92"));
+        assertEquals("[100]\n", query(xid, "select count(*) from cover_t"));
+        assertEquals("[5]\n", query(xid, "select count(id) from cover_t where id < 5"));
+        assertEquals("[95]\n", query(xid, "select max(id) from cover_t where name = n95"));
+        // 整数索引不带附加数据时只读出键
+        assertEquals("[10]\n", query(xid, "select count(age) from cover_t where age = 3"));
+        // 需要其他字段时仍读取记录
+        assertEquals("[92, n92, 2]\n", query(xid, "select * from cover_t where id = 92"));
+
+        // 删除和新插入的记录所在页不再全部可见，结果仍只包含可见的记录
+        tbm.delete(xid, (com.lyhn.streamlinedb.backend.parser.statement.Delete)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "delete from cover_t where id = 95".getBytes()));
+        insertRow(xid, "cover_t", "200", "n200", "0");
+        assertTrue(indexOnlyFetches(table, xid, where) > 0);
+        long other = tbm.begin(new Begin()).xid;
+        assertEquals("[100]\n", query(other, "select count(*) from cover_t"));
+        assertEquals("[n94]\n[n95]\n[n96]\n", query(other, "select name from cover_t where id >= 94 and id <= 96"));
+        assertEquals("[n94]\n[n96]\n", query(xid, "select name from cover_t where id >= 94 and id <= 96"));
+        assertEquals("[n200]\n", query(xid, "select name from cover_t where id > 100"));
+        tbm.commit(xid);
+        tbm.commit(other);
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table users id int64, name string (index id)".getBytes()));
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table orders id int64, uid int32, amount int32 (index id uid)".getBytes()));
+        for(int i = 0; i < 5; i ++) {
+            insertRow(xid, "users", String.valueOf(i), "u" + i);
+        }
+        // 用户0有两个订单，用户1有一个，其余没有；用户9不存在
+        insertRow(xid, "orders", "100", "0", "10");
+        insertRow(xid, "orders", "101", "0", "20");
+        insertRow(xid, "orders", "102", "1", "30");
+        insertRow(xid, "orders", "103", "9", "40");
+
+        assertEquals("[u0, 100]\n[u0, 101]\n[u1, 102]\n", query(xid,
+                "select name, orders.id from users join orders on users.id = uid order by orders.id"));
+        assertEquals("[u0, 10]\n[u0, 20]\n[u1, 30]\n[u2, 0]\n[u3, 0]\n[u4, 0]\n", query(xid,
+                "select name, amount from users left join orders on users.id = orders.uid order by name"));
+        // 只涉及一个表的条件下推，涉及两个表的条件在连接后过滤
+        assertEquals("[u0, 20]\n", query(xid,
+                "select name, amount from users inner join orders on uid = users.id where amount > 15 and users.id < 1"));
+        assertEquals("[u1, 30]\n", query(xid,
+                "select name, amount from users join orders on users.id = uid where amount > 15 and (name = u1 or orders.id = 103)"));
+        // 外层只有一条记录时按内层的uid索引查找
+        assertEquals("[u0, 10]\n[u0, 20]\n", query(xid,
+                "select name, amount from users join orders on users.id = uid where users.id = 0 order by amount"));
+        assertEquals("[u2, 0]\n", query(xid,
+                "select name, amount from users left join orders on users.id = uid where users.id = 2"));
+        assertEquals("[u1, 102]\n", query(xid,
+                "select name, orders.id from users join orders on orders.uid = users.id where orders.id = 102"));
+        // LEFT JOIN中右表的条件在连接之后过滤
+        assertEquals("[u2]\n[u3]\n[u4]\n", query(xid,
+                "select name from users left outer join orders on users.id = uid where amount = 0"));
+        assertEquals("[2, u0]\n[1, u1]\n", query(xid,
+                "select count(*), name from users join orders on users.id = uid group by name order by name"));
+        assertEquals("[0, u0, 100, 0, 10]\n", query(xid,
+                "select * from users join orders on users.id = uid where amount = 10"));
+        try {
+            query(xid, "select id from users join orders on users.id = uid");
+            fail("两个表都有id字段");
+        } catch (Error.AmbiguousFieldException e) {
+        }
+
+        // 哈希表超过内存上限时按分区连接，结果不变
+        Table users = ((TableManagerImpl)tbm).getTable(xid, "users", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        Table orders = ((TableManagerImpl)tbm).getTable(xid, "orders", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        for(int i = 5; i < 300; i ++) {
+            insertRow(xid, "users", String.valueOf(i), "u" + i);
+            insertRow(xid, "orders", String.valueOf(1000 + i), String.valueOf(i % 150), "1");
+        }
+        for(boolean leftOuter : new boolean[]{false, true}) {
+            Operator u = users.planScan(xid, null, new HashSet<>(List.of("id", "name")));
+            Operator o = orders.planScan(xid, null, new HashSet<>(List.of("id", "uid", "amount")));
+            HashJoin join = new HashJoin(u, 0, o, 1, leftOuter, true, 1024, new File(TEST_PATH));
+            join.open();
+            int rows = 0, unmatched = 0;
+            Row row = new Row(join.schema());
+            RowBatch batch;
+            while((batch = join.next()) != null) {
+                for(int i = 0; i < batch.size; i ++) {
+                    batch.load(row, i);
+                    if(row.getLong(2) != 0) {
+                        assertEquals(row.getLong(0), row.getInt(3));
+                    } else {
+                        unmatched ++;
+                    }
+                    rows ++;
+                }
+            }
+            assertTrue(join.isSpilled());
+            join.close();
+            // 用户5..149各有两个订单，0..4和之前的4个订单各匹配一次，用户150..299没有订单
+            assertEquals(leftOuter ? 299 + 150 : 299, rows);
+            assertEquals(leftOuter ? 150 : 0, unmatched);
+        }
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testFailedOpenRemovesSpillFiles() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table fail_t id int64, v int32 (index id)".getBytes()));
+        for(int i = 0; i < 1000; i ++) {
+            insertRow(xid, "fail_t", String.valueOf(i), String.valueOf(1000 - i));
+        }
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "fail_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        Operator scan = table.planScan(xid, null, new HashSet<>(List.of("id", "v")));
+        // 输入读到一半出错，排序已经写出的段要在close时删除
+        Operator failing = new Operator() {
+            private int batches;
+            public List<Field> schema() { return scan.schema(); }
+            public void open() throws Exception { scan.open(); }
+            public RowBatch next() throws Exception {
+                if(++ batches > 2) throw new IOException("read failed");
+                return scan.next();
+            }
+            public void close() throws Exception { scan.close(); }
+        };
+        Sort sort = new Sort(failing, 1, false, false, -1, 512, new File(TEST_PATH));
+        try {
+            Table.write(sort, new ByteArrayOutputStream());
+            fail();
+        } catch (IOException e) {
+            assertEquals("read failed", e.getMessage());
+        }
+        String prefix = new File(TEST_PATH).getName() + ".spill-";
+        File[] left = new File(TEST_PATH).getAbsoluteFile().getParentFile().listFiles((d, name) -> name.startsWith(prefix));
+        assertEquals(0, left == null ? 0 : left.length);
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testExternalSort() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table big id int64, v int32, s string, g int32 (index id g)".getBytes()));
+        int n = 2000;
+        for(int i = 0; i < n; i ++) {
+            insertRow(xid, "big", String.valueOf(i), String.valueOf(i * 7919 % n), "s" + (i * 31 % n), String.valueOf(i % 400));
+        }
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "big", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        // 每段只有十几条记录，段数超过归并路数时要多趟归并
+        Sort sort = new Sort(table.planScan(xid, null, new HashSet<>(List.of("id", "v", "s", "g"))),
+                1, false, false, -1, 512, new File(TEST_PATH));
+        sort.open();
+        assertTrue(sort.spilledRuns() > 0);
+        Row row = new Row(sort.schema());
+        int count = 0;
+        RowBatch batch;
+        while((batch = sort.next()) != null) {
+            for(int i = 0; i < batch.size; i ++, count ++) {
+                batch.load(row, i);
+                assertEquals(count, row.getInt(1));
+            }
+        }
+        sort.close();
+        assertEquals(n, count);
+        String prefix = new File(TEST_PATH).getName() + ".spill-";
+        File[] left = new File(TEST_PATH).getAbsoluteFile().getParentFile().listFiles((d, name) -> name.startsWith(prefix));
+        assertEquals(0, left == null ? 0 : left.length);
+
+        ((TableManagerImpl)tbm).sortMemory = 4096;
+        String[] lines = query(xid, "select v from big order by v desc").split("\n");
+        assertEquals(n, lines.length);
+        assertEquals("[1999]", lines[0]);
+        assertEquals("[0]", lines[n-1]);
+        lines = query(xid, "select s from big order by s").split("\n");
+        assertEquals("[s0]", lines[0]);
+        assertEquals("[s1]", lines[1]);
+        assertEquals("[s10]", lines[2]);
+        // 键相同的记录保持输入的顺序
+        assertTrue(query(xid, "select id from big order by g").startsWith("[0]\n[400]\n[800]\n[1200]\n[1600]\n[1]\n"));
+
+        // 统计信息表明分组放不下时先排序再按顺序分组
+        tbm.analyze(xid, (Analyze)com.lyhn.streamlinedb.backend.parser.Parser.Parse("analyze big".getBytes()));
+        lines = query(xid, "select count(*), g from big group by g order by g").split("\n");
+        assertEquals(400, lines.length);
+        assertEquals("[5, 0]", lines[0]);
+        assertEquals("[5, 399]", lines[399]);
+        assertTrue(query(xid, "select sum(v), g from big group by g order by g desc limit 1").endsWith(", 399]\n"));
+        tbm.commit(xid);
+    }
+
+    @Test
+    public void testGroupBySpillsWithoutStats() throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, (Create)com.lyhn.streamlinedb.backend.parser.Parser.Parse(
+                "create table grp_t id int64, g int32 (index id)".getBytes()));
+        int n = 1000;
+        for(int i = 0; i < n; i ++) {
+            insertRow(xid, "grp_t", String.valueOf(i), String.valueOf(i * 7 % n));
+        }
+        ((TableManagerImpl)tbm).sortMemory = 1024;
+        Table table = ((TableManagerImpl)tbm).getTable(xid, "grp_t", com.lyhn.streamlinedb.backend.vm.LockTable.IS);
+        Select read = (Select)com.lyhn.streamlinedb.backend.parser.Parser.Parse("select count(*), g from grp_t group by g".getBytes());
+        // 没有ANALYZE过、分组字段没有统计信息时不知道分组数，先外部排序再按顺序分组
+        Operator plan = table.planAggregate(table.planScan(xid, null, new HashSet<>(List.of("id", "g"))), read, null);
+        String prefix = new File(TEST_PATH).getName() + ".spill-";
+        File dir = new File(TEST_PATH).getAbsoluteFile().getParentFile();
+        int rows = 0;
+        try {
+            plan.open();
+            File[] spilled = dir.listFiles((d, name) -> name.startsWith(prefix));
+            assertTrue(spilled != null && spilled.length > 0);
+            Row row = new Row(plan.schema());
+            int last = -1;
+            RowBatch batch;
+            while((batch = plan.next()) != null) {
+                for(int i = 0; i < batch.size; i ++, rows ++) {
+                    batch.load(row, i);
+                    assertEquals(1, row.getLong(0));
+                    assertTrue(row.getInt(1) > last);
+                    last = row.getInt(1);
+                }
+            }
+        } finally {
+            plan.close();
+        }
+        assertEquals(n, rows);
+        File[] left = dir.listFiles((d, name) -> name.startsWith(prefix));
+        assertEquals(0, left == null ? 0 : left.length);
+        tbm.commit(xid);
+    }
+
+    private long indexOnlyFetches(Table table, long xid, Where where) throws Exception {
+        IndexOnlyScan scan = new IndexOnlyScan(table, xid, table.scan(where));
+        scan.open();
+        while(scan.next() != null) {
+        }
+        scan.close();
+        return scan.heapFetches;
+    }
 }
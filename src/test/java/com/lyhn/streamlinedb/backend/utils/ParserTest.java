@@ -0,0 +1,35 @@
+package com.lyhn.streamlinedb.backend.utils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParserTest {
+    // Thue-Morse串与它的反串在任意奇数底的模2^64多项式哈希下相同
+    private static String thueMorse(int n, char a, char b) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < n; i ++) {
+            sb.append(Integer.bitCount(i) % 2 == 0 ? a : b);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testHash64AvoidsPolynomialCollision() {
+        String s1 = thueMorse(1 << 11, 'a', 'b');
+        String s2 = thueMorse(1 << 11, 'b', 'a');
+        Assert.assertEquals(Parser.str2Uid(s1), Parser.str2Uid(s2));
+        Assert.assertNotEquals(Parser.hash64(s1), Parser.hash64(s2));
+    }
+
+    @Test
+    public void testHash64Distinct() {
+        Set<Long> seen = new HashSet<>();
+        for(int i = 0; i < 100000; i ++) {
+            Assert.assertTrue(seen.add(Parser.hash64("key-" + i)));
+        }
+        Assert.assertNotEquals(Parser.hash64(new byte[0]), Parser.hash64(new byte[]{0}));
+    }
+}
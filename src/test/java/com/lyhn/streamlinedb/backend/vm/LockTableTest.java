@@ -1,7 +1,5 @@
 package com.lyhn.streamlinedb.backend.vm;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import com.lyhn.streamlinedb.backend.common.Error;
 import com.lyhn.streamlinedb.backend.utils.Panic;
@@ -18,7 +16,7 @@ public class LockTableTest {
     public void testBasicLock() {
         LockTable lt = new LockTable();
         try {
-            Lock lock = lt.add(1, 1);
+            LockTable.Waiter lock = lt.add(1, 1);
             Assert.assertNull("First lock should be acquired immediately", lock);
         } catch (Exception e) {
             Panic.panic(e);
@@ -30,10 +28,11 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         try {
             lt.add(1, 1);
-            Lock lock = lt.add(2, 1);
+            LockTable.Waiter lock = lt.add(2, 1);
             Assert.assertNotNull("Second lock should wait", lock);
-            lock.lock();
-            lock.unlock();
+            Assert.assertFalse("Lock should not be granted while held", lock.isGranted());
+            lt.remove(1);
+            lock.await();
         } catch (Exception e) {
             Panic.panic(e);
         }
@@ -43,9 +42,9 @@ public class LockTableTest {
     public void testMultipleLocksSameTransaction() {
         LockTable lt = new LockTable();
         try {
-            Lock lock1 = lt.add(1, 1);
-            Lock lock2 = lt.add(1, 2);
-            Lock lock3 = lt.add(1, 3);
+            LockTable.Waiter lock1 = lt.add(1, 1);
+            LockTable.Waiter lock2 = lt.add(1, 2);
+            LockTable.Waiter lock3 = lt.add(1, 3);
 
             Assert.assertNull("First lock should be acquired immediately", lock1);
             Assert.assertNull("Second lock should be acquired immediately", lock2);
@@ -59,7 +58,7 @@ public class LockTableTest {
     public void testLockRelease() {
         LockTable lt = new LockTable();
         try {
-            Lock lock = lt.add(1, 1);
+            LockTable.Waiter lock = lt.add(1, 1);
             Assert.assertNull("First lock should be acquired immediately", lock);
 
             lt.remove(1);
@@ -90,10 +89,9 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for (long i = 1; i <= 100; i++) {
             try {
-                Lock lock = lt.add(i, i);
+                LockTable.Waiter lock = lt.add(i, i);
                 if (lock != null) {
-                    lock.lock();
-                    lock.unlock();
+                    lock.await();
                 }
             } catch (Exception e) {
                 Panic.panic(e);
@@ -102,11 +100,8 @@ public class LockTableTest {
 
         for (long i = 1; i <= 99; i++) {
             try {
-                Lock lock = lt.add(i, i + 1);
-                if (lock != null) {
-                    lock.lock();
-                    lock.unlock();
-                }
+                LockTable.Waiter lock = lt.add(i, i + 1);
+                Assert.assertNotNull("Lock should wait", lock);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -117,11 +112,8 @@ public class LockTableTest {
         lt.remove(23);
 
         try {
-            Lock lock = lt.add(100, 1);
-            if (lock != null) {
-                lock.lock();
-                lock.unlock();
-            }
+            LockTable.Waiter lock = lt.add(100, 1);
+            Assert.assertNotNull("Lock should wait", lock);
         } catch (Exception e) {
             Panic.panic(e);
         }
@@ -141,10 +133,9 @@ public class LockTableTest {
                 try {
                     for (long j = 0; j < lockCount; j++) {
                         try {
-                            Lock lock = lt.add(threadId, j);
+                            LockTable.Waiter lock = lt.add(threadId, j);
                             if (lock != null) {
-                                lock.lock();
-                                lock.unlock();
+                                lock.await();
                             }
                         } catch (Exception e) {
                             if (e instanceof com.lyhn.streamlinedb.backend.common.Error.DeadlockException) {
@@ -175,21 +166,19 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         try {
             lt.add(1, 1);
-            Lock lock2 = lt.add(2, 1);
-            Lock lock3 = lt.add(3, 1);
+            LockTable.Waiter lock2 = lt.add(2, 1);
+            LockTable.Waiter lock3 = lt.add(3, 1);
 
             Assert.assertNotNull("Second lock should wait", lock2);
             Assert.assertNotNull("Third lock should wait", lock3);
 
             lt.remove(1);
 
-            lock2.lock();
-            lock2.unlock();
+            lock2.await();
 
             lt.remove(2);
 
-            lock3.lock();
-            lock3.unlock();
+            lock3.await();
 
             lt.remove(3);
         } catch (Exception e) {
@@ -205,9 +194,9 @@ public class LockTableTest {
             lt.add(1, 2);
             lt.add(1, 3);
 
-            Lock lock2 = lt.add(2, 1);
-            Lock lock3 = lt.add(3, 2);
-            Lock lock4 = lt.add(4, 3);
+            LockTable.Waiter lock2 = lt.add(2, 1);
+            LockTable.Waiter lock3 = lt.add(3, 2);
+            LockTable.Waiter lock4 = lt.add(4, 3);
 
             Assert.assertNotNull("Lock should wait", lock2);
             Assert.assertNotNull("Lock should wait", lock3);
@@ -215,16 +204,13 @@ public class LockTableTest {
 
             lt.remove(1);
 
-            lock2.lock();
-            lock2.unlock();
+            lock2.await();
             lt.remove(2);
 
-            lock3.lock();
-            lock3.unlock();
+            lock3.await();
             lt.remove(3);
 
-            lock4.lock();
-            lock4.unlock();
+            lock4.await();
             lt.remove(4);
         } catch (Exception e) {
             Panic.panic(e);
@@ -235,15 +221,15 @@ public class LockTableTest {
     public void testLockReuse() {
         LockTable lt = new LockTable();
         try {
-            Lock lock1 = lt.add(1, 1);
+            LockTable.Waiter lock1 = lt.add(1, 1);
             Assert.assertNull("First lock should be acquired immediately", lock1);
 
-            Lock lock2 = lt.add(1, 1);
+            LockTable.Waiter lock2 = lt.add(1, 1);
             Assert.assertNull("Same transaction should not wait for same resource", lock2);
 
             lt.remove(1);
 
-            Lock lock3 = lt.add(2, 1);
+            LockTable.Waiter lock3 = lt.add(2, 1);
             Assert.assertNull("Lock should be acquired after release", lock3);
 
             lt.remove(2);
@@ -260,8 +246,8 @@ public class LockTableTest {
             lt.add(2, 2);
             lt.add(3, 3);
 
-            Lock lock1 = lt.add(1, 2);
-            Lock lock2 = lt.add(2, 3);
+            LockTable.Waiter lock1 = lt.add(1, 2);
+            LockTable.Waiter lock2 = lt.add(2, 3);
 
             Assert.assertNotNull("Lock should wait", lock1);
             Assert.assertNotNull("Lock should wait", lock2);
@@ -287,10 +273,9 @@ public class LockTableTest {
                     for (long j = 0; j < operationCount; j++) {
                         long resource = (threadId + j) % 10;
                         try {
-                            Lock lock = lt.add(threadId, resource);
+                            LockTable.Waiter lock = lt.add(threadId, resource);
                             if (lock != null) {
-                                lock.lock();
-                                lock.unlock();
+                                lock.await();
                             }
                         } catch (Exception e) {
                             if (e instanceof Error.DeadlockException) {
@@ -323,9 +308,9 @@ public class LockTableTest {
             lt.add(2, 2);
             lt.add(3, 3);
 
-            Lock lock1 = lt.add(4, 1);
-            Lock lock2 = lt.add(5, 2);
-            Lock lock3 = lt.add(6, 3);
+            LockTable.Waiter lock1 = lt.add(4, 1);
+            LockTable.Waiter lock2 = lt.add(5, 2);
+            LockTable.Waiter lock3 = lt.add(6, 3);
 
             Assert.assertNotNull("Lock should wait", lock1);
             Assert.assertNotNull("Lock should wait", lock2);
@@ -333,20 +318,17 @@ public class LockTableTest {
 
             lt.remove(1);
 
-            lock1.lock();
-            lock1.unlock();
+            lock1.await();
             lt.remove(4);
 
             lt.remove(2);
 
-            lock2.lock();
-            lock2.unlock();
+            lock2.await();
             lt.remove(5);
 
             lt.remove(3);
 
-            lock3.lock();
-            lock3.unlock();
+            lock3.await();
             lt.remove(6);
         } catch (Exception e) {
             Panic.panic(e);
@@ -363,10 +345,9 @@ public class LockTableTest {
 
             Thread t1 = new Thread(() -> {
                 try {
-                    Lock lock = lt.add(2, 1);
+                    LockTable.Waiter lock = lt.add(2, 1);
                     Assert.assertNotNull("Lock should wait", lock);
-                    lock.lock();
-                    lock.unlock();
+                    lock.await();
                     lt.remove(2);
                 } catch (Exception e) {
                     Panic.panic(e);
@@ -394,4 +375,122 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testRemoveWaitingTransaction() {
+        LockTable lt = new LockTable();
+        try {
+            lt.add(1, 1);
+            LockTable.Waiter lock2 = lt.add(2, 1);
+            LockTable.Waiter lock3 = lt.add(3, 1);
+            Assert.assertNotNull("Lock should wait", lock2);
+            Assert.assertNotNull("Lock should wait", lock3);
+
+            // 事务2在等待期间结束，资源应直接交给事务3
+            lt.remove(2);
+            Assert.assertFalse("Removed transaction should not get the lock", lock2.await());
+
+            lt.remove(1);
+            lock3.await();
+            Assert.assertTrue("Next waiter should get the lock", lock3.isGranted());
+            lt.remove(3);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Test
+    public void testSharedLocks() {
+        LockTable lt = new LockTable();
+        try {
+            Assert.assertNull("Shared locks should be compatible", lt.add(1, 1, LockTable.S));
+            Assert.assertNull("Shared locks should be compatible", lt.add(2, 1, LockTable.S));
+
+            LockTable.Waiter lock3 = lt.add(3, 1, LockTable.X);
+            Assert.assertNotNull("Exclusive lock should wait for shared holders", lock3);
+
+            lt.remove(1);
+            Assert.assertFalse("Exclusive lock should wait for all shared holders", lock3.isGranted());
+            lt.remove(2);
+            lock3.await();
+            Assert.assertTrue("Exclusive lock should be granted", lock3.isGranted());
+            lt.remove(3);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Test
+    public void testLockUpgradeDeadlock() {
+        LockTable lt = new LockTable();
+        try {
+            lt.add(1, 1, LockTable.S);
+            lt.add(2, 1, LockTable.S);
+
+            LockTable.Waiter lock1 = lt.add(1, 1, LockTable.X);
+            Assert.assertNotNull("Upgrade should wait for the other shared holder", lock1);
+            Assert.assertThrows("Two upgrades should deadlock", Error.DeadlockException.class, () -> lt.add(2, 1, LockTable.X));
+
+            lt.remove(2);
+            lock1.await();
+            Assert.assertTrue("Upgrade should be granted", lock1.isGranted());
+            lt.remove(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Test
+    public void testIntentionLocks() {
+        LockTable lt = new LockTable();
+        try {
+            Assert.assertNull(lt.add(1, 100, LockTable.IX));
+            Assert.assertNull(lt.add(2, 100, LockTable.IS));
+            Assert.assertNull(lt.add(3, 100, LockTable.IX));
+
+            LockTable.Waiter share = lt.add(4, 100, LockTable.S);
+            Assert.assertNotNull("Table share lock should wait for IX holders", share);
+            LockTable.Waiter drop = lt.add(5, 100, LockTable.X);
+            Assert.assertNotNull("Table exclusive lock should wait", drop);
+
+            lt.remove(1);
+            lt.remove(3);
+            share.await();
+            Assert.assertTrue(share.isGranted());
+            Assert.assertFalse("Exclusive lock should still wait", drop.isGranted());
+
+            lt.remove(2);
+            lt.remove(4);
+            drop.await();
+            Assert.assertTrue(drop.isGranted());
+            lt.remove(5);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Test
+    public void testReleaseManyLocks() {
+        LockTable lt = new LockTable();
+        try {
+            for(long uid = 1; uid <= 50000; uid ++) {
+                Assert.assertNull(lt.add(1, uid));
+            }
+            // 重复加锁不应重复记录
+            Assert.assertNull(lt.add(1, 25000));
+            LockTable.Waiter w = lt.add(2, 50000);
+            Assert.assertNotNull(w);
+
+            lt.remove(1);
+            w.await();
+            Assert.assertTrue("Waiter should get the lock after release", w.isGranted());
+            for(long uid = 1; uid < 50000; uid += 997) {
+                Assert.assertNull("Released lock should be free", lt.add(3, uid));
+            }
+            lt.remove(2);
+            lt.remove(3);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
 }